@@ -0,0 +1,111 @@
+package xyz.kbalto.inventory;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.NumberPicker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what the editor writes when the product changes while it's edited.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorActivityTest {
+    /** Time given to a reload of the product to reach the editor */
+    private static final long LOAD_WAIT_MS = 500;
+    private static final long SAVE_TIMEOUT_MS = 5000;
+
+    private Instrumentation mInstrumentation;
+    private ContentResolver mResolver;
+    private Uri mProductUri;
+    private EditorActivity mActivity;
+
+    @Before
+    public void insertProduct() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Editor test product");
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 10);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 10);
+        mProductUri = mResolver.insert(ProductEntry.CONTENT_URI, values);
+    }
+
+    @After
+    public void deleteProduct() {
+        if (mActivity != null && !mActivity.isFinishing()) {
+            mActivity.finish();
+        }
+        mResolver.delete(mProductUri, null, null);
+    }
+
+    @Test
+    public void editOfAProductSoldMeanwhileIsWrittenOnTheSecondSave() throws Exception {
+        Intent intent = new Intent(InstrumentationRegistry.getTargetContext(), EditorActivity.class);
+        intent.setData(mProductUri);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mActivity = (EditorActivity) mInstrumentation.startActivitySync(intent);
+        waitForLoad();
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ((NumberPicker) mActivity.findViewById(R.id.number_picker)).setValue(5);
+            }
+        });
+        // Sold while the quantity is edited: the editor shows the sale, keeping the edit
+        mResolver.update(ProductEntry.buildSellUri(ContentUris.parseId(mProductUri), 1), null, null, null);
+        waitForLoad();
+
+        // Saving would overwrite the sale: the editor tells so and shows the product as it is now
+        assertTrue(mInstrumentation.invokeMenuActionSync(mActivity, R.id.action_save, 0));
+        waitForLoad();
+        assertFalse(mActivity.isFinishing());
+        assertEquals(9, readQuantity());
+
+        // Saving again writes the edit
+        assertTrue(mInstrumentation.invokeMenuActionSync(mActivity, R.id.action_save, 0));
+        long deadline = SystemClock.uptimeMillis() + SAVE_TIMEOUT_MS;
+        while (!mActivity.isFinishing() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        assertTrue(mActivity.isFinishing());
+        assertEquals(5, readQuantity());
+    }
+
+    /**
+     * Waits for the write and the reload of the product in progress, which run off the main thread.
+     */
+    private void waitForLoad() {
+        SystemClock.sleep(LOAD_WAIT_MS);
+        mInstrumentation.waitForIdleSync();
+    }
+
+    private int readQuantity() {
+        Cursor cursor = mResolver.query(mProductUri, new String[]{ProductEntry.COLUMN_PRODUCT_QUANTITY},
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package xyz.kbalto.inventory;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lays out the product list in a phone-sized RecyclerView on the main thread, and logs with the {@link #TAG}
+ * tag the frame times of a scroll, and the rows rebound and layout time after a sale, with the whole list
+ * rebound as the ListView did, and with the diff.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductListBenchmark {
+    /** Tag for the benchmark results */
+    private static final String TAG = "ProductBenchmark";
+    /** Amount of products of the list */
+    private static final int PRODUCT_COUNT = 1000;
+    /** Size of the list, in pixels */
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    /** Frames scrolled */
+    private static final int SCROLL_FRAMES = 300;
+    /** Distance scrolled per frame, in pixels */
+    private static final int SCROLL_STEP = 60;
+    /** Frame budget at 60 fps, in nanoseconds */
+    private static final long FRAME_NANOS = 16666667;
+
+    private Instrumentation mInstrumentation;
+    private RecyclerView mRecyclerView;
+    private ProductListAdapter mAdapter;
+    /** Counted down when the adapter receives a change */
+    private volatile CountDownLatch mChanged;
+
+    @Before
+    public void createList() throws Exception {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        final Context context = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRecyclerView = new RecyclerView(context);
+                mRecyclerView.setLayoutManager(new LinearLayoutManager(context));
+                mRecyclerView.setHasFixedSize(true);
+                // Only the binding and layout are measured
+                mRecyclerView.setItemAnimator(null);
+                mAdapter = new ProductListAdapter(context, null);
+                mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+                    @Override
+                    public void onChanged() {
+                        mChanged.countDown();
+                    }
+
+                    @Override
+                    public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                        mChanged.countDown();
+                    }
+
+                    @Override
+                    public void onItemRangeInserted(int positionStart, int itemCount) {
+                        mChanged.countDown();
+                    }
+                });
+                mRecyclerView.setAdapter(mAdapter);
+            }
+        });
+        swapAndWait(createCursor(-1));
+        layout();
+    }
+
+    @Test
+    public void scrollFrames() throws Exception {
+        final long[] frameNanos = new long[SCROLL_FRAMES];
+        for (int frame = 0; frame < SCROLL_FRAMES; frame++) {
+            final int index = frame;
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    mRecyclerView.scrollBy(0, SCROLL_STEP);
+                    frameNanos[index] = System.nanoTime() - start;
+                }
+            });
+        }
+        int janky = 0;
+        long worst = 0;
+        long total = 0;
+        for (long nanos : frameNanos) {
+            if (nanos > FRAME_NANOS) {
+                janky++;
+            }
+            worst = Math.max(worst, nanos);
+            total += nanos;
+        }
+        Log.i(TAG, String.format(Locale.US, "RecyclerView scroll: %d/%d janky frames, %.2f ms avg, %.2f ms worst,"
+                        + " %d rows bound", janky, SCROLL_FRAMES, total / 1e6 / SCROLL_FRAMES, worst / 1e6,
+                mAdapter.getBindCount()));
+    }
+
+    @Test
+    public void saleRebindsOneRow() throws Exception {
+        // Baseline: the whole visible list rebound, as with ListView and CursorAdapter
+        int bindsBefore = mAdapter.getBindCount();
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.notifyDataSetChanged();
+            }
+        });
+        long rebindAllNanos = layout();
+        int rebindAllRows = mAdapter.getBindCount() - bindsBefore;
+
+        // A sale of the third product, diffed in the background
+        bindsBefore = mAdapter.getBindCount();
+        long diffStart = System.nanoTime();
+        swapAndWait(createCursor(2));
+        long diffNanos = System.nanoTime() - diffStart;
+        long diffLayoutNanos = layout();
+        int diffRows = mAdapter.getBindCount() - bindsBefore;
+
+        assertTrue(diffRows + " rows rebound", diffRows == 1);
+        Log.i(TAG, String.format(Locale.US, "sale: whole list %d rows rebound in %.2f ms,"
+                        + " diff %d row rebound in %.2f ms (diff ready after %.2f ms off the main thread)",
+                rebindAllRows, rebindAllNanos / 1e6, diffRows, diffLayoutNanos / 1e6, diffNanos / 1e6));
+    }
+
+    /**
+     * @return products sorted by name, with one unit less of the product at soldPosition (none if -1).
+     */
+    private static MatrixCursor createCursor(int soldPosition) {
+        String[] columns = {ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_DESCRIPTION,
+                ProductEntry.COLUMN_PRODUCT_PICTURE, ProductEntry.COLUMN_PRODUCT_THUMBNAIL,
+                ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductEntry.COLUMN_PRODUCT_PRICE};
+        MatrixCursor cursor = new MatrixCursor(columns, PRODUCT_COUNT);
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            cursor.addRow(new Object[]{i + 1, String.format(Locale.US, "Product %04d", i), "Description " + i,
+                    null, null, i == soldPosition ? 99 : 100, 10 + i % 50});
+        }
+        return cursor;
+    }
+
+    private void swapAndWait(final MatrixCursor cursor) throws InterruptedException {
+        mChanged = new CountDownLatch(1);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.swapCursor(cursor);
+            }
+        });
+        assertTrue(mChanged.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Measures and lays the list out on the main thread, as the next frame would.
+     * @return the time taken, in nanoseconds.
+     */
+    private long layout() {
+        final long[] nanos = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                mRecyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                mRecyclerView.layout(0, 0, WIDTH, HEIGHT);
+                nanos[0] = System.nanoTime() - start;
+            }
+        });
+        return nanos[0];
+    }
+}
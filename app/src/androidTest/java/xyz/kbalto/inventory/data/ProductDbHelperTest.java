@@ -0,0 +1,197 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xyz.kbalto.inventory.data.ProductContract.DailySalesEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+import xyz.kbalto.inventory.data.ProductContract.SaleEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the migration chain of ProductDbHelper on an in-memory database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductDbHelperTest {
+    /** Amount of products inserted before upgrading */
+    private static final int PRODUCT_COUNT = 500;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void createVersionOneDatabase() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL(ProductDbHelper.SQL_CREATE_ENTRIES);
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, i);
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 10);
+            mDatabase.insert(ProductEntry.TABLE_NAME, null, values);
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void migrationsAreConsecutiveUpToDatabaseVersion() throws Exception {
+        int version = 1;
+        for (Migration migration : ProductDbHelper.MIGRATIONS) {
+            assertEquals(version + 1, migration.toVersion);
+            version = migration.toVersion;
+        }
+        assertEquals(ProductDbHelper.DATABASE_VERSION, version);
+    }
+
+    @Test
+    public void upgradeKeepsExistingRows() throws Exception {
+        ProductDbHelper.migrate(mDatabase, 1, ProductDbHelper.DATABASE_VERSION);
+
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(mDatabase, ProductEntry.TABLE_NAME));
+        // Existing products are added to the full-text index
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(mDatabase, ProductDbHelper.FTS_TABLE_NAME));
+    }
+
+    @Test
+    public void salesAreRolledUpPerDayAndProduct() throws Exception {
+        ProductDbHelper.migrate(mDatabase, 1, ProductDbHelper.DATABASE_VERSION);
+
+        insertSale(1, 2, 5, 100);
+        insertSale(1, 3, 5, 100);
+        insertSale(1, 1, 5, 101);
+        insertSale(2, 4, 7, 100);
+
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDatabase, SaleEntry.TABLE_NAME));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDatabase, DailySalesEntry.TABLE_NAME));
+        Cursor rollup = mDatabase.query(DailySalesEntry.TABLE_NAME, null,
+                DailySalesEntry.COLUMN_DAILY_DAY + " = 100 AND " + DailySalesEntry.COLUMN_DAILY_PRODUCT_ID + " = 1",
+                null, null, null, null);
+        try {
+            assertTrue(rollup.moveToFirst());
+            assertEquals(5, rollup.getLong(rollup.getColumnIndexOrThrow(DailySalesEntry.COLUMN_DAILY_QUANTITY)));
+            assertEquals(25, rollup.getLong(rollup.getColumnIndexOrThrow(DailySalesEntry.COLUMN_DAILY_REVENUE)));
+        } finally {
+            rollup.close();
+        }
+    }
+
+    @Test
+    public void listAndFilterQueriesUseIndexes() throws Exception {
+        ProductDbHelper.migrate(mDatabase, 1, ProductDbHelper.DATABASE_VERSION);
+
+        // List sorted by name, first page and keyset page after ("Product 42", 43)
+        assertListUsesIndexes(new ProductQuery().buildPageUri(null, 0, 100));
+        assertListUsesIndexes(new ProductQuery().buildPageUri("Product 42", 43, 100));
+        // Low stock and price range filters
+        assertListUsesIndexes(new ProductQuery().setStockRange(1L, 5L).buildUri());
+        assertListUsesIndexes(new ProductQuery().setPriceRange(10L, 20L).buildUri());
+
+        // Name lookup
+        assertNoTableScan("SELECT * FROM products WHERE name = 'product 1' COLLATE NOCASE", null);
+        // Products using a stored photo
+        assertNoTableScan("SELECT * FROM products WHERE picture = 'file:///images/a.jpg'", null);
+        // Scanned code
+        assertNoTableScan("SELECT * FROM products WHERE sku = '4006381333931' LIMIT 1", null);
+    }
+
+    @Test
+    public void everyFilterAndSortOfTheListUsesIndexes() throws Exception {
+        ProductDbHelper.migrate(mDatabase, 1, ProductDbHelper.DATABASE_VERSION);
+
+        // The sort orders and filters of the menu, one filter at a time
+        ProductQuery[] sorts = {
+                new ProductQuery(),
+                new ProductQuery().setSort(ProductQuery.Sort.PRICE, false),
+                new ProductQuery().setSort(ProductQuery.Sort.PRICE, true),
+                new ProductQuery().setSort(ProductQuery.Sort.QUANTITY, false),
+                new ProductQuery().setSort(ProductQuery.Sort.SOLD, true)};
+        Long[][] stockRanges = {{null, null}, {1L, null}, {1L, 5L}, {0L, 0L}};
+        Long[][] priceRanges = {{10L, 20L}, {10L, null}, {null, 20L}, {15L, 15L}};
+        for (ProductQuery sort : sorts) {
+            String afterSortKey = sort.getSort() == ProductQuery.Sort.NAME ? "Product 42" : "42";
+            List<ProductQuery> queries = new ArrayList<>();
+            for (Long[] range : stockRanges) {
+                queries.add(ProductQuery.fromUri(sort.buildUri()).setStockRange(range[0], range[1]));
+            }
+            for (Long[] range : priceRanges) {
+                queries.add(ProductQuery.fromUri(sort.buildUri()).setPriceRange(range[0], range[1]));
+            }
+            for (ProductQuery query : queries) {
+                // First page, and the page after the product 42
+                assertListUsesIndexes(query.buildPageUri(null, 0, 100));
+                assertListUsesIndexes(query.buildPageUri(afterSortKey, 43, 100));
+            }
+        }
+    }
+
+    @Test
+    public void upgradeSetsMissingPricesToZero() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Without a price");
+        values.putNull(ProductEntry.COLUMN_PRODUCT_PRICE);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 1);
+        mDatabase.insert(ProductEntry.TABLE_NAME, null, values);
+
+        ProductDbHelper.migrate(mDatabase, 1, ProductDbHelper.DATABASE_VERSION);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, ProductEntry.TABLE_NAME,
+                ProductEntry.COLUMN_PRODUCT_PRICE + " IS NULL"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDatabase, ProductEntry.TABLE_NAME,
+                ProductEntry.COLUMN_PRODUCT_NAME + " = 'Without a price' AND " + ProductEntry.COLUMN_PRODUCT_PRICE + " = 0"));
+    }
+
+    private void insertSale(long productId, int quantity, int unitPrice, long day) {
+        ContentValues values = new ContentValues();
+        values.put(SaleEntry.COLUMN_SALE_PRODUCT_ID, productId);
+        values.put(SaleEntry.COLUMN_SALE_QUANTITY, quantity);
+        values.put(SaleEntry.COLUMN_SALE_UNIT_PRICE, unitPrice);
+        values.put(SaleEntry.COLUMN_SALE_TIME, day * 86400000L);
+        values.put(SaleEntry.COLUMN_SALE_DAY, day);
+        mDatabase.insert(SaleEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Fails if the SQL that ProductProvider runs for the products URI doesn't use the indexes.
+     */
+    private void assertListUsesIndexes(Uri uri) {
+        ProductListSql query = ProductListSql.fromUri(uri, null, null, null, null);
+        assertNoTableScan(query.sql, query.args);
+    }
+
+    /**
+     * Fails if the query plan reads the products table without an index or sorts in a temporary b-tree.
+     */
+    private void assertNoTableScan(String sql, String[] args) {
+        Cursor plan = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailColumnIndex = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailColumnIndex);
+                boolean tableScan = detail.matches("SCAN (TABLE )?products\\b.*") && !detail.contains(" USING ");
+                assertFalse(sql + " -> " + detail, tableScan);
+                assertFalse(sql + " -> " + detail, detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+}
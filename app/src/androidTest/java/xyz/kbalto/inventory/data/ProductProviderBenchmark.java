@@ -0,0 +1,456 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+
+/**
+ * Instrumentation benchmarks for ProductProvider, run against an isolated copy of the database.
+ * Results are written to logcat with the {@link #TAG} tag.
+ */
+public class ProductProviderBenchmark extends ProviderTestCase2<ProductProvider> {
+    /** Tag for the benchmark results */
+    private static final String TAG = "ProductBenchmark";
+
+    public ProductProviderBenchmark() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    /**
+     * Measures rows/sec of bulkInsert() at 1k, 10k and 100k rows, and of single inserts at 1k rows as a baseline.
+     */
+    public void testBulkInsertThroughput() {
+        MockContentResolver resolver = getMockContentResolver();
+
+        ContentValues[] baseline = buildProducts(1000);
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues values : baseline) {
+            resolver.insert(ProductEntry.CONTENT_URI, values);
+        }
+        logThroughput("insert", baseline.length, SystemClock.elapsedRealtime() - start);
+
+        for (int rows : new int[]{1000, 10000, 100000}) {
+            ContentValues[] products = buildProducts(rows);
+            resolver.delete(ProductEntry.CONTENT_URI, null, null);
+            start = SystemClock.elapsedRealtime();
+            int inserted = resolver.bulkInsert(ProductEntry.CONTENT_URI, products);
+            logThroughput("bulkInsert", rows, SystemClock.elapsedRealtime() - start);
+            assertEquals(rows, inserted);
+        }
+    }
+
+    /**
+     * Compares ops/sec and bytes allocated per op of quantity edits through the provider, each in its own
+     * transaction as the editor writes them: through SQLiteDatabase.update() like other updates, and through
+     * the compiled statement. Both bump the version of the product.
+     */
+    public void testQuantityUpdateThroughput() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, buildProducts(1000));
+        Cursor ids = resolver.query(ProductEntry.CONTENT_URI, new String[]{ProductEntry._ID}, null, null, null);
+        Uri[] productUris = new Uri[ids.getCount()];
+        for (int i = 0; ids.moveToNext(); i++) {
+            productUris[i] = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, ids.getLong(0));
+        }
+        ids.close();
+        int operations = 5000;
+
+        for (boolean compiled : new boolean[]{false, true}) {
+            getProvider().setCompiledQuantityUpdates(compiled);
+            long versionBefore = readVersion(resolver, productUris[0]);
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < operations; i++) {
+                ContentValues values = new ContentValues();
+                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 100);
+                assertEquals(1, resolver.update(productUris[i % productUris.length], values, null, null));
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            long allocated = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+            Log.i(TAG, String.format(Locale.US, "%s: %.0f ops/sec, %d bytes allocated per op",
+                    compiled ? "compiled statement" : "SQLiteDatabase.update", operations * 1000.0 / Math.max(1, elapsed),
+                    allocated / operations));
+            assertTrue(readVersion(resolver, productUris[0]) > versionBefore);
+        }
+        getProvider().setCompiledQuantityUpdates(true);
+    }
+
+    private static long readVersion(MockContentResolver resolver, Uri productUri) {
+        Cursor cursor = resolver.query(productUri, new String[]{ProductEntry.COLUMN_PRODUCT_VERSION}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Measures the latency of the first page and of a page deep in the list, with 100 and 100k products.
+     */
+    public void testPageLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        for (int rows : new int[]{100, 100000}) {
+            resolver.delete(ProductEntry.CONTENT_URI, null, null);
+            resolver.bulkInsert(ProductEntry.CONTENT_URI, buildProducts(rows));
+
+            long start = System.nanoTime();
+            Cursor first = resolver.query(ProductEntry.buildPageUri(null, 0, 100), null, null, null, null);
+            first.getCount();
+            double firstMillis = (System.nanoTime() - start) / 1e6;
+            first.close();
+
+            start = System.nanoTime();
+            Cursor deep = resolver.query(ProductEntry.buildPageUri("Product 9", rows, 100), null, null, null, null);
+            deep.getCount();
+            double deepMillis = (System.nanoTime() - start) / 1e6;
+            deep.close();
+
+            Log.i(TAG, String.format(Locale.US, "%d products: first page %.2f ms, deep page %.2f ms",
+                    rows, firstMillis, deepMillis));
+        }
+    }
+
+    /**
+     * Measures the latency of the first and second page of each filter and sort order of the list, with 100k products.
+     */
+    public void testFilteredPageLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, buildProducts(100000));
+
+        ProductQuery[] queries = {
+                new ProductQuery().setOutOfStock(),
+                new ProductQuery().setStockRange(1L, 5L),
+                new ProductQuery().setPriceRange(100L, 200L),
+                new ProductQuery().setSort(ProductQuery.Sort.PRICE, false),
+                new ProductQuery().setSort(ProductQuery.Sort.QUANTITY, true),
+                new ProductQuery().setSort(ProductQuery.Sort.SOLD, true),
+                new ProductQuery().setPriceRange(100L, 200L).setSort(ProductQuery.Sort.PRICE, true)
+        };
+        for (ProductQuery query : queries) {
+            long start = System.nanoTime();
+            Cursor first = resolver.query(query.buildPageUri(null, 0, 100), null, null, null, null);
+            assertEquals(100, first.getCount());
+            double firstMillis = (System.nanoTime() - start) / 1e6;
+            first.moveToLast();
+            String lastSortKey = first.getString(first.getColumnIndexOrThrow(query.getSort().getColumn()));
+            long lastId = first.getLong(first.getColumnIndexOrThrow(ProductEntry._ID));
+            first.close();
+
+            start = System.nanoTime();
+            Cursor next = resolver.query(query.buildPageUri(lastSortKey, lastId, 100), null, null, null, null);
+            assertEquals(100, next.getCount());
+            double nextMillis = (System.nanoTime() - start) / 1e6;
+            next.close();
+
+            Log.i(TAG, String.format(Locale.US, "%s: first page %.2f ms, next page %.2f ms",
+                    query.buildUri().getEncodedQuery(), firstMillis, nextMillis));
+        }
+    }
+
+    /**
+     * Measures the alphabetical sections of 100k products: counted by the grouped query, served from memory
+     * after a sale, counted again after a rename, and the first page of each section read for a jump.
+     */
+    public void testSectionJumpLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        ContentValues[] products = buildProducts(100000);
+        for (int i = 0; i < products.length; i++) {
+            // Spread over the 26 letters, some in lower case
+            char letter = (char) ((i % 2 == 0 ? 'A' : 'a') + i % 26);
+            products[i].put(ProductEntry.COLUMN_PRODUCT_NAME, letter + "roduct " + i);
+        }
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, products);
+
+        long start = System.nanoTime();
+        Cursor sections = resolver.query(ProductEntry.SECTIONS_URI, null, null, null, null);
+        double countedMillis = (System.nanoTime() - start) / 1e6;
+        assertEquals(26, sections.getCount());
+        sections.moveToFirst();
+        int firstSectionCount = sections.getInt(sections.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_COUNT));
+        sections.moveToPosition(-1);
+        int total = 0;
+        while (sections.moveToNext()) {
+            total += sections.getInt(sections.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_COUNT));
+        }
+        assertEquals(products.length, total);
+
+        // A restock keeps the sections, a rename counts them again
+        Cursor first = resolver.query(ProductEntry.buildPageUri(null, 0, 1), null, null, null, null);
+        first.moveToFirst();
+        long firstId = first.getLong(first.getColumnIndexOrThrow(ProductEntry._ID));
+        first.close();
+        resolver.update(ProductEntry.buildRestockUri(firstId, 1), null, null, null);
+        start = System.nanoTime();
+        resolver.query(ProductEntry.SECTIONS_URI, null, null, null, null).close();
+        double cachedMillis = (System.nanoTime() - start) / 1e6;
+        ContentValues rename = new ContentValues();
+        rename.put(ProductEntry.COLUMN_PRODUCT_NAME, "Zebra");
+        resolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, firstId), rename, null, null);
+        start = System.nanoTime();
+        Cursor renamed = resolver.query(ProductEntry.SECTIONS_URI, null, null, null, null);
+        double recountedMillis = (System.nanoTime() - start) / 1e6;
+        renamed.moveToFirst();
+        assertEquals(firstSectionCount - 1,
+                renamed.getInt(renamed.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_COUNT)));
+        renamed.close();
+
+        // A jump reads a page from the first name of the section
+        long worstJumpNanos = 0;
+        sections.moveToPosition(-1);
+        while (sections.moveToNext()) {
+            String startName = sections.getString(sections.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_START));
+            start = System.nanoTime();
+            Cursor page = resolver.query(ProductEntry.buildPageUri(startName, 0, 100), null, null, null, null);
+            page.moveToFirst();
+            worstJumpNanos = Math.max(worstJumpNanos, System.nanoTime() - start);
+            assertEquals(startName.charAt(0), page.getString(page.getColumnIndexOrThrow(
+                    ProductEntry.COLUMN_PRODUCT_NAME)).charAt(0));
+            page.close();
+        }
+        sections.close();
+        Log.i(TAG, String.format(Locale.US, "sections of %d products: counted in %.2f ms, %.3f ms cached,"
+                        + " %.2f ms after a rename, worst jump %.2f ms",
+                products.length, countedMillis, cachedMillis, recountedMillis, worstJumpNanos / 1e6));
+    }
+
+    /**
+     * Measures search latency with 100k products.
+     */
+    public void testSearchLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, buildProducts(100000));
+
+        for (String query : new String[]{"product 4242", "prod", "description 99"}) {
+            long start = System.nanoTime();
+            Cursor cursor = resolver.query(ProductEntry.buildSearchUri(query), null, null, null, null);
+            int results = cursor.getCount();
+            cursor.close();
+            Log.i(TAG, String.format(Locale.US, "search \"%s\": %d results in %.2f ms",
+                    query, results, (System.nanoTime() - start) / 1e6));
+            assertTrue(results > 0);
+        }
+    }
+
+    /**
+     * Measures the latency of looking products up by SKU with 100k products, as a scanner would.
+     */
+    public void testSkuLookupLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        ContentValues[] products = buildProducts(100000);
+        for (int i = 0; i < products.length; i++) {
+            products[i].put(ProductEntry.COLUMN_PRODUCT_SKU, "SKU" + i);
+        }
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, products);
+
+        int lookups = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            Cursor cursor = resolver.query(ProductEntry.buildSkuUri("SKU" + (i * 97 % products.length)),
+                    new String[]{ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+        }
+        Log.i(TAG, String.format(Locale.US, "%d SKU lookups: %.1f us per lookup",
+                lookups, (System.nanoTime() - start) / 1e3 / lookups));
+    }
+
+    /**
+     * Measures the latency of opening products by id, as during a stock count, and logs the row cache counters.
+     */
+    public void testProductOpenLatency() {
+        MockContentResolver resolver = getMockContentResolver();
+        resolver.delete(ProductEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(ProductEntry.CONTENT_URI, buildProducts(1000));
+        Cursor ids = resolver.query(ProductEntry.buildPageUri(null, 0, 20),
+                new String[]{ProductEntry._ID}, null, null, null);
+        long[] productIds = new long[ids.getCount()];
+        for (int i = 0; ids.moveToNext(); i++) {
+            productIds[i] = ids.getLong(0);
+        }
+        ids.close();
+        String[] projection = {ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_QUANTITY};
+        Bundle before = resolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_ROW_CACHE_STATS, null, null);
+
+        int opens = 2000;
+        long start = System.nanoTime();
+        for (int i = 0; i < opens; i++) {
+            Cursor cursor = resolver.query(ContentUris.withAppendedId(ProductEntry.CONTENT_URI,
+                    productIds[i % productIds.length]), projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        double averageMicros = (System.nanoTime() - start) / 1e3 / opens;
+
+        Bundle after = resolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_ROW_CACHE_STATS, null, null);
+        long hits = after.getLong(ProductContract.EXTRA_ROW_CACHE_HITS) - before.getLong(ProductContract.EXTRA_ROW_CACHE_HITS);
+        long misses = after.getLong(ProductContract.EXTRA_ROW_CACHE_MISSES) - before.getLong(ProductContract.EXTRA_ROW_CACHE_MISSES);
+        Log.i(TAG, String.format(Locale.US, "%d product opens: %.1f us per open, %d hits, %d misses",
+                opens, averageMicros, hits, misses));
+        assertEquals(productIds.length, misses);
+
+        // A write drops the cached row
+        Uri productUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productIds[0]);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 7);
+        resolver.update(productUri, values, null, null);
+        Cursor cursor = resolver.query(productUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(7, cursor.getInt(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY)));
+        cursor.close();
+    }
+
+    /**
+     * Measures list query latency percentiles for N readers while one writer keeps selling,
+     * with the rollback journal and with write-ahead logging.
+     */
+    public void testReadLatencyDuringWrites() throws Exception {
+        for (boolean writeAheadLogging : new boolean[]{false, true}) {
+            for (int readers : new int[]{1, 4}) {
+                long[] latencies = measureReadLatencies(writeAheadLogging, readers, 2000);
+                Arrays.sort(latencies);
+                Log.i(TAG, String.format(Locale.US,
+                        "%s, 1 writer + %d readers: %d reads, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms",
+                        writeAheadLogging ? "WAL" : "journal", readers, latencies.length,
+                        percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99)));
+                assertTrue(latencies.length > 0);
+            }
+        }
+    }
+
+    /**
+     * Runs one selling writer and the given amount of list readers for durationMillis.
+     * @return the latency of every read, in nanoseconds.
+     */
+    private long[] measureReadLatencies(boolean writeAheadLogging, int readerCount, final long durationMillis)
+            throws InterruptedException {
+        Context context = getMockContext();
+        String name = "benchmark-" + (writeAheadLogging ? "wal" : "journal") + ".db";
+        context.deleteDatabase(name);
+        final ProductDbHelper helper = new ProductDbHelper(context, name, writeAheadLogging);
+        final SQLiteDatabase database = helper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (ContentValues values : buildProducts(10000)) {
+                database.insert(ProductEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        final long deadline = SystemClock.elapsedRealtime() + durationMillis;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long id = 1;
+                while (SystemClock.elapsedRealtime() < deadline) {
+                    database.execSQL("UPDATE products SET quantity = MAX(quantity - 1, 0), soldQuantity = soldQuantity + 1"
+                            + " WHERE _id = ?", new Object[]{id});
+                    id = id % 10000 + 1;
+                }
+            }
+        });
+        final long[][] readerLatencies = new long[readerCount][];
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            final int reader = i;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    while (SystemClock.elapsedRealtime() < deadline) {
+                        long start = System.nanoTime();
+                        Cursor cursor = database.rawQuery("SELECT * FROM products ORDER BY "
+                                + ProductEntry.SORT_ORDER_NAME + " LIMIT 50", null);
+                        cursor.getCount();
+                        cursor.close();
+                        if (count == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        }
+                        latencies[count++] = System.nanoTime() - start;
+                    }
+                    readerLatencies[reader] = Arrays.copyOf(latencies, count);
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        writer.join();
+        int total = 0;
+        for (int i = 0; i < readerCount; i++) {
+            readers[i].join();
+            total += readerLatencies[i].length;
+        }
+        helper.close();
+        context.deleteDatabase(name);
+
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] latencies : readerLatencies) {
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+            offset += latencies.length;
+        }
+        return all;
+    }
+
+    /**
+     * @return the given percentile of sorted nanosecond values, in milliseconds.
+     */
+    private static double percentile(long[] sortedNanos, int percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = Math.min(sortedNanos.length - 1, sortedNanos.length * percentile / 100);
+        return sortedNanos[index] / 1e6;
+    }
+
+    /**
+     * Builds the given amount of valid products.
+     */
+    static ContentValues[] buildProducts(int count) {
+        ContentValues[] products = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values.put(ProductEntry.COLUMN_PRODUCT_DESCRIPTION, "Description of product " + i);
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, i % 500);
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 100);
+            products[i] = values;
+        }
+        return products;
+    }
+
+    private static void logThroughput(String operation, int rows, long elapsedMillis) {
+        double rowsPerSecond = rows * 1000.0 / Math.max(1, elapsedMillis);
+        Log.i(TAG, String.format(Locale.US, "%s: %d rows in %d ms (%.0f rows/sec)",
+                operation, rows, elapsedMillis, rowsPerSecond));
+    }
+}
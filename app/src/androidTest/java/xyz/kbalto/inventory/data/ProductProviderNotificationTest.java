@@ -0,0 +1,166 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the change notifications of ProductProvider, each of which makes the product list query again.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class ProductProviderNotificationTest {
+    /** Amount of products sold in turn */
+    private static final int PRODUCT_COUNT = 10;
+
+    private RenamingDelegatingContext mDatabaseContext;
+    private CountingResolver mResolver;
+    private ProductProvider mProvider;
+    private long[] mIds;
+
+    @Before
+    public void createProvider() throws Exception {
+        mDatabaseContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mDatabaseContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        mResolver = new CountingResolver();
+        Context context = new IsolatedContext(mResolver, mDatabaseContext);
+        mProvider = new ProductProvider();
+        mProvider.attachInfo(context, null);
+        mResolver.addProvider(ProductContract.CONTENT_AUTHORITY, mProvider);
+
+        mIds = new long[PRODUCT_COUNT];
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 10);
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 1000);
+            mIds[i] = Long.parseLong(mResolver.insert(ProductEntry.CONTENT_URI, values).getLastPathSegment());
+        }
+        waitForNotifications();
+        mResolver.clear();
+    }
+
+    @After
+    public void closeProvider() {
+        mProvider.shutdown();
+        mDatabaseContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void singleSaleNotifiesTheProductOnce() throws Exception {
+        mResolver.update(ProductEntry.buildSellUri(mIds[0], 1), null, null, null);
+        waitForNotifications();
+
+        List<Uri> productNotifications = mResolver.getProductNotifications();
+        assertEquals(1, productNotifications.size());
+        assertEquals(Uri.withAppendedPath(ProductEntry.CONTENT_URI, String.valueOf(mIds[0])),
+                productNotifications.get(0));
+    }
+
+    @Test
+    public void hundredSalesCauseBoundedListRequeries() throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, mResolver.update(ProductEntry.buildSellUri(mIds[i % PRODUCT_COUNT], 1), null, null, null));
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        waitForNotifications();
+
+        // The list observes the products URI and its descendants: every notification is one re-query.
+        int requeries = mResolver.getProductNotifications().size();
+        long frames = elapsed / ChangeNotifier.FRAME_MILLIS + 1;
+        assertTrue(requeries + " re-queries in " + frames + " frames", requeries >= 1 && requeries <= frames + 1);
+        assertTrue(requeries + " re-queries for 100 sales", requeries < 100);
+    }
+
+    @Test
+    public void versionedUpdatesNotifyTheProduct() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 5);
+        // Saved by the editor, based on the version of the new product
+        assertEquals(1, mResolver.update(ProductEntry.buildVersionedUri(mIds[0], 0), values, null, null));
+        waitForNotifications();
+
+        // Observers of the product are notified, not of the versioned URI
+        Uri productUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, mIds[0]);
+        assertTrue(mResolver.getProductNotifications().contains(productUri));
+        for (Uri uri : mResolver.getProductNotifications()) {
+            assertEquals(null, uri.getQueryParameter(ProductContract.QUERY_PARAMETER_VERSION));
+        }
+    }
+
+    @Test
+    public void onlyRenamesNotifyTheSections() throws Exception {
+        mResolver.update(ProductEntry.buildSellUri(mIds[0], 1), null, null, null);
+        ContentValues quantity = new ContentValues();
+        quantity.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 5);
+        mResolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, mIds[1]), quantity, null, null);
+        waitForNotifications();
+        assertFalse(mResolver.hasNotification(ProductEntry.SECTIONS_CHANGED_URI));
+
+        ContentValues name = new ContentValues();
+        name.put(ProductEntry.COLUMN_PRODUCT_NAME, "Renamed");
+        mResolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, mIds[2]), name, null, null);
+        waitForNotifications();
+        assertTrue(mResolver.hasNotification(ProductEntry.SECTIONS_CHANGED_URI));
+    }
+
+    private static void waitForNotifications() throws InterruptedException {
+        Thread.sleep(ChangeNotifier.FRAME_MILLIS * 5);
+    }
+
+    /**
+     * Records the notified URIs instead of sending them.
+     */
+    private static class CountingResolver extends MockContentResolver {
+        private final List<Uri> mNotifications = new ArrayList<>();
+
+        @Override
+        public synchronized void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            mNotifications.add(uri);
+        }
+
+        synchronized void clear() {
+            mNotifications.clear();
+        }
+
+        synchronized boolean hasNotification(Uri uri) {
+            return mNotifications.contains(uri);
+        }
+
+        /**
+         * @return the notifications that reach an observer of the products URI and its descendants.
+         */
+        synchronized List<Uri> getProductNotifications() {
+            List<Uri> productNotifications = new ArrayList<>();
+            for (Uri uri : mNotifications) {
+                if (uri.toString().startsWith(ProductEntry.CONTENT_URI.toString())) {
+                    productNotifications.add(uri);
+                }
+            }
+            return productNotifications;
+        }
+    }
+}
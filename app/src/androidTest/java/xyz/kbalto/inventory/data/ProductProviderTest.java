@@ -0,0 +1,212 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks what ProductProvider reads back after its writes, on a database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class ProductProviderTest {
+    private RenamingDelegatingContext mDatabaseContext;
+    private MockContentResolver mResolver;
+    private ProductProvider mProvider;
+
+    @Before
+    public void createProvider() throws Exception {
+        mDatabaseContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mDatabaseContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        mResolver = new MockContentResolver();
+        Context context = new IsolatedContext(mResolver, mDatabaseContext);
+        mProvider = new ProductProvider();
+        mProvider.attachInfo(context, null);
+        mResolver.addProvider(ProductContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    @After
+    public void closeProvider() {
+        mProvider.shutdown();
+        mDatabaseContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void renamesUpdateTheSections() throws Exception {
+        Uri apple = insertProduct("Apple", 10);
+        Uri banana = insertProduct("Banana", 10);
+        assertEquals(Arrays.asList("A", "B"), readSectionLabels());
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Cherry");
+        assertEquals(1, mResolver.update(banana, values, null, null));
+        assertEquals(Arrays.asList("A", "C"), readSectionLabels());
+
+        // Saved by the editor, based on the version it read
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Date");
+        assertEquals(1, mResolver.update(ProductEntry.buildVersionedUri(ContentUris.parseId(apple), 0),
+                values, null, null));
+        assertEquals(Arrays.asList("C", "D"), readSectionLabels());
+
+        // Sales don't change the names
+        mResolver.update(ProductEntry.buildSellUri(ContentUris.parseId(apple), 1), null, null, null);
+        assertEquals(Arrays.asList("C", "D"), readSectionLabels());
+    }
+
+    @Test
+    public void editBasedOnAnOlderVersionIsRejected() throws Exception {
+        Uri productUri = insertProduct("Apple", 10);
+        long id = ContentUris.parseId(productUri);
+        long version = readVersion(productUri);
+        // A sale while the product is edited
+        mResolver.update(ProductEntry.buildSellUri(id, 1), null, null, null);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 5);
+        assertEquals(0, mResolver.update(ProductEntry.buildVersionedUri(id, version), values, null, null));
+
+        // Saved again after reading the product again
+        assertEquals(1, mResolver.update(ProductEntry.buildVersionedUri(id, readVersion(productUri)),
+                values, null, null));
+        // Updates without a version bump it too, through the trigger
+        version = readVersion(productUri);
+        ContentValues name = new ContentValues();
+        name.put(ProductEntry.COLUMN_PRODUCT_NAME, "Renamed");
+        mResolver.update(productUri, name, null, null);
+        assertEquals(version + 1, readVersion(productUri));
+    }
+
+    @Test
+    public void pagesSortedByPriceIncludeProductsWithoutAPrice() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 1);
+            if (i % 3 == 0) {
+                values.putNull(ProductEntry.COLUMN_PRODUCT_PRICE);
+            } else if (i % 3 == 1) {
+                values.put(ProductEntry.COLUMN_PRODUCT_PRICE, i);
+            }
+            ids.add(ContentUris.parseId(mResolver.insert(ProductEntry.CONTENT_URI, values)));
+        }
+
+        ProductQuery query = new ProductQuery().setSort(ProductQuery.Sort.PRICE, false);
+        List<Long> paged = new ArrayList<>();
+        String afterPrice = null;
+        long afterId = 0;
+        for (int page = 0; page < ids.size(); page++) {
+            Cursor cursor = mResolver.query(query.buildPageUri(afterPrice, afterId, 2),
+                    new String[]{ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_PRICE}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    paged.add(cursor.getLong(0));
+                    afterPrice = cursor.getString(1);
+                    afterId = cursor.getLong(0);
+                }
+                if (cursor.getCount() < 2) {
+                    break;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        // Every product once: the products without a price cost 0
+        assertEquals(ids.size(), paged.size());
+        assertEquals(new HashSet<>(ids), new HashSet<>(paged));
+        Cursor free = mResolver.query(new ProductQuery().setPriceRange(0L, 0L).buildUri(), null, null, null, null);
+        try {
+            assertEquals(5, free.getCount());
+        } finally {
+            free.close();
+        }
+
+        ContentValues noPrice = new ContentValues();
+        noPrice.putNull(ProductEntry.COLUMN_PRODUCT_PRICE);
+        try {
+            mResolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, ids.get(1)), noPrice, null, null);
+            fail("Updated a product to a NULL price");
+        } catch (IllegalArgumentException expected) {
+            // The price stays
+        }
+    }
+
+    @Test
+    public void filtersOfTheListSortedByNameKeepTheirRows() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insertProduct("Product " + i, i);
+        }
+        // Written "+quantity" and "+price" so the name index sorts them
+        assertEquals(5, countPage(new ProductQuery().setStockRange(1L, 5L)));
+        assertEquals(9, countPage(new ProductQuery().setStockRange(1L, null)));
+        assertEquals(1, countPage(new ProductQuery().setOutOfStock()));
+        assertEquals(10, countPage(new ProductQuery().setPriceRange(10L, 10L)));
+        assertEquals(0, countPage(new ProductQuery().setPriceRange(11L, null)));
+    }
+
+    private Uri insertProduct(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 10);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        return mResolver.insert(ProductEntry.CONTENT_URI, values);
+    }
+
+    private long readVersion(Uri productUri) {
+        Cursor cursor = mResolver.query(productUri, new String[]{ProductEntry.COLUMN_PRODUCT_VERSION}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the amount of products of the first page of the query.
+     */
+    private int countPage(ProductQuery query) {
+        Cursor cursor = mResolver.query(query.buildPageUri(null, 0, 100), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> readSectionLabels() {
+        Cursor cursor = mResolver.query(ProductEntry.SECTIONS_URI, null, null, null, null);
+        try {
+            List<String> labels = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                labels.add(cursor.getString(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_LABEL)));
+            }
+            return labels;
+        } finally {
+            cursor.close();
+        }
+    }
+}
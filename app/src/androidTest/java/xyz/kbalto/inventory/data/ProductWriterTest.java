@@ -0,0 +1,92 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentResolver;
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that writes run off the main thread in the order they were submitted, and that their results,
+ * failures included, are handed back on the main thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductWriterTest {
+    private ProductWriter mWriter;
+
+    @Before
+    public void createWriter() {
+        mWriter = new ProductWriter(new MockContentResolver());
+    }
+
+    @Test
+    public void writesRunInOrderAndCallBackOnTheMainThread() throws Exception {
+        final int count = 10;
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(count);
+        final boolean[] onMainThread = {true, false};
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            mWriter.submit(new ProductWriter.Write<Integer>() {
+                @Override
+                public Integer run(ContentResolver resolver) {
+                    onMainThread[1] |= Looper.myLooper() == Looper.getMainLooper();
+                    written.add(index);
+                    return index;
+                }
+            }, new ProductWriter.Callback<Integer>() {
+                @Override
+                public void onWritten(Integer result) {
+                    onMainThread[0] &= Looper.myLooper() == Looper.getMainLooper();
+                    delivered.add(result);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, written);
+        assertEquals(expected, delivered);
+        assertTrue(onMainThread[0]);
+        assertFalse(onMainThread[1]);
+    }
+
+    @Test
+    public void failedWriteCallsBackWithNull() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = {"not delivered"};
+        mWriter.submit(new ProductWriter.Write<Integer>() {
+            @Override
+            public Integer run(ContentResolver resolver) {
+                throw new IllegalArgumentException("Product requires a name");
+            }
+        }, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onWritten(Integer rowsUpdated) {
+                result[0] = rowsUpdated;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(result[0]);
+    }
+}
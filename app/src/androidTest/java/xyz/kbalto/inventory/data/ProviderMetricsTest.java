@@ -0,0 +1,120 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import xyz.kbalto.inventory.data.ProductContract.MetricsEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the counters and histograms of the provider metrics, and that only slow operations are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProviderMetricsTest {
+    private static final int PRODUCTS = 100;
+    private static final int PRODUCT_ID = 101;
+
+    private ProviderMetrics mMetrics;
+
+    @Before
+    public void createMetrics() {
+        mMetrics = new ProviderMetrics(new int[]{PRODUCTS, PRODUCT_ID}, new String[]{"products", "products/#"});
+    }
+
+    @Test
+    public void operationsAreCountedPerUriAndOperation() {
+        for (int i = 0; i < 10; i++) {
+            mMetrics.record(PRODUCTS, ProviderMetrics.OPERATION_QUERY, mMetrics.start(), 50, ProductEntry.CONTENT_URI);
+        }
+        mMetrics.record(PRODUCT_ID, ProviderMetrics.OPERATION_UPDATE, mMetrics.start(), 1,
+                ProductEntry.buildVersionedUri(1, 0));
+        // Not measured
+        mMetrics.record(-1, ProviderMetrics.OPERATION_QUERY, mMetrics.start(), 1, ProductEntry.CONTENT_URI);
+
+        Cursor cursor = mMetrics.queryOperations();
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("products", cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_URI)));
+            assertEquals("query", cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_OPERATION)));
+            assertEquals(10, cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_COUNT)));
+            assertEquals(500, cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ROWS)));
+            long max = cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_MAX_MICROS));
+            assertTrue(cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_P99_MICROS)) <= max);
+            String[] histogram = cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_HISTOGRAM))
+                    .split(",");
+            assertEquals(ProviderMetrics.BUCKET_COUNT, histogram.length);
+            long total = 0;
+            for (String bucket : histogram) {
+                total += Long.parseLong(bucket);
+            }
+            assertEquals(10, total);
+
+            cursor.moveToNext();
+            assertEquals("products/#", cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_URI)));
+            assertEquals("update", cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_OPERATION)));
+            assertEquals(1, cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_COUNT)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void onlySlowOperationsAreLogged() {
+        mMetrics.record(PRODUCTS, ProviderMetrics.OPERATION_QUERY, mMetrics.start(), 1, ProductEntry.CONTENT_URI);
+        long slowStart = mMetrics.start() - TimeUnit.MILLISECONDS.toNanos(ProviderMetrics.SLOW_QUERY_MILLIS);
+        mMetrics.record(PRODUCTS, ProviderMetrics.OPERATION_DELETE, slowStart, 7, ProductEntry.CONTENT_URI);
+
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        Cursor cursor = mMetrics.querySlowQueries(database);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("delete", cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_OPERATION)));
+            assertEquals(7, cursor.getInt(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ROWS)));
+            assertTrue(cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_DURATION_MICROS))
+                    >= TimeUnit.MILLISECONDS.toMicros(ProviderMetrics.SLOW_QUERY_MILLIS));
+            // No query was compiled during the delete
+            assertTrue(cursor.isNull(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_SQL)));
+        } finally {
+            cursor.close();
+            database.close();
+        }
+    }
+
+    @Test
+    public void slowQueryLogKeepsTheNewestOperations() {
+        long slowNanos = TimeUnit.MILLISECONDS.toNanos(ProviderMetrics.SLOW_QUERY_MILLIS);
+        for (int i = 0; i < ProviderMetrics.SLOW_QUERY_LOG_SIZE + 5; i++) {
+            mMetrics.record(PRODUCTS, ProviderMetrics.OPERATION_INSERT, mMetrics.start() - slowNanos, i,
+                    ProductEntry.CONTENT_URI);
+        }
+
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        Cursor cursor = mMetrics.querySlowQueries(database);
+        try {
+            assertEquals(ProviderMetrics.SLOW_QUERY_LOG_SIZE, cursor.getCount());
+            cursor.moveToFirst();
+            // Newest first
+            assertEquals(ProviderMetrics.SLOW_QUERY_LOG_SIZE + 4,
+                    cursor.getInt(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ROWS)));
+            cursor.moveToLast();
+            assertEquals(5, cursor.getInt(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ROWS)));
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+            database.close();
+        }
+    }
+}
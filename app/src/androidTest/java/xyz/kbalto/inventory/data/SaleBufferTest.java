@@ -0,0 +1,194 @@
+package xyz.kbalto.inventory.data;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a burst of sales is sent as one batch, that a batch that fails stays pending and is sent again,
+ * and that the journal of a process that died is sent again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleBufferTest {
+    private Instrumentation mInstrumentation;
+    private File mDirectory;
+    private MockContentResolver mResolver;
+    /** Extras of the batches received by the fake provider */
+    private final List<Bundle> mBatches = Collections.synchronizedList(new ArrayList<Bundle>());
+    /** Ids of the batches received, sent again ones included */
+    private final List<String> mBatchIds = Collections.synchronizedList(new ArrayList<String>());
+    /** Counted down by every batch received */
+    private volatile CountDownLatch mSent;
+    /** Amount of the next batches the fake provider fails */
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    @Before
+    public void createResolver() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(context.getCacheDir(), "sale-buffer-test");
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ProductContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public Bundle call(String method, String arg, Bundle extras) {
+                assertEquals(ProductContract.METHOD_SELL_BATCH, method);
+                mBatchIds.add(arg);
+                if (mFailures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Database unavailable");
+                }
+                mBatches.add(extras);
+                Bundle result = new Bundle();
+                result.putBoolean(ProductContract.EXTRA_APPLIED, true);
+                result.putLongArray(ProductContract.EXTRA_REJECTED_IDS, new long[0]);
+                mSent.countDown();
+                return result;
+            }
+        });
+    }
+
+    @After
+    public void deleteFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void burstIsSentAsOneBatch() throws Exception {
+        mSent = new CountDownLatch(1);
+        final SaleBuffer[] buffer = new SaleBuffer[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                buffer[0] = new SaleBuffer(mResolver, mDirectory);
+                for (int i = 0; i < 10; i++) {
+                    buffer[0].sell(1, 1);
+                }
+                buffer[0].sell(2, 5);
+                assertEquals(10, buffer[0].getPendingCount(1));
+                buffer[0].flush();
+            }
+        });
+
+        assertTrue(mSent.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mBatches.size());
+        assertArrayEquals(new long[]{1, 2}, mBatches.get(0).getLongArray(ProductContract.EXTRA_PRODUCT_IDS));
+        assertArrayEquals(new int[]{10, 5}, mBatches.get(0).getIntArray(ProductContract.EXTRA_COUNTS));
+    }
+
+    @Test
+    public void failedBatchStaysPendingAndIsSentAgain() throws Exception {
+        mSent = new CountDownLatch(1);
+        mFailures.set(1);
+        final CountDownLatch delayed = new CountDownLatch(1);
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final int[] outcome = new int[2];
+        final SaleBuffer[] buffer = new SaleBuffer[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                buffer[0] = new SaleBuffer(mResolver, mDirectory);
+                buffer[0].addListener(new SaleBuffer.Listener() {
+                    @Override
+                    public void onPendingSalesChanged(long productId) {
+                    }
+
+                    @Override
+                    public void onSalesFlushed(long productId, int sold, int rejected) {
+                        outcome[0] = sold;
+                        outcome[1] = rejected;
+                        flushed.countDown();
+                    }
+
+                    @Override
+                    public void onSalesDelayed(int failures) {
+                        delayed.countDown();
+                    }
+                });
+                buffer[0].sell(3, 2);
+                buffer[0].flush();
+            }
+        });
+
+        assertTrue(delayed.await(5, TimeUnit.SECONDS));
+        // Not rejected: still pending, until the batch is sent again
+        assertFalse(flushed.await(0, TimeUnit.SECONDS));
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(2, buffer[0].getPendingCount(3));
+            }
+        });
+
+        assertTrue(mSent.await(SaleBuffer.RETRY_DELAY_MILLIS + 5000, TimeUnit.MILLISECONDS));
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(2, outcome[0]);
+        assertEquals(0, outcome[1]);
+        // Sent again under the same id, so the provider skips it if the first call was applied after all
+        assertEquals(2, mBatchIds.size());
+        assertEquals(mBatchIds.get(0), mBatchIds.get(1));
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(0, buffer[0].getPendingCount(3));
+            }
+        });
+    }
+
+    @Test
+    public void journalOfDeadProcessIsReplayed() throws Exception {
+        // Journal left by a process killed in the middle of a write
+        assertTrue(mDirectory.isDirectory() || mDirectory.mkdirs());
+        OutputStream journal = new FileOutputStream(new File(mDirectory, SaleBuffer.JOURNAL_NAME));
+        try {
+            journal.write("7 2\n12 3\n7 1\n9".getBytes("US-ASCII"));
+        } finally {
+            journal.close();
+        }
+
+        mSent = new CountDownLatch(1);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                new SaleBuffer(mResolver, mDirectory);
+            }
+        });
+
+        assertTrue(mSent.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{7, 12}, mBatches.get(0).getLongArray(ProductContract.EXTRA_PRODUCT_IDS));
+        assertArrayEquals(new int[]{3, 3}, mBatches.get(0).getIntArray(ProductContract.EXTRA_COUNTS));
+        // The journal is deleted once sent
+        for (int i = 0; i < 50 && mDirectory.list().length != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mDirectory.list().length);
+    }
+}
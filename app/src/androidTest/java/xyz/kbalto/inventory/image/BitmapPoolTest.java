@@ -0,0 +1,56 @@
+package xyz.kbalto.inventory.image;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks how BitmapPool picks and evicts bitmaps.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapPoolTest {
+
+    @Test
+    public void reusesBitmapOfSameSize() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(256, 192, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.get(256, 192, Bitmap.Config.ARGB_8888, 1));
+        assertEquals(0, pool.size());
+        assertNull(pool.get(256, 192, Bitmap.Config.ARGB_8888, 1));
+    }
+
+    @Test
+    public void reusesLargerBitmapFromKitKat() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        Bitmap reused = pool.get(256, 192, Bitmap.Config.ARGB_8888, 1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            assertSame(bitmap, reused);
+        } else {
+            assertNull(reused);
+        }
+    }
+
+    @Test
+    public void evictsLargestBitmapsOverMaximumSize() {
+        Bitmap small = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap large = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        BitmapPool pool = new BitmapPool(BitmapPool.getAllocationSize(large));
+        pool.put(small);
+        pool.put(large);
+
+        assertEquals(BitmapPool.getAllocationSize(small), pool.size());
+        assertSame(small, pool.get(100, 100, Bitmap.Config.ARGB_8888, 1));
+    }
+}
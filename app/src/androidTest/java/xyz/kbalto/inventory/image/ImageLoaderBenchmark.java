@@ -0,0 +1,317 @@
+package xyz.kbalto.inventory.image;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import xyz.kbalto.inventory.R;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrolls a simulated list of 1,000 photographed products, binding rows on the main thread the way
+ * ProductListAdapter does, and logs janky frames and memory with the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageLoaderBenchmark {
+    /** Tag for the benchmark results */
+    private static final String TAG = "ImageBenchmark";
+    /** Size of the generated camera photos */
+    private static final int PHOTO_WIDTH = 2048;
+    private static final int PHOTO_HEIGHT = 1536;
+    /** Amount of products of the catalog */
+    private static final int PHOTO_COUNT = 1000;
+    /** Rows visible at the same time, whose views are recycled */
+    private static final int VISIBLE_ROWS = 8;
+    /** Rows bound per frame while flinging */
+    private static final int ROWS_PER_FRAME = 2;
+    /** Frame budget at 60 fps, in nanoseconds */
+    private static final long FRAME_NANOS = 16666667;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private File mPhotoDirectory;
+    private File mCacheDirectory;
+    private Uri[] mPhotos;
+    /** Image views of the visible rows */
+    private ImageView[] mViews;
+
+    @Before
+    public void createPhotos() throws IOException {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mPhotoDirectory = new File(mContext.getCacheDir(), "benchmark-photos");
+        mCacheDirectory = new File(mContext.getCacheDir(), "benchmark-thumbnails");
+        deleteDirectory(mCacheDirectory);
+        assertTrue(mPhotoDirectory.isDirectory() || mPhotoDirectory.mkdirs());
+
+        // Every product has its own file, with the same content to keep the setup fast.
+        Bitmap photo = Bitmap.createBitmap(PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(photo);
+        canvas.drawColor(Color.DKGRAY);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.YELLOW);
+        canvas.drawCircle(PHOTO_WIDTH / 2, PHOTO_HEIGHT / 2, PHOTO_HEIGHT / 3, paint);
+        File first = new File(mPhotoDirectory, "photo-0.jpg");
+        OutputStream output = new FileOutputStream(first);
+        try {
+            photo.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        } finally {
+            output.close();
+        }
+        photo.recycle();
+
+        mPhotos = new Uri[PHOTO_COUNT];
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            File file = new File(mPhotoDirectory, "photo-" + i + ".jpg");
+            if (i != 0 && !file.exists()) {
+                copy(first, file);
+            }
+            mPhotos[i] = Uri.fromFile(file);
+        }
+    }
+
+    @After
+    public void deletePhotos() {
+        deleteDirectory(mPhotoDirectory);
+        deleteDirectory(mCacheDirectory);
+    }
+
+    /**
+     * Binds the first 100 rows with ImageView.setImageURI() (full decode on the main thread) as the
+     * baseline, then the 1,000 rows with the ImageLoader, cold and again from the caches.
+     */
+    @Test
+    public void scrollCatalog() throws Exception {
+        final ImageView[] views = createRowImageViews();
+        logScroll("setImageURI", 100, new Binder() {
+            @Override
+            public void bind(int row, ImageView view) {
+                view.setImageURI(mPhotos[row]);
+            }
+        });
+        Log.i(TAG, String.format(Locale.US, "setImageURI: %d KB per visible row",
+                PHOTO_WIDTH * PHOTO_HEIGHT * 4 / 1024));
+        releaseViews(views);
+
+        final ImageLoader loader = new ImageLoader(mContext, 8 * 1024 * 1024, 4 * 1024 * 1024,
+                mCacheDirectory, 32 * 1024 * 1024);
+        Binder loaderBinder = new Binder() {
+            @Override
+            public void bind(int row, ImageView view) {
+                loader.load(mPhotos[row], view, R.drawable.placeholder);
+            }
+        };
+        long heapBefore = usedMemory();
+        logScroll("ImageLoader (cold)", PHOTO_COUNT, loaderBinder);
+        logScroll("ImageLoader (cached)", PHOTO_COUNT, loaderBinder);
+        Log.i(TAG, String.format(Locale.US, "ImageLoader: memory cache %d KB, heap growth %d KB, disk cache %d KB",
+                loader.getMemoryCacheSize() / 1024, (usedMemory() - heapBefore) / 1024,
+                directorySize(mCacheDirectory) / 1024));
+    }
+
+    /**
+     * Scrolls the 1,000 rows through a small memory cache, so most rows are decoded again from the disk cache,
+     * without and with the bitmap pool, and logs the bytes allocated and the GCs per 1,000 rows scrolled.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void allocationPerThousandRows() throws Exception {
+        createRowImageViews();
+        for (int poolBytes : new int[]{0, 4 * 1024 * 1024}) {
+            deleteDirectory(mCacheDirectory);
+            final ImageLoader loader = new ImageLoader(mContext, 1024 * 1024, poolBytes,
+                    mCacheDirectory, 32 * 1024 * 1024);
+            Binder binder = new Binder() {
+                @Override
+                public void bind(int row, ImageView view) {
+                    loader.load(mPhotos[row], view, R.drawable.placeholder);
+                }
+            };
+            // Fill the disk cache, then measure the scroll that decodes thumbnails from it.
+            logScroll("warm-up", PHOTO_COUNT, binder);
+            Thread.sleep(1000);
+
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocSize();
+            Debug.resetGlobalGcInvocationCount();
+            logScroll(poolBytes == 0 ? "without pool" : "with pool", PHOTO_COUNT, binder);
+            Thread.sleep(1000);
+            long allocated = Debug.getGlobalAllocSize();
+            int gcs = Debug.getGlobalGcInvocationCount();
+            Debug.stopAllocCounting();
+            Log.i(TAG, String.format(Locale.US, "%s: %d KB allocated and %d GCs per 1,000 rows, pool %d KB",
+                    poolBytes == 0 ? "without pool" : "with pool", allocated * 1000 / PHOTO_COUNT / 1024,
+                    gcs * 1000 / PHOTO_COUNT, loader.getPoolSize() / 1024));
+            releaseViews(mViews);
+        }
+    }
+
+    /**
+     * Flings through 200 rows without and with prefetching the row a few rows below the visible ones,
+     * and logs the share of rows bound straight from memory instead of with a placeholder.
+     */
+    @Test
+    public void prefetchAhead() throws Exception {
+        createRowImageViews();
+        final int rows = 200;
+        for (final int lookahead : new int[]{0, 8}) {
+            deleteDirectory(mCacheDirectory);
+            final ImageLoader loader = new ImageLoader(mContext, 8 * 1024 * 1024, 4 * 1024 * 1024,
+                    mCacheDirectory, 32 * 1024 * 1024);
+            final int[] hits = new int[1];
+            logScroll(lookahead == 0 ? "without prefetch" : "with prefetch", rows, new Binder() {
+                @Override
+                public void bind(int row, ImageView view) {
+                    loader.load(mPhotos[row], view, R.drawable.placeholder);
+                    if (view.getTag(R.id.image_request) == null) {
+                        hits[0]++;
+                    }
+                    int ahead = row + VISIBLE_ROWS + lookahead;
+                    if (lookahead != 0 && ahead < rows) {
+                        loader.prefetch(mPhotos[ahead], view, null);
+                    }
+                }
+            });
+            Log.i(TAG, String.format(Locale.US, "%s: %d%% of %d rows bound from memory",
+                    lookahead == 0 ? "without prefetch" : "with prefetch", hits[0] * 100 / rows, rows));
+            releaseViews(mViews);
+        }
+    }
+
+    private interface Binder {
+        void bind(int row, ImageView view);
+    }
+
+    private ImageView[] createRowImageViews() {
+        final int size = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 80,
+                mContext.getResources().getDisplayMetrics());
+        mViews = new ImageView[VISIBLE_ROWS];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < VISIBLE_ROWS; i++) {
+                    mViews[i] = new ImageView(mContext);
+                    mViews[i].setLayoutParams(new ViewGroup.LayoutParams(size, size));
+                }
+            }
+        });
+        return mViews;
+    }
+
+    private void releaseViews(final ImageView[] views) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (ImageView view : views) {
+                    view.setImageDrawable(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Binds the rows a frame at a time on the main thread, recycling the views, and logs the frames
+     * whose binding alone took longer than the frame budget.
+     */
+    private void logScroll(String name, int rows, final Binder binder) throws InterruptedException {
+        final long[] frameNanos = new long[(rows + ROWS_PER_FRAME - 1) / ROWS_PER_FRAME];
+        for (int frame = 0; frame < frameNanos.length; frame++) {
+            final int firstRow = frame * ROWS_PER_FRAME;
+            final int lastRow = Math.min(rows, firstRow + ROWS_PER_FRAME);
+            final int index = frame;
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    for (int row = firstRow; row < lastRow; row++) {
+                        binder.bind(row, mViews[row % VISIBLE_ROWS]);
+                    }
+                    frameNanos[index] = System.nanoTime() - start;
+                }
+            });
+            Thread.sleep(FRAME_NANOS / 1000000);
+        }
+
+        int janky = 0;
+        long worst = 0;
+        long total = 0;
+        for (long nanos : frameNanos) {
+            if (nanos > FRAME_NANOS) {
+                janky++;
+            }
+            worst = Math.max(worst, nanos);
+            total += nanos;
+        }
+        Log.i(TAG, String.format(Locale.US, "%s: %d rows, %d/%d janky frames, bind %.2f ms avg, %.2f ms worst",
+                name, rows, janky, frameNanos.length, total / 1e6 / frameNanos.length, worst / 1e6));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    private static long directorySize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,190 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import xyz.kbalto.inventory.data.ProductContract;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recompresses a sample set of camera-sized photos and logs the bytes saved and the full decode time
+ * before and after with the {@link #TAG} tag. Half of the photos are portrait shots, stored landscape
+ * with an EXIF orientation as cameras do, and must come out upright.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageRecompressorBenchmark {
+    /** Tag for the benchmark results */
+    private static final String TAG = "ImageBenchmark";
+    /** Size of the generated camera photos */
+    private static final int PHOTO_WIDTH = 3264;
+    private static final int PHOTO_HEIGHT = 2448;
+    /** Amount of photos of the sample set */
+    private static final int PHOTO_COUNT = 8;
+    /** Settings of the recompressor, as in config.xml */
+    private static final int MAX_SIZE = 2048;
+    private static final int QUALITY = 80;
+
+    private File mDirectory;
+    private Uri[] mPhotos;
+    /** Products updated by the recompressor */
+    private int mUpdatedProducts;
+
+    @Before
+    public void createPhotos() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(context.getCacheDir(), "recompress-benchmark");
+        assertTrue(mDirectory.isDirectory() || mDirectory.mkdirs());
+
+        // Gradients, shapes and noise, so the encoders have something like a photo to work with.
+        Random random = new Random(42);
+        Bitmap photo = Bitmap.createBitmap(PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(photo);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPhotos = new Uri[PHOTO_COUNT];
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            paint.setShader(new LinearGradient(0, 0, PHOTO_WIDTH, PHOTO_HEIGHT,
+                    random.nextInt() | Color.BLACK, random.nextInt() | Color.BLACK, Shader.TileMode.CLAMP));
+            canvas.drawPaint(paint);
+            paint.setShader(null);
+            for (int shape = 0; shape < 20; shape++) {
+                paint.setColor(random.nextInt() | Color.BLACK);
+                canvas.drawCircle(random.nextInt(PHOTO_WIDTH), random.nextInt(PHOTO_HEIGHT),
+                        50 + random.nextInt(PHOTO_HEIGHT / 4), paint);
+            }
+            for (int dot = 0; dot < 20000; dot++) {
+                paint.setColor(random.nextInt());
+                canvas.drawPoint(random.nextInt(PHOTO_WIDTH), random.nextInt(PHOTO_HEIGHT), paint);
+            }
+            File file = new File(mDirectory, "photo-" + i + ".jpg");
+            OutputStream output = new FileOutputStream(file);
+            try {
+                photo.compress(Bitmap.CompressFormat.JPEG, 95, output);
+            } finally {
+                output.close();
+            }
+            if (isPortrait(i)) {
+                ExifInterface exif = new ExifInterface(file.getPath());
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                        String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+                exif.saveAttributes();
+            }
+            mPhotos[i] = Uri.fromFile(file);
+        }
+        photo.recycle();
+    }
+
+    @After
+    public void deletePhotos() {
+        delete(mDirectory);
+    }
+
+    @Test
+    public void recompressSampleSet() throws Exception {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ProductContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+                assertNotNull(values.getAsString(ProductEntry.COLUMN_PRODUCT_PICTURE));
+                mUpdatedProducts++;
+                return 1;
+            }
+        });
+        ImageStore store = new ImageStore(resolver, new File(mDirectory, "images"), new File(mDirectory, "capture"),
+                new File(mDirectory, "thumbnails"));
+        ImageRecompressor recompressor = new ImageRecompressor(resolver, store, mDirectory, MAX_SIZE, QUALITY);
+
+        long originalBytes = 0;
+        long recompressedBytes = 0;
+        long originalDecodeNanos = 0;
+        long recompressedDecodeNanos = 0;
+        long recompressNanos = 0;
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            Uri photo = mPhotos[i];
+            originalBytes += new File(photo.getPath()).length();
+            originalDecodeNanos += timeDecode(photo);
+
+            long start = System.nanoTime();
+            Uri replacement = recompressor.recompress(photo);
+            recompressNanos += System.nanoTime() - start;
+
+            assertNotNull(replacement);
+            // No EXIF in the replacement: a portrait photo has portrait pixels
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(replacement.getPath(), bounds);
+            assertEquals(isPortrait(i) ? MAX_SIZE * PHOTO_HEIGHT / PHOTO_WIDTH : MAX_SIZE, bounds.outWidth);
+            assertEquals(isPortrait(i) ? MAX_SIZE : MAX_SIZE * PHOTO_HEIGHT / PHOTO_WIDTH, bounds.outHeight);
+            recompressedBytes += new File(replacement.getPath()).length();
+            recompressedDecodeNanos += timeDecode(replacement);
+        }
+
+        assertEquals(PHOTO_COUNT, mUpdatedProducts);
+        assertTrue(recompressedBytes < originalBytes);
+        Log.i(TAG, String.format(Locale.US, "recompression (%s, %dpx, q%d): %d photos, %d KB -> %d KB (%.0f%% saved),"
+                        + " %.1f ms per photo",
+                ImageRecompressor.getFormat(), MAX_SIZE, QUALITY, PHOTO_COUNT, originalBytes / 1024,
+                recompressedBytes / 1024, 100.0 * (originalBytes - recompressedBytes) / originalBytes,
+                recompressNanos / 1e6 / PHOTO_COUNT));
+        Log.i(TAG, String.format(Locale.US, "full decode: %.1f ms per original, %.1f ms per recompressed photo",
+                originalDecodeNanos / 1e6 / PHOTO_COUNT, recompressedDecodeNanos / 1e6 / PHOTO_COUNT));
+    }
+
+    /**
+     * @return whether the photo at this index was taken upright, and so has an EXIF rotation.
+     */
+    private static boolean isPortrait(int index) {
+        return index % 2 == 1;
+    }
+
+    /**
+     * @return the time taken to decode the whole image, in nanoseconds.
+     */
+    private static long timeDecode(Uri image) {
+        long start = System.nanoTime();
+        Bitmap bitmap = BitmapFactory.decodeFile(image.getPath());
+        long elapsed = System.nanoTime() - start;
+        assertNotNull(bitmap);
+        bitmap.recycle();
+        return elapsed;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
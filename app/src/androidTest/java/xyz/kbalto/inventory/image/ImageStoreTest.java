@@ -0,0 +1,110 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import xyz.kbalto.inventory.data.ProductContract;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the deduplication of the stored photos and the collection of the unreferenced ones.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageStoreTest {
+    private File mRoot;
+    private ImageStore mStore;
+    /** Pictures of the products, as returned by the fake provider */
+    private final MatrixCursor mProducts = new MatrixCursor(new String[]{ProductEntry.COLUMN_PRODUCT_PICTURE,
+            ProductEntry.COLUMN_PRODUCT_THUMBNAIL, ProductEntry.COLUMN_PRODUCT_PREVIEW});
+
+    @Before
+    public void createStore() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mRoot = new File(context.getCacheDir(), "image-store-test");
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ProductContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                String sortOrder) {
+                return mProducts;
+            }
+        });
+        mStore = new ImageStore(resolver, new File(mRoot, "images"), new File(mRoot, "capture"),
+                new File(mRoot, "thumbnails"));
+    }
+
+    @After
+    public void deleteFiles() {
+        delete(mRoot);
+    }
+
+    @Test
+    public void samePhotoIsStoredOnce() throws Exception {
+        Uri first = mStore.store(writeCapture(new byte[]{1, 2, 3}));
+        Uri second = mStore.store(writeCapture(new byte[]{1, 2, 3}));
+        Uri other = mStore.store(writeCapture(new byte[]{4, 5, 6}));
+
+        assertEquals(first, second);
+        assertFalse(first.equals(other));
+        assertEquals(2, new File(mRoot, "images").listFiles().length);
+    }
+
+    @Test
+    public void collectsOnlyOldUnreferencedPhotos() throws Exception {
+        Uri referenced = mStore.store(writeCapture(new byte[]{1}));
+        Uri orphan = mStore.store(writeCapture(new byte[]{2}));
+        Uri recent = mStore.store(writeCapture(new byte[]{3}));
+        mProducts.addRow(new Object[]{referenced.toString(), null, null});
+        long now = System.currentTimeMillis();
+        long old = now - ImageStore.GRACE_PERIOD_MILLIS - 1000;
+        assertTrue(new File(referenced.getPath()).setLastModified(old));
+        assertTrue(new File(orphan.getPath()).setLastModified(old));
+
+        assertEquals(1, mStore.collect(now));
+
+        assertTrue(new File(referenced.getPath()).exists());
+        assertFalse(new File(orphan.getPath()).exists());
+        assertTrue(new File(recent.getPath()).exists());
+    }
+
+    private File writeCapture(byte[] content) throws IOException {
+        File capture = mStore.createCaptureFile();
+        OutputStream output = new FileOutputStream(capture);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return capture;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import xyz.kbalto.inventory.data.ProductContract;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the sizes of the thumbnails made from a camera-sized photo.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailPipelineTest {
+    private File mDirectory;
+    private Uri mPhoto;
+    /** Values of the last product update */
+    private ContentValues mUpdatedValues;
+    /** Selection arguments of the last product update */
+    private String[] mUpdatedSelectionArgs;
+
+    @Before
+    public void createPhoto() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(context.getCacheDir(), "thumbnail-test");
+        assertTrue(mDirectory.isDirectory() || mDirectory.mkdirs());
+        File photo = new File(mDirectory, "photo.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(3264, 2448, Bitmap.Config.RGB_565);
+        OutputStream output = new FileOutputStream(photo);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        } finally {
+            output.close();
+        }
+        bitmap.recycle();
+        mPhoto = Uri.fromFile(photo);
+    }
+
+    @After
+    public void deleteFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void makesFixedSizeThumbnails() throws Exception {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ProductContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+                mUpdatedValues = values;
+                mUpdatedSelectionArgs = selectionArgs;
+                return 1;
+            }
+        });
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(resolver, mDirectory);
+
+        Uri[] thumbnails = pipeline.makeThumbnails(mPhoto);
+
+        assertNotNull(thumbnails);
+        assertFitsIn(thumbnails[0], ThumbnailPipeline.THUMBNAIL_SIZE);
+        assertFitsIn(thumbnails[1], ThumbnailPipeline.PREVIEW_SIZE);
+        assertEquals(thumbnails[0].toString(), mUpdatedValues.getAsString(ProductEntry.COLUMN_PRODUCT_THUMBNAIL));
+        assertEquals(thumbnails[1].toString(), mUpdatedValues.getAsString(ProductEntry.COLUMN_PRODUCT_PREVIEW));
+        // Products of the photo that have the thumbnails already aren't written again
+        assertEquals(Arrays.asList(mPhoto.toString(), thumbnails[0].toString(), thumbnails[1].toString()),
+                Arrays.asList(mUpdatedSelectionArgs));
+    }
+
+    @Test
+    public void sampleSizeKeepsRequestedSize() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(200, 200, 160, 160));
+        assertEquals(8, BitmapDecoder.calculateInSampleSize(3264, 2448, 256, 256));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(3264, 2448, 1024, 1024));
+    }
+
+    /**
+     * Checks that the image fills a square of the given size on its longest side, keeping the 4:3 ratio.
+     */
+    private static void assertFitsIn(Uri image, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        assertEquals(size, options.outWidth);
+        assertEquals(size * 3 / 4, options.outHeight);
+    }
+}
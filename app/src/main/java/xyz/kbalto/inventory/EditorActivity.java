@@ -3,6 +3,8 @@ package xyz.kbalto.inventory;
 import android.Manifest;
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -11,13 +13,10 @@ import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
-import android.os.ParcelFileDescriptor;
+import android.os.StrictMode;
 import android.provider.MediaStore;
 import android.support.design.widget.TextInputLayout;
 import android.support.v4.app.ActivityCompat;
@@ -39,13 +38,18 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductWriter;
+import xyz.kbalto.inventory.image.ImageLoader;
+import xyz.kbalto.inventory.image.ImageRecompressor;
+import xyz.kbalto.inventory.image.ImageStore;
+import xyz.kbalto.inventory.image.ThumbnailPipeline;
 
 import static xyz.kbalto.inventory.data.ProductProvider.LOG_TAG;
 
@@ -57,6 +61,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private EditText mNameEditText;
     /** EditText field to enter the product's description */
     private EditText mDescriptionEditText;
+    /** EditText field to enter or scan the product's SKU */
+    private EditText mSkuEditText;
     /** NumberPicker field to enter the product's quantity */
     private NumberPicker mQuantityPicker;
     /** EditText field to enter the product's price */
@@ -69,21 +75,101 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private TextView mSoldProfitView;
     /** Identifier for the product data loader */
     private static final int EXISTING_PRODUCT_LOADER = 1;
+    /** Columns edited through the fields, saved only when their field differs from the product as loaded */
+    private static final String[] EDITABLE_COLUMNS = {
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_DESCRIPTION,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_PRICE
+    };
     /** Content URI for existing product (null if new) */
     private Uri mCurrentProductUri;
     /** Boolean flag that keeps track of whether the product has been edited (true) or not (false) */
     private boolean mProductHasChanged;
+    /** Editable columns of the product as last loaded, as stored (null until loaded, or to show it all again) */
+    private Map<String, String> mLoadedRow;
+    /** Values of the fields when the product was shown, as readFields() returns them. A field that differs was edited. */
+    private Map<String, Object> mShownValues;
+    /** Version of the product the edits are based on, checked by the provider when saving */
+    private long mLoadedVersion;
+    /** Set when an edited field was also changed elsewhere since, so saving would overwrite that change */
+    private boolean mStale;
+    /** Set when a save was refused as stale: the next load is the new base of the edits, so saving again writes them */
+    private boolean mRebase;
+    /** Set while a save or a delete is on the writer thread, so another tap doesn't write twice */
+    private boolean mWriting;
+    /** Set when the activity is destroyed, so a write finishing late doesn't touch its loader */
+    private boolean mDestroyed;
     private Uri mProductPhotoUri;
+    /** File the camera writes the photo being taken to (null if no capture is in progress) */
+    private File mCaptureFile;
+    /** List thumbnail of the photo taken in the editor (null until it's made) */
+    private Uri mThumbnailUri;
+    /** Editor preview of the photo taken in the editor (null until it's made) */
+    private Uri mPreviewUri;
 
     private ImageView mImageViewTakePicture;
     private static final int MY_PERMISSIONS_REQUEST = 2;
     private static final String FILE_PROVIDER_AUTHORITY = "xyz.kbalto.inventory.fileprovider";
     private static final int REQUEST_IMAGE_CAPTURE = 1;
-    private static final String JPEG_FILE_PREFIX = "IMG_";
-    private static final String JPEG_FILE_SUFFIX = ".jpg";
-    private static final String CAMERA_DIR = "/dcim/";
-    private Bitmap mBitmap;
 
+    /**
+     * Outcome of a save, decided on the writer thread.
+     */
+    private static class SaveResult {
+        static final int ADDED = 0;
+        static final int ADD_FAILED = 1;
+        static final int UPDATED = 2;
+        static final int UPDATE_FAILED = 3;
+        /** Another product has the SKU */
+        static final int SKU_TAKEN = 4;
+        /** The product was written since it was loaded */
+        static final int STALE = 5;
+
+        final int outcome;
+        /** Name of the product that has the SKU, with SKU_TAKEN */
+        final String skuOwner;
+
+        SaveResult(int outcome, String skuOwner) {
+            this.outcome = outcome;
+            this.skuOwner = skuOwner;
+        }
+    }
+
+    /**
+     * Shows the preview of the photo once its thumbnails are made, and keeps them to save them with the product.
+     */
+    private final ThumbnailPipeline.Listener mThumbnailListener = new ThumbnailPipeline.Listener() {
+        @Override
+        public void onThumbnailsReady(Uri picture, Uri thumbnail, Uri preview) {
+            if (mProductPhotoUri != null) {
+                if (!picture.equals(mProductPhotoUri)) {
+                    // Another photo was taken meanwhile
+                    return;
+                }
+                mThumbnailUri = thumbnail;
+                mPreviewUri = preview;
+                // Thumbnails are made from the full photo, then the photo is shrunk for storage.
+                ImageRecompressor.getInstance(EditorActivity.this).schedule(picture, mRecompressListener);
+            }
+            if (!isFinishing()) {
+                ImageLoader.getInstance(EditorActivity.this).load(preview, mProductImage, R.drawable.placeholder);
+            }
+        }
+    };
+
+    /**
+     * Saves the product with the recompressed photo, unless another photo was taken meanwhile.
+     */
+    private final ImageRecompressor.Listener mRecompressListener = new ImageRecompressor.Listener() {
+        @Override
+        public void onRecompressed(Uri original, Uri replacement) {
+            if (original.equals(mProductPhotoUri)) {
+                mProductPhotoUri = replacement;
+            }
+        }
+    };
 
     /**
      * Listens for any user touches on a View, implying that they are modifying it.
@@ -118,6 +204,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         // Find all relevant views that will need to be modified
         mNameEditText = (EditText) findViewById(R.id.product_name);
         mDescriptionEditText = (EditText) findViewById(R.id.product_description);
+        mSkuEditText = (EditText) findViewById(R.id.product_sku);
         mPriceEditText = (EditText) findViewById(R.id.product_price);
         mProductImage = (ImageView) findViewById(R.id.product_image);
         mSoldQuantityView = (TextView) findViewById(R.id.product_sold_quantity);
@@ -139,6 +226,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         nameWrapper.setHint(getString(R.string.product_name));
         final TextInputLayout descriptionWrapper = (TextInputLayout) findViewById(R.id.description_wrapper);
         descriptionWrapper.setHint(getString(R.string.product_description));
+        final TextInputLayout skuWrapper = (TextInputLayout) findViewById(R.id.sku_wrapper);
+        skuWrapper.setHint(getString(R.string.product_sku));
 
         // Set up the NumberPicker for product quantity which will support up to 100 items of each product.
         mQuantityPicker = (NumberPicker) findViewById(R.id.number_picker);
@@ -148,12 +237,19 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         // Set touch listeners
         mNameEditText.setOnTouchListener(mTouchListener);
         mDescriptionEditText.setOnTouchListener(mTouchListener);
+        mSkuEditText.setOnTouchListener(mTouchListener);
         mQuantityPicker.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mSoldQuantityView.setOnTouchListener(mTouchListener);
         mSoldProfitView.setOnTouchListener(mTouchListener);
     }
 
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        super.onDestroy();
+    }
+
     public void requestPermissions(){
         if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED ||
                 ContextCompat.checkSelfPermission(this, android.Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED){
@@ -194,16 +290,26 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     public void takePicture(View view) {
         Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
         try {
-            File f = createImageFile();
-            Log.d("takePicture()", "File: " + f.getAbsolutePath());
-            mProductPhotoUri = FileProvider.getUriForFile(this, FILE_PROVIDER_AUTHORITY, f);
-            takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, mProductPhotoUri);
+            ImageStore imageStore = ImageStore.getInstance(this);
+            // A capture that never came back is deleted before starting another one
+            imageStore.discardCapture(mCaptureFile);
+            mCaptureFile = imageStore.createCaptureFile();
+            Log.d("takePicture()", "File: " + mCaptureFile.getAbsolutePath());
+            Uri captureUri;
+            // FileProvider reads the canonical path of the file, which the camera needs before it starts
+            StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
+            try {
+                captureUri = FileProvider.getUriForFile(this, FILE_PROVIDER_AUTHORITY, mCaptureFile);
+            } finally {
+                StrictMode.setThreadPolicy(policy);
+            }
+            takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, captureUri);
             // Solution taken from http://stackoverflow.com/a/18332000/3346625
             if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT) {
                 List<ResolveInfo> resInfoList = getPackageManager().queryIntentActivities(takePictureIntent, PackageManager.MATCH_DEFAULT_ONLY);
                 for (ResolveInfo resolveInfo : resInfoList) {
                     String packageName = resolveInfo.activityInfo.packageName;
-                    grantUriPermission(packageName, mProductPhotoUri, Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    grantUriPermission(packageName, captureUri, Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
                 }
             }
 
@@ -219,70 +325,32 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent resultData) {
         Log.i(LOG_TAG, "Received an \"Activity Result\"");
-        if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == Activity.RESULT_OK) {
-            Log.i(LOG_TAG, "Uri: " + mProductPhotoUri.toString());
-            mBitmap = getBitmapFromUri(mProductPhotoUri);
-            mProductImage.setImageBitmap(mBitmap);
+        if (requestCode != REQUEST_IMAGE_CAPTURE || mCaptureFile == null) {
+            return;
         }
-    }
-
-    private Bitmap getBitmapFromUri(Uri uri) {
-        ParcelFileDescriptor parcelFileDescriptor = null;
-        try {
-            parcelFileDescriptor = getContentResolver().openFileDescriptor(uri, "r");
-            FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-            Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-            parcelFileDescriptor.close();
-            return image;
-        } catch (Exception e){
-            Log.e(LOG_TAG, "Failed to load image", e);
-            return null;
-        } finally {
-            try {
-                if (parcelFileDescriptor != null) {
-                    parcelFileDescriptor.close();
-                }
-            } catch (IOException e){
-                e.printStackTrace();
-                Log.e(LOG_TAG, "Error closing ParcelFile Descriptor");
-            }
+        File capture = mCaptureFile;
+        mCaptureFile = null;
+        if (resultCode != Activity.RESULT_OK) {
+            // Cancelled: nothing to keep
+            ImageStore.getInstance(this).discardCapture(capture);
+            return;
         }
-    }
-
-    private File createImageFile() throws IOException {
-        // create an image file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String imageFileName = JPEG_FILE_PREFIX + timeStamp + "_";
-        File albumF = getAlbumDir();
-        File imageF = File.createTempFile(imageFileName, JPEG_FILE_SUFFIX, albumF);
-        return imageF;
-    }
-
-    private File getAlbumDir() {
-        File storageDir = null;
-
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-
-            storageDir = new File(Environment.getExternalStorageDirectory()
-                    + CAMERA_DIR
-                    + getString(R.string.app_name));
-
-            Log.d(LOG_TAG, "Dir: " + storageDir);
-
-            if (storageDir != null) {
-                if (!storageDir.mkdirs()) {
-                    if (!storageDir.exists()) {
-                        Log.d(LOG_TAG, "failed to create directory");
-                        return null;
-                    }
+        // Move the photo into the store, then make the thumbnails in the background; the preview is shown
+        // once they're ready.
+        mThumbnailUri = null;
+        mPreviewUri = null;
+        ImageStore.getInstance(this).importCapture(capture, new ImageStore.Callback() {
+            @Override
+            public void onStored(Uri image) {
+                if (image == null) {
+                    Toast.makeText(EditorActivity.this, R.string.editor_picture_failure, Toast.LENGTH_SHORT).show();
+                    return;
                 }
+                Log.i(LOG_TAG, "Uri: " + image);
+                mProductPhotoUri = image;
+                ThumbnailPipeline.getInstance(EditorActivity.this).generate(image, mThumbnailListener);
             }
-
-        } else {
-            Log.v(getString(R.string.app_name), "External storage is not mounted READ/WRITE.");
-        }
-
-        return storageDir;
+        });
     }
 
     /**
@@ -330,14 +398,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Adds a product to the inventory database using the user's input as the product's data.
+     * Adds a product to the inventory database using the user's input as the product's data. An existing
+     * product only gets the columns that were edited, and only if it wasn't written since it was loaded:
+     * otherwise the editor shows the product as it is now, for the user to save again.
+     * The write runs on the ProductWriter thread, and the editor closes once it's done.
      */
     private void saveProduct(){
+        if (mWriting) {
+            return;
+        }
         String nameString = mNameEditText.getText().toString();
         String descriptionString = mDescriptionEditText.getText().toString();
         String priceString = mPriceEditText.getText().toString();
-        int quantity = mQuantityPicker.getValue();
-        // TODO: save image
 
         // If fields are empty, don't add to database
         if (mCurrentProductUri == null
@@ -348,39 +420,183 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             return;
         }
 
-        // If the price is not provided, don't parse the string and use 0 by default
-        int price = 0;
-        if (!TextUtils.isEmpty(priceString)){
-            price = Integer.parseInt(priceString);
+        // Set up the product's ContentValues: every field of a new product, the edited ones of an existing one
+        ContentValues productValues = readFields();
+        if (mShownValues != null) {
+            List<String> editedColumns = getEditedColumns(productValues);
+            for (String column : EDITABLE_COLUMNS) {
+                if (!editedColumns.contains(column)) {
+                    productValues.remove(column);
+                }
+            }
+        }
+        if (mProductPhotoUri != null) {
+            // A photo was taken in the editor
+            productValues.put(ProductEntry.COLUMN_PRODUCT_PICTURE, mProductPhotoUri.toString());
+            if (mThumbnailUri != null) {
+                // Otherwise the pipeline records them in the product once they're made.
+                productValues.put(ProductEntry.COLUMN_PRODUCT_THUMBNAIL, mThumbnailUri.toString());
+                productValues.put(ProductEntry.COLUMN_PRODUCT_PREVIEW, mPreviewUri.toString());
+            }
+        }
+        if (mCurrentProductUri != null && productValues.size() == 0) {
+            // Nothing was edited
+            finish();
+            return;
         }
 
-        // Set up the product's ContentValues
-        ContentValues productValues = new ContentValues();
-        productValues.put(ProductEntry.COLUMN_PRODUCT_NAME, nameString);
-        productValues.put(ProductEntry.COLUMN_PRODUCT_DESCRIPTION, descriptionString);
-        productValues.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
-        productValues.put(ProductEntry.COLUMN_PRODUCT_PRICE, price);
-        productValues.put(ProductEntry.COLUMN_PRODUCT_PICTURE, mProductPhotoUri.toString());
+        // Check the SKU and write on the writer thread
+        final ContentValues values = productValues;
+        final Uri productUri = mCurrentProductUri;
+        final boolean stale = mStale;
+        final long version = mLoadedVersion;
+        mWriting = true;
+        ProductWriter.getInstance(this).submit(new ProductWriter.Write<SaveResult>() {
+            @Override
+            public SaveResult run(ContentResolver resolver) {
+                // The SKU is unique: tell which product has it instead of failing the save
+                String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+                if (!TextUtils.isEmpty(sku)) {
+                    String owner = findSkuOwner(resolver, sku, productUri);
+                    if (owner != null) {
+                        return new SaveResult(SaveResult.SKU_TAKEN, owner);
+                    }
+                }
 
-        // Update or add the product to the database
-        if (mCurrentProductUri == null){
-            // ADD product to the database
-            Uri newUri = getContentResolver().insert(ProductEntry.CONTENT_URI, productValues);
-            if (newUri == null){
+                // Update or add the product to the database
+                if (productUri == null) {
+                    // ADD product to the database
+                    Uri newUri = resolver.insert(ProductEntry.CONTENT_URI, values);
+                    return new SaveResult(newUri == null ? SaveResult.ADD_FAILED : SaveResult.ADDED, null);
+                }
+                // UPDATE product in the database, unless it changed since it was loaded
+                int rowsAffected = 0;
+                if (!stale) {
+                    rowsAffected = resolver.update(ProductEntry.buildVersionedUri(ContentUris.parseId(productUri),
+                            version), values, null, null);
+                }
+                if (rowsAffected != 0) {
+                    return new SaveResult(SaveResult.UPDATED, null);
+                }
+                // Written meanwhile, by a sale for example, unless it's gone
+                return new SaveResult(productExists(resolver, productUri) ? SaveResult.STALE
+                        : SaveResult.UPDATE_FAILED, null);
+            }
+        }, new ProductWriter.Callback<SaveResult>() {
+            @Override
+            public void onWritten(SaveResult result) {
+                mWriting = false;
+                onSaved(result, productUri == null);
+            }
+        });
+    }
+
+    /**
+     * Tells how the save went, and closes the editor unless there is something to fix first.
+     * @param result of the save, null if it failed.
+     */
+    private void onSaved(SaveResult result, boolean added) {
+        int outcome = result != null ? result.outcome : added ? SaveResult.ADD_FAILED : SaveResult.UPDATE_FAILED;
+        switch (outcome) {
+            case SaveResult.SKU_TAKEN:
+                Toast.makeText(this, getString(R.string.editor_sku_taken, result.skuOwner), Toast.LENGTH_SHORT).show();
+                return;
+            case SaveResult.STALE:
+                // Show the product as it is now, keeping the edits and the photo taken: the reload merges them
+                // as it does for live changes, and takes the new version so saving again writes the edits.
+                Toast.makeText(this, R.string.editor_product_changed, Toast.LENGTH_LONG).show();
+                mStale = false;
+                mRebase = true;
+                if (!mDestroyed) {
+                    getLoaderManager().restartLoader(EXISTING_PRODUCT_LOADER, null, this);
+                }
+                return;
+            case SaveResult.ADDED:
+                Toast.makeText(this, R.string.add_product_success, Toast.LENGTH_SHORT).show();
+                break;
+            case SaveResult.ADD_FAILED:
                 // There was an error
                 Toast.makeText(this, R.string.add_product_failure, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.add_product_success, Toast.LENGTH_SHORT).show();
-            }
-        } else {
-            // UPDATE product in the database. null for selection and selectionArgs
-            int rowsAffected = getContentResolver().update(mCurrentProductUri, productValues, null, null);
-            if (rowsAffected == 0){
+                break;
+            case SaveResult.UPDATED:
+                Toast.makeText(this, R.string.update_product_success, Toast.LENGTH_SHORT).show();
+                break;
+            default:
                 // There was an error
                 Toast.makeText(this, R.string.update_product_failure, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.update_product_success, Toast.LENGTH_SHORT).show();
+        }
+        finish();
+    }
+
+    /**
+     * Reads the editable fields, with the SKU trimmed (null if empty) and the price 0 if empty.
+     */
+    private ContentValues readFields() {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, mNameEditText.getText().toString());
+        values.put(ProductEntry.COLUMN_PRODUCT_DESCRIPTION, mDescriptionEditText.getText().toString());
+        String skuString = mSkuEditText.getText().toString().trim();
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, skuString.isEmpty() ? null : skuString);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, mQuantityPicker.getValue());
+        // If the price is not provided, don't parse the string and use 0 by default
+        String priceString = mPriceEditText.getText().toString();
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, TextUtils.isEmpty(priceString) ? 0 : Integer.parseInt(priceString));
+        return values;
+    }
+
+    /**
+     * @return the editable columns whose field differs from when the product was shown.
+     */
+    private List<String> getEditedColumns(ContentValues fields) {
+        List<String> editedColumns = new ArrayList<>();
+        for (String column : EDITABLE_COLUMNS) {
+            if (mShownValues == null || !equal(fields.get(column), mShownValues.get(column))) {
+                editedColumns.add(column);
+            }
+        }
+        return editedColumns;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return whether the product is still in the database. Runs on the writer thread.
+     */
+    private static boolean productExists(ContentResolver resolver, Uri productUri) {
+        Cursor cursor = resolver.query(productUri, new String[]{ProductEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param productUri product being saved, null if it's new.
+     * @return the name of the other product with the SKU, or null if no other product has it. Runs on the writer thread.
+     */
+    private static String findSkuOwner(ContentResolver resolver, String sku, Uri productUri) {
+        Cursor cursor = resolver.query(ProductEntry.buildSkuUri(sku),
+                new String[]{ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_NAME}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long id = cursor.getLong(cursor.getColumnIndexOrThrow(ProductEntry._ID));
+            if (productUri != null && id == ContentUris.parseId(productUri)) {
+                return null;
             }
+            return cursor.getString(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME));
+        } finally {
+            cursor.close();
         }
     }
 
@@ -412,21 +628,40 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Deletes a single product from the database.
+     * Deletes a single product from the database on the writer thread, then closes the editor.
      */
     private void deleteProduct(){
         // Only perform deletion if the product exists.
-        if (mCurrentProductUri != null){
-            // DELETE the product from the database. null for selection and selectionArgs.
-            int rowsDeleted = getContentResolver().delete(mCurrentProductUri, null, null);
-            if (rowsDeleted == 0){
-                // There was an error
-                Toast.makeText(this, R.string.delete_product_failure, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.delete_product_success, Toast.LENGTH_SHORT).show();
-            }
+        if (mCurrentProductUri == null){
+            finish();
+            return;
         }
-        finish();
+        if (mWriting) {
+            return;
+        }
+        final Uri productUri = mCurrentProductUri;
+        mWriting = true;
+        ProductWriter.getInstance(this).submit(new ProductWriter.Write<Integer>() {
+            @Override
+            public Integer run(ContentResolver resolver) {
+                // DELETE the product from the database. null for selection and selectionArgs.
+                return resolver.delete(productUri, null, null);
+            }
+        }, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onWritten(Integer rowsDeleted) {
+                mWriting = false;
+                if (rowsDeleted == null || rowsDeleted == 0){
+                    // There was an error
+                    Toast.makeText(EditorActivity.this, R.string.delete_product_failure, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(EditorActivity.this, R.string.delete_product_success, Toast.LENGTH_SHORT).show();
+                    // Its photo may not be used by any other product anymore
+                    ImageStore.getInstance(EditorActivity.this).scheduleCollection();
+                }
+                finish();
+            }
+        });
     }
 
     /**
@@ -460,7 +695,6 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()){
             case R.id.action_save:
                 saveProduct();
-                finish();
                 return true;
             case R.id.action_order_more_products:
                 // TODO: create order intent
@@ -499,11 +733,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 ProductEntry._ID,
                 ProductEntry.COLUMN_PRODUCT_NAME,
                 ProductEntry.COLUMN_PRODUCT_DESCRIPTION,
+                ProductEntry.COLUMN_PRODUCT_SKU,
                 ProductEntry.COLUMN_PRODUCT_QUANTITY,
                 ProductEntry.COLUMN_PRODUCT_PRICE,
                 ProductEntry.COLUMN_PRODUCT_PICTURE,
+                ProductEntry.COLUMN_PRODUCT_PREVIEW,
                 ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY,
-                ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT
+                ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT,
+                ProductEntry.COLUMN_PRODUCT_VERSION
         };
         return new CursorLoader(this,
                 mCurrentProductUri,         // Query the content URI for the current product
@@ -523,32 +760,82 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Find the column indices.
             int nameColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_NAME);
             int descriptionColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_DESCRIPTION);
+            int skuColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_SKU);
             int quantityColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_QUANTITY);
             int priceColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PRICE);
             int pictureColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PICTURE);
+            int previewColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PREVIEW);
             int soldQuantityColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY);
             int soldProfitColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT);
 
+            int versionColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_VERSION);
+
             // Extract current product's data.
             String name = cursor.getString(nameColumnIndex);
             String description = cursor.getString(descriptionColumnIndex);
+            String sku = cursor.getString(skuColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
             int price = cursor.getInt(priceColumnIndex);
             String pictureString = cursor.getString(pictureColumnIndex);
+            String previewString = cursor.getString(previewColumnIndex);
             int soldQuantity = cursor.getInt(soldQuantityColumnIndex);
             int soldProfit = cursor.getInt(soldProfitColumnIndex);
-            Uri pictureUri = Uri.parse(pictureString);
+            long version = cursor.getLong(versionColumnIndex);
+            Map<String, String> row = new HashMap<>();
+            for (String column : EDITABLE_COLUMNS) {
+                row.put(column, cursor.getString(cursor.getColumnIndex(column)));
+            }
+
+            // The product changes while it's edited, with every sale for example. Fields the user edited keep
+            // the edit; if the product changed in one of them too, saving would overwrite that change.
+            // After a save refused as stale, the user was told: the edits now apply to the product as it is.
+            List<String> editedColumns = mLoadedRow == null ? new ArrayList<String>() : getEditedColumns(readFields());
+            for (String column : editedColumns) {
+                if (!mRebase && !equal(row.get(column), mLoadedRow.get(column))) {
+                    mStale = true;
+                }
+            }
+            mRebase = false;
+            if (!mStale) {
+                mLoadedVersion = version;
+            }
+            mLoadedRow = row;
 
             // Update views on the screen.
-            mNameEditText.setText(name);
-            mDescriptionEditText.setText(description);
-            mQuantityPicker.setValue(quantity);
-            mPriceEditText.setText(Integer.toString(price));
-            if (mCurrentProductUri == null && pictureString == null || TextUtils.isEmpty(pictureString)){
+            if (!editedColumns.contains(ProductEntry.COLUMN_PRODUCT_NAME)) {
+                mNameEditText.setText(name);
+            }
+            if (!editedColumns.contains(ProductEntry.COLUMN_PRODUCT_DESCRIPTION)) {
+                mDescriptionEditText.setText(description);
+            }
+            if (!editedColumns.contains(ProductEntry.COLUMN_PRODUCT_SKU)) {
+                mSkuEditText.setText(sku);
+            }
+            if (!editedColumns.contains(ProductEntry.COLUMN_PRODUCT_QUANTITY)) {
+                mQuantityPicker.setValue(quantity);
+            }
+            if (!editedColumns.contains(ProductEntry.COLUMN_PRODUCT_PRICE)) {
+                mPriceEditText.setText(Integer.toString(price));
+            }
+            // Compared as shown, a quantity above the picker's range for example, so unedited fields aren't saved
+            Map<String, Object> shownValues = new HashMap<>();
+            ContentValues fields = readFields();
+            for (String column : EDITABLE_COLUMNS) {
+                shownValues.put(column, editedColumns.contains(column) ? mShownValues.get(column) : fields.get(column));
+            }
+            mShownValues = shownValues;
+
+            // A photo taken in the editor stays shown
+            if (mProductPhotoUri == null && !TextUtils.isEmpty(previewString)){
+                // Show the preview made when the photo was taken.
+                ImageLoader.getInstance(this).load(Uri.parse(previewString), mProductImage, R.drawable.placeholder);
+            } else if (mProductPhotoUri == null) {
                 // If the product's image doesn't exist, set placeholder image.
                 mProductImage.setImageResource(R.drawable.placeholder);
-            } else {
-                mProductImage.setImageURI(pictureUri);
+                if (!TextUtils.isEmpty(pictureString)){
+                    // Photo taken before previews existed: make it, it's shown once ready.
+                    ThumbnailPipeline.getInstance(this).generate(Uri.parse(pictureString), mThumbnailListener);
+                }
             }
             mSoldQuantityView.setText(Integer.toString(soldQuantity));
             String soldProfitWithCurrency = getString(R.string.currency_sign) + Integer.toString(soldProfit);
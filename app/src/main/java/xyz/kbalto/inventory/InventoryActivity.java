@@ -1,6 +1,7 @@
 package xyz.kbalto.inventory;
 
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -10,16 +11,25 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+import xyz.kbalto.inventory.data.ProductWriter;
+import xyz.kbalto.inventory.data.SaleBuffer;
+import xyz.kbalto.inventory.image.ImageLoader;
+import xyz.kbalto.inventory.image.ImageStore;
 
 /**
  * Displays the list of products that were added and stored in the app.
@@ -27,13 +37,41 @@ import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
 public class InventoryActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
     /** Loader identifier */
     private static final int URI_LOADER = 0;
-    /** Product cursor adapter */
-    ProductCursorAdapter mProductAdapter;
+    /** Loader argument with the text searched (absent to list all products) */
+    private static final String ARG_SEARCH_QUERY = "searchQuery";
+    /** Amount of products loaded at a time */
+    private static final int PAGE_SIZE = 100;
+    /** Amount of rows left below the last visible one when the next page starts loading */
+    private static final int NEXT_PAGE_THRESHOLD = 20;
+    /** Highest quantity listed by the "Low stock" filter */
+    private static final long LOW_STOCK_QUANTITY = 5;
+    /** Saved state key of the list filters and sort order, as the ProductQuery URI */
+    private static final String STATE_PRODUCT_QUERY = "productQuery";
+    /** Product list adapter */
+    ProductListAdapter mProductAdapter;
+    /** Loads the thumbnails of the rows about to be shown */
+    private ScrollPrefetcher mPrefetcher;
+    /** Product list and its fast-scroll thumb */
+    private RecyclerView mProductListView;
+    private LinearLayoutManager mLayoutManager;
+    private SectionFastScroller mFastScroller;
+    /** Pages of the list last loaded, null for search results */
+    private PagedCursor mPagedCursor;
+    /** Set by a jump to a section that wasn't loaded, until its rows are shown */
+    private boolean mScrollToTopOnChange;
+    /** Filters and sort order of the list, chosen in the toolbar */
+    private ProductQuery mProductQuery = new ProductQuery();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_inventory);
+        if (savedInstanceState != null) {
+            Uri productQuery = savedInstanceState.getParcelable(STATE_PRODUCT_QUERY);
+            if (productQuery != null) {
+                mProductQuery = ProductQuery.fromUri(productQuery);
+            }
+        }
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -45,31 +83,115 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
             }
         });
 
-        // Set up the ListView and its Empty View
-        ListView productListView = (ListView) findViewById(R.id.products_list);
-        View emptyView = findViewById(R.id.empty_view);
-        productListView.setEmptyView(emptyView);
-
-        // Create the CursorAdapter instance and set it to the ListView
-        mProductAdapter = new ProductCursorAdapter(this, null);
-        productListView.setAdapter(mProductAdapter);
+        // Set up the RecyclerView and its Empty View
+        final RecyclerView productListView = (RecyclerView) findViewById(R.id.products_list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        mProductListView = productListView;
+        mLayoutManager = layoutManager;
+        productListView.setLayoutManager(layoutManager);
+        productListView.setHasFixedSize(true);
+        final View emptyView = findViewById(R.id.empty_view);
 
-        // Set an onItemClickListener that passes the content URI to the EditorActivity if the product will be edited.
-        productListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Create the adapter; clicking a product passes its content URI to the EditorActivity to edit it.
+        mProductAdapter = new ProductListAdapter(this, new ProductListAdapter.OnProductClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onProductClick(long id) {
                 // Set up an intent to go to the EditorActivity
                 Intent intent = new Intent(InventoryActivity.this, EditorActivity.class);
-                // Look for the product content URI using the id that was passed from the onItemClickListener
+                // Look for the product content URI using the id of the clicked row
                 Uri currentProductUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
                 // Set the URI on the data field of the intent and send it through the EditorActivity to be handled there
                 intent.setData(currentProductUri);
                 startActivity(intent);
             }
         });
+        productListView.setAdapter(mProductAdapter);
+        // Show the empty view whenever the list has no rows, and the first row of a section jumped to
+        mProductAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                emptyView.setVisibility(mProductAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+                if (mScrollToTopOnChange) {
+                    // The rows of the section jumped to replaced the loaded ones: show the first one
+                    mScrollToTopOnChange = false;
+                    layoutManager.scrollToPositionWithOffset(0, 0);
+                }
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onChanged();
+            }
+        });
+
+        // Load the next page of products when the user scrolls close to the end of the loaded ones,
+        // and the thumbnails of the rows coming into view.
+        mPrefetcher = new ScrollPrefetcher(productListView, mProductAdapter, ImageLoader.getInstance(this),
+                R.id.item_product_image);
+        productListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                int totalItemCount = mProductAdapter.getItemCount();
+                if (firstVisibleItem == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                mPrefetcher.onScroll(firstVisibleItem, lastVisibleItem - firstVisibleItem + 1, totalItemCount);
+                if (mPagedCursor != null) {
+                    mFastScroller.setPosition(mPagedCursor.getStartPosition() + firstVisibleItem);
+                }
+                Loader<Cursor> loader = getLoaderManager().getLoader(URI_LOADER);
+                if (!(loader instanceof ProductPageLoader)) {
+                    return;
+                }
+                if (totalItemCount != 0 && lastVisibleItem + 1 >= totalItemCount - NEXT_PAGE_THRESHOLD) {
+                    ((ProductPageLoader) loader).loadNextPage();
+                } else if (firstVisibleItem < NEXT_PAGE_THRESHOLD) {
+                    // Scrolling back up after a jump to a section
+                    ((ProductPageLoader) loader).loadPreviousPage();
+                }
+            }
+        });
+
+        // Jump to the section dragged to: scroll to it if its first product is loaded, otherwise load its first page
+        mFastScroller = (SectionFastScroller) findViewById(R.id.products_fast_scroller);
+        mFastScroller.setOnSectionSelectedListener(new SectionFastScroller.OnSectionSelectedListener() {
+            @Override
+            public void onSectionSelected(int section) {
+                scrollToSection(section);
+            }
+        });
 
         // Initialize the loader for query of products.
         getLoaderManager().initLoader(URI_LOADER, null, this);
+
+        // Catch up on the photos left behind by cancelled edits and deletes since the last launch
+        if (savedInstanceState == null) {
+            ImageStore.getInstance(this).scheduleCollection();
+        }
+        // Sends the sales journaled by a process that died before sending them
+        SaleBuffer.getInstance(this);
+    }
+
+    /**
+     * Sends the pending sales when the list is left, instead of waiting for the timer.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        SaleBuffer.getInstance(this).flush();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PRODUCT_QUERY, mProductQuery.buildUri());
     }
 
     /**
@@ -103,16 +225,49 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
 
 
     /**
-     * Deletes all products from the database.
+     * Deletes all products from the database on the writer thread.
      */
     private void deleteAllProducts() {
-        int rowsDeleted = getContentResolver().delete(ProductEntry.CONTENT_URI, null, null);
-        // Show a toast message depending on whether or not the delete was successful.
-        if (rowsDeleted == 0){
-            // If no rows were deleted, there was an error. Display message.
-            Toast.makeText(this, R.string.delete_products_failure, Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, R.string.delete_products_success, Toast.LENGTH_SHORT).show();
+        ProductWriter.getInstance(this).submit(new ProductWriter.Write<Integer>() {
+            @Override
+            public Integer run(ContentResolver resolver) {
+                return resolver.delete(ProductEntry.CONTENT_URI, null, null);
+            }
+        }, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onWritten(Integer rowsDeleted) {
+                // Show a toast message depending on whether or not the delete was successful.
+                if (rowsDeleted == null || rowsDeleted == 0){
+                    // If no rows were deleted, there was an error. Display message.
+                    Toast.makeText(InventoryActivity.this, R.string.delete_products_failure, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(InventoryActivity.this, R.string.delete_products_success, Toast.LENGTH_SHORT).show();
+                    // Their photos are all unused now
+                    ImageStore.getInstance(InventoryActivity.this).scheduleCollection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the first product of a section of the list sorted by name.
+     */
+    private void scrollToSection(int section) {
+        if (mPagedCursor == null || mPagedCursor.getSections() == null) {
+            return;
+        }
+        int position = mPagedCursor.getSections().getPositionForSection(section) - mPagedCursor.getStartPosition();
+        if (position >= 0 && position < mProductAdapter.getItemCount()) {
+            mScrollToTopOnChange = false;
+            mProductListView.stopScroll();
+            mLayoutManager.scrollToPositionWithOffset(position, 0);
+            return;
+        }
+        Loader<Cursor> loader = getLoaderManager().getLoader(URI_LOADER);
+        if (loader instanceof ProductPageLoader) {
+            mScrollToTopOnChange = true;
+            mProductListView.stopScroll();
+            ((ProductPageLoader) loader).jumpToSection(section);
         }
     }
 
@@ -122,17 +277,184 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_inventory, menu);
+
+        // Restart the loader with the search URI while the user types.
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Reloads the list with the products matching the query, or with every product if the query is empty.
+     */
+    private void search(String query) {
+        Bundle args = new Bundle();
+        args.putString(ARG_SEARCH_QUERY, query);
+        getLoaderManager().restartLoader(URI_LOADER, args, this);
+    }
+
+    /**
+     * Checks the sort order and filter of the list in the toolbar submenus.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(getSortItemId()).setChecked(true);
+        menu.findItem(getFilterItemId()).setChecked(true);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    private int getSortItemId() {
+        switch (mProductQuery.getSort()) {
+            case PRICE:
+                return mProductQuery.isDescending() ? R.id.sort_price_descending : R.id.sort_price;
+            case QUANTITY:
+                return R.id.sort_quantity;
+            case SOLD:
+                return R.id.sort_sold;
+            default:
+                return R.id.sort_name;
+        }
+    }
+
+    private int getFilterItemId() {
+        if (mProductQuery.getMinPrice() != null || mProductQuery.getMaxPrice() != null) {
+            return R.id.filter_price_range;
+        }
+        Long minQuantity = mProductQuery.getMinQuantity();
+        Long maxQuantity = mProductQuery.getMaxQuantity();
+        if (maxQuantity != null && maxQuantity == 0) {
+            return R.id.filter_out_of_stock;
+        }
+        if (maxQuantity != null) {
+            return R.id.filter_low_stock;
+        }
+        return minQuantity != null ? R.id.filter_in_stock : R.id.filter_all;
+    }
+
+    /**
+     * Reloads the list with new filters or a new sort order. Clears the search.
+     */
+    private void setProductQuery(ProductQuery productQuery) {
+        mProductQuery = productQuery;
+        getLoaderManager().restartLoader(URI_LOADER, null, this);
+    }
+
+    /**
+     * @return a query with the current filters and a new sort order. The loader keeps the current one.
+     */
+    private ProductQuery newSort(ProductQuery.Sort sort, boolean descending) {
+        return ProductQuery.fromUri(mProductQuery.buildUri()).setSort(sort, descending);
+    }
+
+    /**
+     * @return a query with the current sort order and no filter.
+     */
+    private ProductQuery newFilter() {
+        return new ProductQuery().setSort(mProductQuery.getSort(), mProductQuery.isDescending());
+    }
+
+    /**
+     * Asks the lowest and highest price of the products listed, then filters the list.
+     */
+    private void showPriceRangeDialog() {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_price_range, null);
+        final EditText minView = (EditText) view.findViewById(R.id.price_range_min);
+        final EditText maxView = (EditText) view.findViewById(R.id.price_range_max);
+        if (mProductQuery.getMinPrice() != null) {
+            minView.setText(String.valueOf(mProductQuery.getMinPrice()));
+        }
+        if (mProductQuery.getMaxPrice() != null) {
+            maxView.setText(String.valueOf(mProductQuery.getMaxPrice()));
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_price_range);
+        builder.setView(view);
+        builder.setPositiveButton(R.string.price_range_apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                Long min = parsePrice(minView.getText().toString());
+                Long max = parsePrice(maxView.getText().toString());
+                if (min != null && max != null && min > max) {
+                    // Typed the wrong way around
+                    Long swap = min;
+                    min = max;
+                    max = swap;
+                }
+                setProductQuery(newFilter().setPriceRange(min, max));
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * @return the price typed, or null if the field is empty or not a number.
+     */
+    private static Long parsePrice(String price) {
+        if (TextUtils.isEmpty(price)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(price);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Handles menu items behavior
      */
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()){
+            case R.id.action_scan:
+                startActivity(new Intent(this, ScanActivity.class));
+                return true;
+            case R.id.sort_name:
+                setProductQuery(newSort(ProductQuery.Sort.NAME, false));
+                return true;
+            case R.id.sort_price:
+                setProductQuery(newSort(ProductQuery.Sort.PRICE, false));
+                return true;
+            case R.id.sort_price_descending:
+                setProductQuery(newSort(ProductQuery.Sort.PRICE, true));
+                return true;
+            case R.id.sort_quantity:
+                setProductQuery(newSort(ProductQuery.Sort.QUANTITY, false));
+                return true;
+            case R.id.sort_sold:
+                setProductQuery(newSort(ProductQuery.Sort.SOLD, true));
+                return true;
+            case R.id.filter_all:
+                setProductQuery(newFilter());
+                return true;
+            case R.id.filter_in_stock:
+                setProductQuery(newFilter().setStockRange(1L, null));
+                return true;
+            case R.id.filter_low_stock:
+                setProductQuery(newFilter().setStockRange(1L, LOW_STOCK_QUANTITY));
+                return true;
+            case R.id.filter_out_of_stock:
+                setProductQuery(newFilter().setOutOfStock());
+                return true;
+            case R.id.filter_price_range:
+                showPriceRangeDialog();
+                return true;
             case R.id.action_delete_all_products:
-                if (mProductAdapter.isEmpty()){
+                if (mProductAdapter.getItemCount() == 0){
                     // If the adapter is empty, there are no products to delete
                     Toast.makeText(this, R.string.delete_no_products_error, Toast.LENGTH_SHORT).show();
                     return true;
@@ -154,6 +476,7 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         String[] projection = {
                 ProductEntry._ID,
                 ProductEntry.COLUMN_PRODUCT_PICTURE,
+                ProductEntry.COLUMN_PRODUCT_THUMBNAIL,
                 ProductEntry.COLUMN_PRODUCT_NAME,
                 ProductEntry.COLUMN_PRODUCT_DESCRIPTION,
                 ProductEntry.COLUMN_PRODUCT_PRICE,
@@ -161,12 +484,17 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
                 ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY,
                 ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT
         };
-        return new CursorLoader(this,
-                ProductEntry.CONTENT_URI,       // Content URI to query
-                projection,                     // Columns to include
-                null,                           // No selection clause
-                null,                           // No selection arguments
-                null);                          // Default sort order
+        String query = bundle == null ? null : bundle.getString(ARG_SEARCH_QUERY);
+        if (!TextUtils.isEmpty(query)) {
+            return new CursorLoader(this,
+                    ProductEntry.buildSearchUri(query), // Search URI
+                    projection,                         // Columns to include
+                    null,                               // No selection clause
+                    null,                               // No selection arguments
+                    null);                              // Ranked by the provider
+        }
+        // Filtered and sorted list (alphabetical by default), loaded one page at a time
+        return new ProductPageLoader(this, projection, mProductQuery, PAGE_SIZE);
     }
 
     /**
@@ -175,6 +503,10 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
      */
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        // Positions may have moved
+        mPrefetcher.cancel();
+        mPagedCursor = cursor instanceof PagedCursor ? (PagedCursor) cursor : null;
+        mFastScroller.setSections(mPagedCursor == null ? null : mPagedCursor.getSections());
         mProductAdapter.swapCursor(cursor);
     }
 
@@ -183,6 +515,9 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
      */
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        mPrefetcher.cancel();
+        mPagedCursor = null;
+        mFastScroller.setSections(null);
         mProductAdapter.swapCursor(null);
     }
 }
@@ -0,0 +1,61 @@
+package xyz.kbalto.inventory;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+import xyz.kbalto.inventory.data.SaleBuffer;
+import xyz.kbalto.inventory.image.ImageLoader;
+import xyz.kbalto.inventory.image.ImageRecompressor;
+import xyz.kbalto.inventory.image.ImageStore;
+import xyz.kbalto.inventory.image.ThumbnailPipeline;
+
+/**
+ * Sets up debug builds to report disk access from the main thread, so a database query or file write that
+ * slips onto it shows up in the log, and fails the instrumentation tests, instead of an ANR on slow storage.
+ * Writes go through the ProductWriter and reads through loaders; the SaleBuffer journal and the camera
+ * capture file are the allowed exceptions.
+ */
+public class InventoryApplication extends Application {
+    /** Test runner, found in the process only when it runs the instrumentation tests */
+    private static final String TEST_RUNNER_CLASS = "android.support.test.runner.AndroidJUnitRunner";
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            // The shared instances look their directories up once, when they are made: make them first.
+            ImageStore.getInstance(this);
+            ImageLoader.getInstance(this);
+            ThumbnailPipeline.getInstance(this);
+            ImageRecompressor.getInstance(this);
+            SaleBuffer.getInstance(this);
+
+            StrictMode.ThreadPolicy.Builder threadPolicy = new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog();
+            if (isInstrumented()) {
+                // Only the tests crash, not the app of whoever uses a debug build
+                threadPolicy.penaltyDeath();
+            }
+            StrictMode.setThreadPolicy(threadPolicy.build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+    }
+
+    /**
+     * @return whether the app runs with the instrumentation tests, whose classes are loaded in its process.
+     */
+    private static boolean isInstrumented() {
+        try {
+            Class.forName(TEST_RUNNER_CLASS);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package xyz.kbalto.inventory;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.List;
+
+/**
+ * Read-only Cursor over consecutive pages of products loaded by ProductPageLoader.
+ * The pages are shared with the next cursors the loader delivers, so closing this cursor
+ * doesn't close them: the loader does it once they aren't used anymore.
+ * After a jump to a section, or once the pages above were dropped, the pages don't start at the top of the list:
+ * {@link #getStartPosition()} gives the position of their first row in the whole list.
+ */
+class PagedCursor extends AbstractCursor {
+    /**
+     * A page of rows, with the keys of its first and last rows, read once when it was loaded
+     * since the rows of a shared page can only be read on the main thread.
+     */
+    static class Page {
+        final Cursor cursor;
+        /** Sort key and _id of the first row, null and 0 if the page is empty */
+        final String firstSortKey;
+        final long firstId;
+        /** Sort key and _id of the last row, null and 0 if the page is empty */
+        final String lastSortKey;
+        final long lastId;
+
+        Page(Cursor cursor, String firstSortKey, long firstId, String lastSortKey, long lastId) {
+            this.cursor = cursor;
+            this.firstSortKey = firstSortKey;
+            this.firstId = firstId;
+            this.lastSortKey = lastSortKey;
+            this.lastId = lastId;
+        }
+    }
+
+    /** Pages, in order */
+    private final List<Page> mPages;
+    /** Position of the first row of each page */
+    private final int[] mPageStarts;
+    /** Total amount of rows */
+    private final int mCount;
+    /** Position of the first row in the whole list */
+    private final int mStartPosition;
+    /** Whether there are rows before the first page */
+    private final boolean mHasPrevious;
+    /** Whether the last page was full or pages after it were dropped, meaning there may be more rows after it */
+    private final boolean mHasMore;
+    /** Alphabetical sections of the whole list, null if it isn't sorted by name */
+    private final ProductSections mSections;
+    /** Page holding the current row */
+    private Cursor mCurrentPage;
+
+    PagedCursor(List<Page> pages, int startPosition, boolean hasPrevious, boolean hasMore, ProductSections sections) {
+        mPages = pages;
+        mPageStarts = new int[pages.size()];
+        int count = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            mPageStarts[i] = count;
+            count += pages.get(i).cursor.getCount();
+        }
+        mCount = count;
+        mStartPosition = startPosition;
+        mHasPrevious = hasPrevious;
+        mHasMore = hasMore;
+        mSections = sections;
+    }
+
+    /**
+     * Pages of this cursor. Must not be modified.
+     */
+    List<Page> getPages() {
+        return mPages;
+    }
+
+    int getStartPosition() {
+        return mStartPosition;
+    }
+
+    boolean hasPrevious() {
+        return mHasPrevious;
+    }
+
+    /**
+     * @return the sort key of the first row, used to query the previous page. Null if there are no rows.
+     */
+    String getFirstSortKey() {
+        return mPages.get(0).firstSortKey;
+    }
+
+    long getFirstId() {
+        return mPages.get(0).firstId;
+    }
+
+    ProductSections getSections() {
+        return mSections;
+    }
+
+    /**
+     * @return the sort key of the last row, used to query the next page. Null if there are no rows.
+     */
+    String getLastSortKey() {
+        return mPages.get(mPages.size() - 1).lastSortKey;
+    }
+
+    long getLastId() {
+        return mPages.get(mPages.size() - 1).lastId;
+    }
+
+    boolean hasMore() {
+        return mHasMore;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.get(0).cursor.getColumnNames();
+    }
+
+    /**
+     * Moves the page holding the new position to the matching row.
+     */
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // Last page starting at or before the position
+        int low = 0;
+        int high = mPageStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mPageStarts[middle] <= newPosition) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        mCurrentPage = mPages.get(low).cursor;
+        return mCurrentPage.moveToPosition(newPosition - mPageStarts[low]);
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrentPage.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrentPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentPage.isNull(column);
+    }
+}
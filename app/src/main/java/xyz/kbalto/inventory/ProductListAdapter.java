@@ -0,0 +1,515 @@
+package xyz.kbalto.inventory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.SaleBuffer;
+import xyz.kbalto.inventory.image.ImageLoader;
+import xyz.kbalto.inventory.image.ThumbnailPipeline;
+
+/**
+ * RecyclerView adapter showing the products of a cursor.
+ * Every new cursor is read into row snapshots on a background thread, with its column indices looked up
+ * once, and diffed there against the rows shown; only the rows that changed are then rebound, so a sale
+ * updates one row instead of the whole list. A change limited to the stock and price leaves the image alone.
+ * Sales go through the SaleBuffer: the row shows them as pending right away, and the stock without them.
+ */
+public class ProductListAdapter extends RecyclerView.Adapter<ProductListAdapter.ViewHolder>
+        implements ScrollPrefetcher.ImageSource {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ProductListAdapter.class.getSimpleName();
+    /** Change payload of a row whose quantity or price changed, but not its name, description or image */
+    private static final Object PAYLOAD_STOCK = new Object();
+
+    /** Reads and diffs the cursors, in the order they are delivered. */
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ProductListDiff");
+        }
+    });
+
+    /**
+     * Opens a product when its row is clicked.
+     */
+    public interface OnProductClickListener {
+        void onProductClick(long id);
+    }
+
+    /**
+     * Values of a product shown by a row, read from the cursor.
+     */
+    static class ProductRow {
+        final long id;
+        final String name;
+        final String description;
+        final String picture;
+        final String thumbnail;
+        final int quantity;
+        final int price;
+        /** Label of the alphabetical section this row starts, null if it doesn't start one */
+        final String section;
+
+        ProductRow(long id, String name, String description, String picture, String thumbnail, int quantity, int price,
+                   String section) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.picture = picture;
+            this.thumbnail = thumbnail;
+            this.quantity = quantity;
+            this.price = price;
+            this.section = section;
+        }
+
+        /**
+         * @return whether the other row shows the same name, description, image and section header.
+         */
+        boolean hasSameDetails(ProductRow other) {
+            return TextUtils.equals(name, other.name) && TextUtils.equals(description, other.description)
+                    && TextUtils.equals(picture, other.picture) && TextUtils.equals(thumbnail, other.thumbnail)
+                    && TextUtils.equals(section, other.section);
+        }
+    }
+
+    /**
+     * Units of a product sold by flushed batches, not in the rows shown yet.
+     */
+    private static class FlushedSales {
+        int units;
+        /** Generation of the last cursor given before the last flush: its rows may not have the units yet */
+        int generation;
+    }
+
+    /**
+     * Views of a product row, found once when the row is created.
+     */
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView sectionView;
+        final TextView nameView;
+        final ImageView imageView;
+        final TextView descriptionView;
+        final TextView quantityView;
+        final TextView pendingView;
+        final TextView priceView;
+        final Button sellButton;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            sectionView = (TextView) itemView.findViewById(R.id.item_product_section);
+            nameView = (TextView) itemView.findViewById(R.id.item_product_name);
+            imageView = (ImageView) itemView.findViewById(R.id.item_product_image);
+            descriptionView = (TextView) itemView.findViewById(R.id.item_product_description);
+            quantityView = (TextView) itemView.findViewById(R.id.item_product_quantity);
+            pendingView = (TextView) itemView.findViewById(R.id.item_product_pending);
+            priceView = (TextView) itemView.findViewById(R.id.item_product_price);
+            sellButton = (Button) itemView.findViewById(R.id.sell_button);
+        }
+    }
+
+    private final Context mContext;
+    private final ImageLoader mImageLoader;
+    private final OnProductClickListener mListener;
+    private final SaleBuffer mSaleBuffer;
+    /** Delivers the diffs */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Rows shown */
+    private List<ProductRow> mRows = Collections.emptyList();
+    /** Last cursor given, whose rows are shown once diffed */
+    private Cursor mCursor;
+    /** Incremented by every cursor given, so the diff of an older cursor is dropped */
+    private int mGeneration;
+    /** Rows bound since the adapter was created, for the benchmark */
+    private int mBindCount;
+    /** Units sold by flushed batches, by product id, until rows read after the flush are shown */
+    private final Map<Long, FlushedSales> mFlushedSales = new HashMap<>();
+
+    /**
+     * Shows the pending sales on their rows, the sales the provider rejected, and the batches not sent yet.
+     */
+    private final SaleBuffer.Listener mSaleListener = new SaleBuffer.Listener() {
+        @Override
+        public void onPendingSalesChanged(long productId) {
+            notifyProductChanged(productId);
+        }
+
+        @Override
+        public void onSalesFlushed(long productId, int sold, int rejected) {
+            if (sold != 0) {
+                // The rows shown, and those of the cursors given so far, may still have the stock from before
+                // the batch: the provider notifies the sale, and the cursor read then has it.
+                FlushedSales flushed = mFlushedSales.get(productId);
+                if (flushed == null) {
+                    flushed = new FlushedSales();
+                    mFlushedSales.put(productId, flushed);
+                }
+                flushed.units += sold;
+                flushed.generation = mGeneration;
+            }
+            if (rejected != 0) {
+                // The stock went down since the row was read
+                Toast.makeText(mContext, R.string.sell_product_failure, Toast.LENGTH_SHORT).show();
+            }
+            notifyProductChanged(productId);
+        }
+
+        @Override
+        public void onSalesDelayed(int failures) {
+            if (failures == 1) {
+                // The rows still show the units as pending, and the stock without them
+                Toast.makeText(mContext, R.string.sale_delayed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    /**
+     * Handles the clicks of every row and sell button. The row is found from the view holder in the view's tag.
+     */
+    private final View.OnClickListener mClickHandler = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            ViewHolder holder = (ViewHolder) view.getTag();
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                // Removed, or moved by a diff not laid out yet
+                return;
+            }
+            ProductRow row = mRows.get(position);
+            if (view == holder.sellButton) {
+                sellProduct(row);
+            } else {
+                mListener.onProductClick(row.id);
+            }
+        }
+    };
+
+    public ProductListAdapter(Context context, OnProductClickListener listener) {
+        mContext = context;
+        mImageLoader = ImageLoader.getInstance(context);
+        mListener = listener;
+        mSaleBuffer = SaleBuffer.getInstance(context);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Shows the products of the cursor once they are read and diffed in the background.
+     * The cursor stays owned by its loader.
+     */
+    public void swapCursor(final Cursor cursor) {
+        if (cursor == mCursor) {
+            return;
+        }
+        mCursor = cursor;
+        final int generation = ++mGeneration;
+        if (cursor == null) {
+            mRows = Collections.emptyList();
+            notifyDataSetChanged();
+            return;
+        }
+        final List<ProductRow> oldRows = mRows;
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<ProductRow> newRows;
+                try {
+                    newRows = readRows(cursor);
+                } catch (RuntimeException e) {
+                    // The loader closed the cursor after delivering a newer one, which is diffed next.
+                    Log.w(LOG_TAG, "Cannot read the products", e);
+                    return;
+                }
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new RowDiff(oldRows, newRows));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        // Every newer diff was dropped, so the rows shown are still the ones diffed against.
+                        mRows = newRows;
+                        forgetFlushedSales(generation);
+                        diff.dispatchUpdatesTo(ProductListAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forgets the flushed sales that the rows of the cursor with the given generation have.
+     */
+    private void forgetFlushedSales(int generation) {
+        Iterator<FlushedSales> iterator = mFlushedSales.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().generation < generation) {
+                // The cursor was given after the flush
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mSaleBuffer.addListener(mSaleListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mSaleBuffer.removeListener(mSaleListener);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.get(position).id;
+    }
+
+    /**
+     * @return the thumbnail of the product at the position, for the prefetcher.
+     */
+    @Override
+    public Uri getThumbnailUri(int position) {
+        if (position < 0 || position >= mRows.size()) {
+            return null;
+        }
+        String thumbnail = mRows.get(position).thumbnail;
+        return TextUtils.isEmpty(thumbnail) ? null : Uri.parse(thumbnail);
+    }
+
+    /**
+     * @return the amount of rows bound since the adapter was created.
+     */
+    int getBindCount() {
+        return mBindCount;
+    }
+
+    /**
+     * Creates a new blank list item view and finds its views.
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        view.setTag(holder);
+        view.setOnClickListener(mClickHandler);
+        holder.sellButton.setTag(holder);
+        holder.sellButton.setOnClickListener(mClickHandler);
+        return holder;
+    }
+
+    /**
+     * Binds the product data of the row to its views.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        mBindCount++;
+        ProductRow row = mRows.get(position);
+        if (row.section == null) {
+            holder.sectionView.setVisibility(View.GONE);
+        } else {
+            holder.sectionView.setText(row.section);
+            holder.sectionView.setVisibility(View.VISIBLE);
+        }
+        holder.nameView.setText(row.name);
+        if (!TextUtils.isEmpty(row.thumbnail)){
+            // Load the thumbnail made when the photo was captured in the background
+            mImageLoader.load(Uri.parse(row.thumbnail), holder.imageView, R.drawable.placeholder);
+        } else {
+            // Set placeholder image
+            mImageLoader.recycle(holder.imageView);
+            holder.imageView.setImageResource(R.drawable.placeholder);
+            if (!TextUtils.isEmpty(row.picture)){
+                // Photo taken before thumbnails existed: make them, the row is bound again once they're saved.
+                // The pipeline remembers the photos it couldn't read, so binding the row again doesn't retry.
+                ThumbnailPipeline.getInstance(mContext).generate(Uri.parse(row.picture), null);
+            }
+        }
+        if (TextUtils.isEmpty(row.description)){
+            // If product description is empty, set "No description available"
+            holder.descriptionView.setText(R.string.no_description);
+        } else {
+            // Otherwise, set correct description
+            holder.descriptionView.setText(row.description);
+        }
+        bindStock(holder, row);
+    }
+
+    /**
+     * Only updates the quantity and price when nothing else changed.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        mBindCount++;
+        bindStock(holder, mRows.get(position));
+    }
+
+    /**
+     * Stops loading the image of a row once it scrolls out of the screen, and gives its bitmap back.
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        mImageLoader.recycle(holder.imageView);
+    }
+
+    /**
+     * Shows the stock left after the sales not read from the database yet, and the pending ones.
+     */
+    private void bindStock(ViewHolder holder, ProductRow row) {
+        int pending = mSaleBuffer.getPendingCount(row.id);
+        holder.quantityView.setText(Integer.toString(row.quantity - getUnreadSales(row.id)));
+        if (pending == 0) {
+            holder.pendingView.setVisibility(View.GONE);
+        } else {
+            holder.pendingView.setText(mContext.getString(R.string.sale_pending, pending));
+            holder.pendingView.setVisibility(View.VISIBLE);
+        }
+        holder.priceView.setText(Integer.toString(row.price));
+    }
+
+    /**
+     * @return the units of the product sold since its row was read: pending, or flushed since.
+     */
+    private int getUnreadSales(long productId) {
+        FlushedSales flushed = mFlushedSales.get(productId);
+        return mSaleBuffer.getPendingCount(productId) + (flushed == null ? 0 : flushed.units);
+    }
+
+    /**
+     * Rebinds the stock of the product's row, if it's loaded.
+     */
+    private void notifyProductChanged(long productId) {
+        for (int position = 0; position < mRows.size(); position++) {
+            if (mRows.get(position).id == productId) {
+                notifyItemChanged(position, PAYLOAD_STOCK);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the products of the cursor, looking the columns up once. The rows of a PagedCursor with sections
+     * get the label of the section they start.
+     */
+    static List<ProductRow> readRows(Cursor cursor) {
+        int idColumnIndex = cursor.getColumnIndex(ProductEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_NAME);
+        int descriptionColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_DESCRIPTION);
+        int pictureColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PICTURE);
+        int thumbnailColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_THUMBNAIL);
+        int quantityColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        int priceColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PRICE);
+
+        ProductSections sections = null;
+        int startPosition = 0;
+        if (cursor instanceof PagedCursor) {
+            sections = ((PagedCursor) cursor).getSections();
+            startPosition = ((PagedCursor) cursor).getStartPosition();
+        }
+
+        List<ProductRow> rows = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            rows.add(new ProductRow(cursor.getLong(idColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(descriptionColumnIndex),
+                    cursor.getString(pictureColumnIndex),
+                    cursor.getString(thumbnailColumnIndex),
+                    cursor.getInt(quantityColumnIndex),
+                    cursor.getInt(priceColumnIndex),
+                    sections == null ? null : sections.getLabelStartingAt(startPosition + cursor.getPosition())));
+        }
+        return rows;
+    }
+
+    /**
+     * Sells a unit of the product through the sale buffer, if the stock left covers it.
+     * The provider sells the buffered units with a single statement per product, and only if there is enough stock.
+     */
+    private void sellProduct(ProductRow row) {
+        if (row.quantity - getUnreadSales(row.id) < 1) {
+            Toast.makeText(mContext, R.string.sell_product_failure, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSaleBuffer.sell(row.id, 1);
+    }
+
+    /**
+     * Compares the rows shown with the rows of a new cursor, by product id then by shown values.
+     */
+    private static class RowDiff extends DiffUtil.Callback {
+        private final List<ProductRow> mOldRows;
+        private final List<ProductRow> mNewRows;
+
+        RowDiff(List<ProductRow> oldRows, List<ProductRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).id == mNewRows.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            ProductRow oldRow = mOldRows.get(oldItemPosition);
+            ProductRow newRow = mNewRows.get(newItemPosition);
+            return oldRow.hasSameDetails(newRow) && oldRow.quantity == newRow.quantity && oldRow.price == newRow.price;
+        }
+
+        @Override
+        public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).hasSameDetails(mNewRows.get(newItemPosition)) ? PAYLOAD_STOCK : null;
+        }
+    }
+}
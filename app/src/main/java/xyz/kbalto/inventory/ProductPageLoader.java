@@ -0,0 +1,409 @@
+package xyz.kbalto.inventory;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import xyz.kbalto.inventory.PagedCursor.Page;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+
+/**
+ * Loads the product list one page at a time, filtered and sorted by a ProductQuery (by name by default).
+ * The first load reads a single page; {@link #loadNextPage()} appends the next one, and
+ * {@link #loadPreviousPage()} prepends the one above when the pages don't start at the top of the list.
+ * At most {@link #MAX_PAGES} pages stay loaded: the window follows the rows the user scrolls to, and the pages
+ * at its other end are dropped. When the data changes, the pages of the window are read again from its first
+ * row on, so the list keeps its length and scroll position. Memory and the cost of a reload stay the same
+ * however far the user scrolls, and however large the catalog is.
+ * <p>
+ * The whole list sorted by name also has alphabetical sections. They are read again only after the provider
+ * notifies {@link ProductEntry#SECTIONS_CHANGED_URI}, not on every sale. {@link #jumpToSection(int)} replaces
+ * the loaded pages with the first page of a section, found with a single keyset query.
+ */
+public class ProductPageLoader extends AsyncTaskLoader<Cursor> {
+    /** Kinds of load: read the loaded pages again, append a page, prepend a page, jump to a section */
+    private static final int LOAD_RELOAD = 0;
+    private static final int LOAD_NEXT_PAGE = 1;
+    private static final int LOAD_PREVIOUS_PAGE = 2;
+    private static final int LOAD_SECTION = 3;
+    /** Most pages loaded at once */
+    static final int MAX_PAGES = 5;
+
+    /** Reloads the pages when the products change */
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    /** Set when the sections changed since they were read, so the next load reads them again */
+    private final AtomicBoolean mSectionsChanged = new AtomicBoolean();
+    /** Reloads the list with new sections when they change */
+    private final ContentObserver mSectionsObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mSectionsChanged.set(true);
+            onContentChanged();
+        }
+    };
+    /** Whether mSectionsObserver is registered */
+    private boolean mObservingSections;
+    /** Columns to include. Must contain _id and the sort column, which are used to query the next page. */
+    private final String[] mProjection;
+    /** Filters and sort order of the list */
+    private final ProductQuery mQuery;
+    /** Same filters in the opposite order, to read the page before the loaded ones */
+    private final ProductQuery mReverseQuery;
+    /** Amount of rows of a page */
+    private final int mPageSize;
+    /** Last delivered cursor. Its pages are owned by the loader. */
+    private volatile PagedCursor mCursor;
+    /** Kind of the next load, one of LOAD_* */
+    private volatile int mNextLoad = LOAD_RELOAD;
+    /** Section jumped to by the next load, with LOAD_SECTION */
+    private volatile int mJumpSection;
+
+    public ProductPageLoader(Context context, String[] projection, ProductQuery query, int pageSize) {
+        super(context);
+        mProjection = projection;
+        mQuery = query;
+        mReverseQuery = ProductQuery.fromUri(query.buildUri()).setSort(query.getSort(), !query.isDescending());
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Starts loading the page after the loaded ones, if there may be one and no page is loading already.
+     */
+    public void loadNextPage() {
+        PagedCursor cursor = mCursor;
+        if (cursor != null && cursor.hasMore() && mNextLoad == LOAD_RELOAD) {
+            mNextLoad = LOAD_NEXT_PAGE;
+            forceLoad();
+        }
+    }
+
+    /**
+     * Starts loading the page before the loaded ones, if they start after a jump and no page is loading already.
+     */
+    public void loadPreviousPage() {
+        PagedCursor cursor = mCursor;
+        if (cursor != null && cursor.hasPrevious() && mNextLoad == LOAD_RELOAD) {
+            mNextLoad = LOAD_PREVIOUS_PAGE;
+            forceLoad();
+        }
+    }
+
+    /**
+     * Replaces the loaded pages with the first page of a section of {@link PagedCursor#getSections()}.
+     */
+    public void jumpToSection(int section) {
+        mJumpSection = section;
+        mNextLoad = LOAD_SECTION;
+        forceLoad();
+    }
+
+    /**
+     * Runs on a background thread.
+     */
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor loaded = mCursor;
+        int load = loaded == null ? LOAD_RELOAD : mNextLoad;
+        List<Page> pages = new ArrayList<>();
+        ProductSections sections = loaded == null ? null : loaded.getSections();
+        // Reset before reading, so a change during the read makes the next load read them again
+        boolean sectionsChanged = mSectionsChanged.getAndSet(false);
+        // Where the pages start: after (startSortKey, startId), at startPosition of the whole list
+        String startSortKey = null;
+        long startId = 0;
+        int startPosition = 0;
+        boolean hasPrevious = false;
+        boolean hasMore;
+        try {
+            if (hasSections() && (sections == null || sectionsChanged)) {
+                Cursor sectionsCursor = getContext().getContentResolver().query(
+                        ProductEntry.SECTIONS_URI, null, null, null, null);
+                if (sectionsCursor != null) {
+                    try {
+                        sections = ProductSections.fromCursor(sectionsCursor);
+                    } finally {
+                        sectionsCursor.close();
+                    }
+                }
+            }
+
+            int pagesToLoad;
+            if (load == LOAD_NEXT_PAGE) {
+                // Keep the loaded pages and read one more
+                pages.addAll(loaded.getPages());
+                startPosition = loaded.getStartPosition();
+                hasPrevious = loaded.hasPrevious();
+                startSortKey = loaded.getLastSortKey();
+                startId = loaded.getLastId();
+                pagesToLoad = 1;
+            } else if (load == LOAD_PREVIOUS_PAGE) {
+                // Keep the loaded pages, and read the one before them backwards
+                Cursor cursor = getContext().getContentResolver().query(
+                        mReverseQuery.buildPageUri(loaded.getFirstSortKey(), loaded.getFirstId(), mPageSize),
+                        mProjection, null, null, null);
+                int count = 0;
+                if (cursor != null) {
+                    count = cursor.getCount();
+                    if (count != 0) {
+                        pages.add(readPage(reverse(cursor)));
+                    } else {
+                        cursor.close();
+                    }
+                }
+                pages.addAll(loaded.getPages());
+                // Nothing before a partial page: the pages are at the top of the list now
+                hasPrevious = count == mPageSize;
+                startPosition = hasPrevious ? Math.max(0, loaded.getStartPosition() - count) : 0;
+                pagesToLoad = 0;
+            } else if (load == LOAD_SECTION && sections != null && mJumpSection > 0
+                    && mJumpSection < sections.getSectionCount()) {
+                // From the first product of the section: after (name, 0) is every product from that name on
+                startSortKey = sections.getStartName(mJumpSection);
+                startPosition = sections.getPositionForSection(mJumpSection);
+                hasPrevious = true;
+                pagesToLoad = 1;
+            } else if (load == LOAD_RELOAD && loaded.hasPrevious() && loaded.getFirstSortKey() != null) {
+                // Read the window again from the first product loaded on
+                startSortKey = loaded.getFirstSortKey();
+                startId = loaded.getFirstId() - 1;
+                startPosition = loaded.getStartPosition();
+                hasPrevious = true;
+                pagesToLoad = loaded.getPages().size();
+            } else {
+                // From the top, as many pages as were loaded before (at least one), or one for a jump to the top
+                pagesToLoad = load == LOAD_RELOAD && loaded != null ? loaded.getPages().size() : 1;
+            }
+
+            hasMore = pagesToLoad == 0 ? loaded.hasMore() : true;
+            String afterSortKey = startSortKey;
+            long afterId = startId;
+            for (int i = 0; i < pagesToLoad && hasMore; i++) {
+                Cursor cursor = getContext().getContentResolver().query(
+                        mQuery.buildPageUri(afterSortKey, afterId, mPageSize), mProjection, null, null, null);
+                if (cursor == null) {
+                    break;
+                }
+                int count = cursor.getCount();
+                hasMore = count == mPageSize;
+                if (count == 0 && !pages.isEmpty()) {
+                    // An empty page is only kept for an empty list, which still needs its columns
+                    cursor.close();
+                    break;
+                }
+                // Remember where the next page starts, while the page isn't shared yet.
+                Page page = readPage(cursor);
+                pages.add(page);
+                afterSortKey = page.lastSortKey;
+                afterId = page.lastId;
+                if (afterSortKey == null) {
+                    // No page starts after a NULL sort key: the next one would be the first page again
+                    hasMore = false;
+                }
+            }
+
+            // Drop the pages at the other end of the window from the one just loaded. They are closed once the
+            // cursor still showing them is released.
+            if (load == LOAD_PREVIOUS_PAGE) {
+                while (pages.size() > MAX_PAGES) {
+                    pages.remove(pages.size() - 1);
+                    hasMore = true;
+                }
+            } else {
+                while (pages.size() > MAX_PAGES) {
+                    startPosition += pages.remove(0).cursor.getCount();
+                    hasPrevious = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            if (sectionsChanged) {
+                mSectionsChanged.set(true);
+            }
+            closeUnusedPages(pages, loaded);
+            throw e;
+        }
+        if (pages.isEmpty()) {
+            return null;
+        }
+
+        PagedCursor cursor = new PagedCursor(pages, startPosition, hasPrevious, hasMore, sections);
+        cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+        cursor.registerContentObserver(mObserver);
+        return cursor;
+    }
+
+    /**
+     * Runs on the main thread when a load finishes.
+     */
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor newCursor = (PagedCursor) cursor;
+        if (isReset()) {
+            release(newCursor, null);
+            return;
+        }
+        PagedCursor oldCursor = mCursor;
+        mCursor = newCursor;
+        mNextLoad = LOAD_RELOAD;
+
+        if (isStarted()) {
+            super.deliverResult(newCursor);
+        }
+        if (oldCursor != null && oldCursor != newCursor) {
+            release(oldCursor, newCursor);
+        }
+    }
+
+    /**
+     * Releases a result that finished loading after it was canceled.
+     */
+    @Override
+    public void onCanceled(Cursor cursor) {
+        mNextLoad = LOAD_RELOAD;
+        release((PagedCursor) cursor, mCursor);
+    }
+
+    /**
+     * The data changed: read the loaded pages again instead of adding a page. A jump reads the new data anyway.
+     */
+    @Override
+    public void onContentChanged() {
+        if (mNextLoad != LOAD_SECTION) {
+            mNextLoad = LOAD_RELOAD;
+        }
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObservingSections && hasSections()) {
+            getContext().getContentResolver().registerContentObserver(ProductEntry.SECTIONS_CHANGED_URI, false,
+                    mSectionsObserver);
+            mObservingSections = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        // Ensure the loader is stopped
+        onStopLoading();
+        if (mCursor != null) {
+            release(mCursor, null);
+        }
+        mCursor = null;
+        mNextLoad = LOAD_RELOAD;
+        if (mObservingSections) {
+            getContext().getContentResolver().unregisterContentObserver(mSectionsObserver);
+            mObservingSections = false;
+        }
+    }
+
+    /**
+     * @return whether the list has alphabetical sections: the whole catalog sorted by name.
+     */
+    private boolean hasSections() {
+        return mQuery.getSort() == ProductQuery.Sort.NAME && !mQuery.isDescending() && !mQuery.hasFilters();
+    }
+
+    /**
+     * Reads the keys of the first and last rows of a page that isn't shared yet.
+     */
+    private Page readPage(Cursor cursor) {
+        String firstSortKey = null;
+        long firstId = 0;
+        String lastSortKey = null;
+        long lastId = 0;
+        int sortColumnIndex = cursor.getColumnIndexOrThrow(mQuery.getSort().getColumn());
+        int idColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry._ID);
+        if (cursor.moveToFirst()) {
+            firstSortKey = cursor.getString(sortColumnIndex);
+            firstId = cursor.getLong(idColumnIndex);
+        }
+        if (cursor.moveToLast()) {
+            lastSortKey = cursor.getString(sortColumnIndex);
+            lastId = cursor.getLong(idColumnIndex);
+        }
+        return new Page(cursor, firstSortKey, firstId, lastSortKey, lastId);
+    }
+
+    /**
+     * Copies a page read in the reverse order into a page in the list order, and closes it.
+     */
+    private static Cursor reverse(Cursor page) {
+        try {
+            String[] columns = page.getColumnNames();
+            MatrixCursor reversed = new MatrixCursor(columns, page.getCount());
+            for (int position = page.getCount() - 1; position >= 0; position--) {
+                page.moveToPosition(position);
+                Object[] row = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    switch (page.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[column] = page.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[column] = page.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[column] = page.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[column] = page.getBlob(column);
+                            break;
+                        default:
+                            row[column] = null;
+                    }
+                }
+                reversed.addRow(row);
+            }
+            return reversed;
+        } finally {
+            page.close();
+        }
+    }
+
+    /**
+     * Closes a cursor and the pages that the cursor still in use doesn't share.
+     */
+    private static void release(PagedCursor cursor, PagedCursor inUse) {
+        if (cursor == null) {
+            return;
+        }
+        cursor.close();
+        closeUnusedPages(cursor.getPages(), inUse);
+    }
+
+    private static void closeUnusedPages(List<Page> pages, PagedCursor inUse) {
+        for (Page page : pages) {
+            if (inUse == null || !inUse.getPages().contains(page)) {
+                page.cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package xyz.kbalto.inventory;
+
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Alphabetical sections of the product list sorted by name, read from the sections URI: the label of each
+ * section, the position of its first product in the whole list and the name where its page starts.
+ * Positions are looked up with a binary search, so a jump costs the same with 100 or 100k products.
+ */
+class ProductSections {
+    private final String[] mLabels;
+    /** Position of the first product of each section, in the whole list */
+    private final int[] mStarts;
+    /** Name of the first product of each section */
+    private final String[] mStartNames;
+    /** Amount of products of the whole list */
+    private final int mCount;
+
+    private ProductSections(String[] labels, int[] starts, String[] startNames, int count) {
+        mLabels = labels;
+        mStarts = starts;
+        mStartNames = startNames;
+        mCount = count;
+    }
+
+    /**
+     * Reads the rows of a sections cursor.
+     */
+    static ProductSections fromCursor(Cursor cursor) {
+        int labelColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_LABEL);
+        int countColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_COUNT);
+        int startColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_SECTION_START);
+        int size = cursor.getCount();
+        String[] labels = new String[size];
+        int[] starts = new int[size];
+        String[] startNames = new String[size];
+        int count = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int section = cursor.getPosition();
+            String label = cursor.getString(labelColumnIndex);
+            // Names starting with a space or nothing at all
+            labels[section] = label == null || label.trim().isEmpty() ? "#" : label;
+            starts[section] = count;
+            startNames[section] = cursor.getString(startColumnIndex);
+            count += cursor.getInt(countColumnIndex);
+        }
+        return new ProductSections(labels, starts, startNames, count);
+    }
+
+    int getSectionCount() {
+        return mLabels.length;
+    }
+
+    /**
+     * @return the amount of products of the whole list.
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    String getLabel(int section) {
+        return mLabels[section];
+    }
+
+    /**
+     * @return the position of the first product of the section in the whole list.
+     */
+    int getPositionForSection(int section) {
+        return mStarts[section];
+    }
+
+    /**
+     * @return the name of the first product of the section, from which a page of the section is read.
+     */
+    String getStartName(int section) {
+        return mStartNames[section];
+    }
+
+    /**
+     * @return the section of the product at a position of the whole list.
+     */
+    int getSectionForPosition(int position) {
+        int index = Arrays.binarySearch(mStarts, position);
+        // Otherwise the section starting before the position
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * @return the label of the section starting at a position of the whole list, or null if none starts there.
+     */
+    String getLabelStartingAt(int position) {
+        int index = Arrays.binarySearch(mStarts, position);
+        return index >= 0 ? mLabels[index] : null;
+    }
+}
@@ -0,0 +1,173 @@
+package xyz.kbalto.inventory;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
+import android.view.KeyEvent;
+import android.view.inputmethod.EditorInfo;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.SaleBuffer;
+
+/**
+ * Sells or restocks one unit of a product per scanned code. Scanners type the code followed by Enter in the
+ * code field, which is cleared right away for the next scan. Codes are looked up by SKU in the background,
+ * in the order they are scanned, and sales go through the SaleBuffer, so the main thread never waits for the
+ * database.
+ */
+public class ScanActivity extends AppCompatActivity {
+    /** Results kept on screen, newest first */
+    private static final int MAX_RESULTS = 50;
+
+    /** Looks the scanned codes up and restocks, in the order they are scanned. */
+    private static final ExecutorService sScanExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ProductScan");
+        }
+    });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private SaleBuffer mSaleBuffer;
+    private EditText mCodeEditText;
+    private RadioGroup mModeGroup;
+    /** Results shown, newest first */
+    private final List<String> mResults = new ArrayList<>();
+    private ArrayAdapter<String> mResultsAdapter;
+    /** Set when the activity is destroyed, so late lookups are dropped */
+    private boolean mDestroyed;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_scan);
+
+        mSaleBuffer = SaleBuffer.getInstance(this);
+        mCodeEditText = (EditText) findViewById(R.id.scan_code);
+        mModeGroup = (RadioGroup) findViewById(R.id.scan_mode);
+        mResultsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, mResults);
+        ((ListView) findViewById(R.id.scan_results)).setAdapter(mResultsAdapter);
+
+        mCodeEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_DONE
+                        || (event != null && event.getKeyCode() == KeyEvent.KEYCODE_ENTER)) {
+                    if (event == null || event.getAction() == KeyEvent.ACTION_DOWN) {
+                        String code = mCodeEditText.getText().toString().trim();
+                        mCodeEditText.setText(null);
+                        if (!TextUtils.isEmpty(code)) {
+                            scan(code, mModeGroup.getCheckedRadioButtonId() == R.id.scan_mode_restock);
+                        }
+                    }
+                    // Keep the focus in the field for the next scan
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mSaleBuffer.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        super.onDestroy();
+    }
+
+    /**
+     * Looks the code up in the background, then sells or restocks one unit of its product.
+     */
+    private void scan(final String code, final boolean restock) {
+        final ContentResolver resolver = getContentResolver();
+        sScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long id = -1;
+                String name = null;
+                int quantity = 0;
+                Cursor cursor = resolver.query(ProductEntry.buildSkuUri(code), new String[]{ProductEntry._ID,
+                        ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            id = cursor.getLong(cursor.getColumnIndexOrThrow(ProductEntry._ID));
+                            name = cursor.getString(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME));
+                            quantity = cursor.getInt(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                if (id != -1 && restock && resolver.update(ProductEntry.buildRestockUri(id, 1), null, null, null) == 1) {
+                    quantity++;
+                }
+                final long productId = id;
+                final String productName = name;
+                final int productQuantity = quantity;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDestroyed) {
+                            onScanned(code, productId, productName, productQuantity, restock);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sells the unit of a code looked up, and shows the result.
+     * @param productId id of the product with the code, or -1 if none has it.
+     * @param quantity stock of the product in the database, after the restock if any.
+     */
+    private void onScanned(String code, long productId, String name, int quantity, boolean restock) {
+        String result;
+        if (productId == -1) {
+            result = getString(R.string.scan_unknown, code);
+        } else if (restock) {
+            result = getString(R.string.scan_restocked, name, quantity - mSaleBuffer.getPendingCount(productId));
+        } else {
+            int available = quantity - mSaleBuffer.getPendingCount(productId);
+            if (available < 1) {
+                result = getString(R.string.scan_no_stock, name);
+            } else {
+                mSaleBuffer.sell(productId, 1);
+                result = getString(R.string.scan_sold, name, available - 1);
+            }
+        }
+        mResults.add(0, result);
+        if (mResults.size() > MAX_RESULTS) {
+            mResults.remove(MAX_RESULTS);
+        }
+        mResultsAdapter.notifyDataSetChanged();
+    }
+}
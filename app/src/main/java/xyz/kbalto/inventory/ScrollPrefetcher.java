@@ -0,0 +1,156 @@
+package xyz.kbalto.inventory;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import xyz.kbalto.inventory.image.ImageLoader;
+
+/**
+ * Prefetches the thumbnails of the rows about to scroll into view, so a fling shows images instead of
+ * placeholders. The amount of rows looked ahead follows the scroll velocity. Rows are prefetched one at a
+ * time, behind every visible row loading, from a bounded queue that is dropped when the scroll direction
+ * reverses. Must be called from the main thread, from the list's OnScrollListener.
+ */
+class ScrollPrefetcher implements ImageLoader.PrefetchListener {
+    /** Time of scrolling covered by the prefetched rows, in milliseconds */
+    private static final long LOOKAHEAD_MILLIS = 500;
+    /** Rows prefetched ahead of a slow scroll */
+    private static final int MIN_LOOKAHEAD_ROWS = 4;
+    /** Rows prefetched ahead of a fling, which is also the size of the queue */
+    static final int MAX_LOOKAHEAD_ROWS = 24;
+
+    /**
+     * Gives the thumbnail of a row of the list.
+     */
+    interface ImageSource {
+        /**
+         * @return the thumbnail URI of the row, or null if it has none.
+         */
+        Uri getThumbnailUri(int position);
+    }
+
+    /** List whose rows are prefetched */
+    private final ViewGroup mListView;
+    private final ImageSource mSource;
+    private final ImageLoader mImageLoader;
+    /** Id of the image views of the rows */
+    private final int mImageViewId;
+    /** Positions waiting to be prefetched, closest first */
+    private final Deque<Integer> mQueue = new ArrayDeque<>(MAX_LOOKAHEAD_ROWS);
+    /** Prefetch running, null if none */
+    private ImageLoader.Prefetch mCurrent;
+    /** Last position queued, so rows already queued aren't queued again */
+    private int mQueuedUpTo = -1;
+    /** Scroll direction: 1 down, -1 up, 0 unknown */
+    private int mDirection;
+    /** First visible position and time of the previous scroll event, to measure the velocity */
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+
+    ScrollPrefetcher(ViewGroup listView, ImageSource source, ImageLoader imageLoader, int imageViewId) {
+        mListView = listView;
+        mSource = source;
+        mImageLoader = imageLoader;
+        mImageViewId = imageViewId;
+    }
+
+    /**
+     * Follows the scroll position, called from the list's scroll listener.
+     */
+    void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible == -1 || firstVisibleItem == mLastFirstVisible) {
+            if (mLastFirstVisible == -1) {
+                mLastFirstVisible = firstVisibleItem;
+                mLastScrollTime = now;
+            }
+            return;
+        }
+        int direction = firstVisibleItem > mLastFirstVisible ? 1 : -1;
+        long elapsed = Math.max(1, now - mLastScrollTime);
+        // Rows per second
+        float velocity = Math.abs(firstVisibleItem - mLastFirstVisible) * 1000f / elapsed;
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+
+        if (direction != mDirection) {
+            // The rows queued are now behind: drop them
+            cancel();
+            mDirection = direction;
+        }
+
+        int lookahead = Math.round(velocity * LOOKAHEAD_MILLIS / 1000f);
+        lookahead = Math.max(MIN_LOOKAHEAD_ROWS, Math.min(MAX_LOOKAHEAD_ROWS, lookahead));
+        int edge = direction > 0 ? firstVisibleItem + visibleItemCount - 1 : firstVisibleItem;
+        int limit = direction > 0 ? Math.min(totalItemCount - 1, edge + lookahead) : Math.max(0, edge - lookahead);
+        // Queue the rows between the visible ones and the lookahead that aren't queued yet
+        int start = mQueuedUpTo == -1 || (mQueuedUpTo - edge) * direction <= 0 ? edge + direction : mQueuedUpTo + direction;
+        for (int position = start; (limit - position) * direction >= 0; position += direction) {
+            if (mQueue.size() == MAX_LOOKAHEAD_ROWS) {
+                // Bounded: the farthest rows wait for the next scroll event
+                break;
+            }
+            mQueue.addLast(position);
+            mQueuedUpTo = position;
+        }
+        // Rows that became visible are loaded by the adapter
+        while (!mQueue.isEmpty() && (mQueue.peekFirst() - edge) * direction <= 0) {
+            mQueue.removeFirst();
+        }
+        next();
+    }
+
+    /**
+     * Drops the queued rows and cancels the running prefetch, e.g. when the list is reloaded.
+     */
+    void cancel() {
+        mQueue.clear();
+        mQueuedUpTo = -1;
+        if (mCurrent != null) {
+            mCurrent.cancel();
+            mCurrent = null;
+        }
+    }
+
+    @Override
+    public void onPrefetched(Uri uri) {
+        mCurrent = null;
+        next();
+    }
+
+    /**
+     * Starts the prefetch of the next queued row, unless one is running.
+     */
+    private void next() {
+        ImageView sizeReference = findRowImageView();
+        if (sizeReference == null) {
+            return;
+        }
+        while (mCurrent == null && !mQueue.isEmpty()) {
+            Uri thumbnail = mSource.getThumbnailUri(mQueue.removeFirst());
+            if (thumbnail != null) {
+                // Null when it's in memory already: go on with the next row
+                mCurrent = mImageLoader.prefetch(thumbnail, sizeReference, this);
+            }
+        }
+    }
+
+    /**
+     * @return the image view of a visible row, whose size the prefetched images are decoded at.
+     */
+    private ImageView findRowImageView() {
+        for (int i = 0; i < mListView.getChildCount(); i++) {
+            View imageView = mListView.getChildAt(i).findViewById(mImageViewId);
+            if (imageView instanceof ImageView) {
+                return (ImageView) imageView;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package xyz.kbalto.inventory;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Fast-scroll thumb along the right edge of the product list. Dragging it selects the alphabetical section
+ * under the finger, shown in a bubble next to the thumb. Touches away from the thumb fall through to the
+ * list below, so the rows under the edge stay clickable. Hidden until the list has sections and is long enough to need it.
+ */
+public class SectionFastScroller extends View {
+    /** Amount of products under which the list is short enough to fling through */
+    private static final int MIN_PRODUCTS = 100;
+
+    /**
+     * Receives the section dragged to.
+     */
+    public interface OnSectionSelectedListener {
+        void onSectionSelected(int section);
+    }
+
+    private final Paint mThumbPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBubblePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF mThumbRect = new RectF();
+    private final float mThumbWidth;
+    private final float mThumbHeight;
+    /** Width of the edge where a touch grabs the thumb, which also grabs half a thumb above and below it */
+    private final float mTouchWidth;
+    private final float mBubbleRadius;
+    private OnSectionSelectedListener mListener;
+    private ProductSections mSections;
+    /** Position of the first visible product in the whole list */
+    private int mPosition;
+    /** Section under the finger while dragging, -1 otherwise */
+    private int mDraggedSection = -1;
+
+    public SectionFastScroller(Context context) {
+        this(context, null);
+    }
+
+    public SectionFastScroller(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        mThumbWidth = 6 * density;
+        mThumbHeight = 48 * density;
+        mTouchWidth = 32 * density;
+        mBubbleRadius = 28 * density;
+        int accent = ContextCompat.getColor(context, R.color.colorAccent);
+        mThumbPaint.setColor(accent);
+        mBubblePaint.setColor(accent);
+        mLabelPaint.setColor(0xFFFFFFFF);
+        mLabelPaint.setTextAlign(Paint.Align.CENTER);
+        mLabelPaint.setTextSize(24 * getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setOnSectionSelectedListener(OnSectionSelectedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the sections of the list shown, null if it has none.
+     */
+    void setSections(ProductSections sections) {
+        mSections = sections;
+        if (!hasThumb(sections) || mDraggedSection >= sections.getSectionCount()) {
+            mDraggedSection = -1;
+        }
+        invalidate();
+    }
+
+    /**
+     * Moves the thumb to the position of the first visible product in the whole list.
+     */
+    void setPosition(int position) {
+        if (position != mPosition) {
+            mPosition = position;
+            if (mDraggedSection == -1) {
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!hasThumb(mSections)) {
+            return;
+        }
+        float top;
+        if (mDraggedSection != -1) {
+            // Under the finger, at the start of the section dragged to
+            top = getThumbTop(mSections.getPositionForSection(mDraggedSection));
+        } else {
+            top = getThumbTop(mPosition);
+        }
+        mThumbRect.set(getWidth() - mThumbWidth, top, getWidth(), top + mThumbHeight);
+        canvas.drawRoundRect(mThumbRect, mThumbWidth / 2, mThumbWidth / 2, mThumbPaint);
+
+        if (mDraggedSection != -1) {
+            float centerX = getWidth() - mTouchWidth - mBubbleRadius;
+            float centerY = Math.max(mBubbleRadius, top + mThumbHeight / 2);
+            canvas.drawCircle(centerX, centerY, mBubbleRadius, mBubblePaint);
+            canvas.drawText(mSections.getLabel(mDraggedSection), centerX,
+                    centerY - (mLabelPaint.descent() + mLabelPaint.ascent()) / 2, mLabelPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!hasThumb(mSections)) {
+            return false;
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                float top = getThumbTop(mPosition);
+                if (event.getX() < getWidth() - mTouchWidth || event.getY() < top - mThumbHeight / 2
+                        || event.getY() > top + mThumbHeight * 3 / 2) {
+                    // Let the list scroll, or the row handle it
+                    return false;
+                }
+                getParent().requestDisallowInterceptTouchEvent(true);
+                mDraggedSection = -1;
+                dragTo(event.getY());
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                dragTo(event.getY());
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                // The list scrolled to the section, the thumb follows it from now on
+                mPosition = mSections.getPositionForSection(Math.max(0, mDraggedSection));
+                mDraggedSection = -1;
+                invalidate();
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Selects the section at a height of the track, when it isn't the one selected already.
+     */
+    private void dragTo(float y) {
+        float fraction = Math.max(0, Math.min(1, y / getHeight()));
+        int position = Math.min(mSections.getCount() - 1, (int) (fraction * mSections.getCount()));
+        int section = mSections.getSectionForPosition(position);
+        if (section != mDraggedSection) {
+            mDraggedSection = section;
+            invalidate();
+            if (mListener != null) {
+                mListener.onSectionSelected(section);
+            }
+        }
+    }
+
+    /**
+     * @return the top of the thumb for a position of the whole list.
+     */
+    private float getThumbTop(int position) {
+        float fraction = mSections.getCount() <= 1 ? 0 : (float) position / (mSections.getCount() - 1);
+        return Math.min(1, fraction) * (getHeight() - mThumbHeight);
+    }
+
+    private static boolean hasThumb(ProductSections sections) {
+        return sections != null && sections.getSectionCount() != 0 && sections.getCount() >= MIN_PRODUCTS;
+    }
+}
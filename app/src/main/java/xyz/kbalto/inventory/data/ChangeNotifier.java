@@ -0,0 +1,84 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses bursts of change notifications into at most one notification per table per frame.
+ * Observers are registered with descendant semantics (the list on products, the editor on products/#),
+ * so a row that changed alone is notified on its own URI and only reaches the list and that row's editor.
+ * When several rows of a table changed during the same frame, the table URI is notified once instead,
+ * which also reaches the observers of each row.
+ */
+class ChangeNotifier {
+    /** Time the notifications are held back to be collapsed, in milliseconds: one frame at 60 fps. */
+    static final long FRAME_MILLIS = 16;
+
+    /** Resolver the notifications are sent through */
+    private final ContentResolver mResolver;
+    /** Sends the notifications off the writing threads. */
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    /** URIs changed since the last flush, by table URI. Guarded by this. */
+    private Map<Uri, Set<Uri>> mPending = new LinkedHashMap<>();
+
+    /**
+     * Sends the pending notifications.
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Schedules a notification for the given table or row URI.
+     * The first change of a frame schedules the flush, the next ones are added to it.
+     */
+    void notifyChange(Uri uri) {
+        // Table URI: content://xyz.kbalto.inventory/<table>
+        Uri tableUri = Uri.withAppendedPath(ProductContract.BASE_CONTENT_URI, uri.getPathSegments().get(0));
+        synchronized (this) {
+            boolean scheduled = !mPending.isEmpty();
+            Set<Uri> changed = mPending.get(tableUri);
+            if (changed == null) {
+                changed = new HashSet<>();
+                mPending.put(tableUri, changed);
+            }
+            changed.add(uri);
+            if (scheduled) {
+                return;
+            }
+        }
+        mExecutor.schedule(mFlush, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the pending notifications now: the changed row's URI if a single row of a table changed,
+     * else the table URI.
+     */
+    void flush() {
+        Map<Uri, Set<Uri>> pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new LinkedHashMap<>();
+        }
+        for (Map.Entry<Uri, Set<Uri>> table : pending.entrySet()) {
+            Set<Uri> changed = table.getValue();
+            Uri uri = changed.size() == 1 ? changed.iterator().next() : table.getKey();
+            mResolver.notifyChange(uri, null);
+        }
+    }
+}
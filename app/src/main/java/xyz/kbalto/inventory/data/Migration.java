@@ -0,0 +1,21 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A single step of the schema upgrade chain in ProductDbHelper.
+ * Each migration upgrades the database from (toVersion - 1) to toVersion in place.
+ */
+abstract class Migration {
+    /** Database version after this migration has run. */
+    final int toVersion;
+
+    Migration(int toVersion) {
+        this.toVersion = toVersion;
+    }
+
+    /**
+     * Upgrades the schema. Runs inside the upgrade transaction, so existing rows must be kept.
+     */
+    abstract void migrate(SQLiteDatabase db);
+}
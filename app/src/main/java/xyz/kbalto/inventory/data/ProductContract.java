@@ -1,9 +1,13 @@
 package xyz.kbalto.inventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A centralized place to store all of the data-related constants.
  */
@@ -14,6 +18,82 @@ public class ProductContract {
             // content://xyz.kbalto.inventory
             = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PRODUCTS = "products";
+    /** Path appended to a single product URI to sell units of it */
+    public static final String PATH_SELL = "sell";
+    /** Path appended to a single product URI to add units to its stock */
+    public static final String PATH_RESTOCK = "restock";
+    /** Query parameter with the amount of units of a sale or a restock */
+    public static final String QUERY_PARAMETER_COUNT = "count";
+    /**
+     * Query parameter of a single product URI with the version of the product an update was based on. The update
+     * changes nothing and returns 0 if the product changed since.
+     */
+    public static final String QUERY_PARAMETER_VERSION = "version";
+    /** Path appended to the products URI, followed by a SKU, to look a product up by its SKU */
+    public static final String PATH_SKU = "sku";
+    /** Path appended to the products URI to read the alphabetical sections of the list sorted by name */
+    public static final String PATH_SECTIONS = "sections";
+    /** Path appended to the products URI to search products by name and description */
+    public static final String PATH_SEARCH = "search";
+    /** Query parameter with the text searched */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+    /** Query parameter with the position after which a page starts, as "sortKey,_id" */
+    public static final String QUERY_PARAMETER_AFTER = "after";
+    /** Query parameter with the maximum amount of rows of a page */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    /** Query parameters with the lowest and highest price of the products listed, both included */
+    public static final String QUERY_PARAMETER_MIN_PRICE = "minPrice";
+    public static final String QUERY_PARAMETER_MAX_PRICE = "maxPrice";
+    /** Query parameters with the lowest and highest quantity in stock of the products listed, both included */
+    public static final String QUERY_PARAMETER_MIN_QUANTITY = "minQuantity";
+    public static final String QUERY_PARAMETER_MAX_QUANTITY = "maxQuantity";
+    /** Query parameter with the order of the products listed, one of the SORT_* values */
+    public static final String QUERY_PARAMETER_SORT = "sort";
+    /** Query parameter set to "true" to list the products in descending order */
+    public static final String QUERY_PARAMETER_DESCENDING = "desc";
+    /** Sort orders of the sort parameter: by name (the default), price, quantity in stock and units sold */
+    public static final String SORT_NAME = "name";
+    public static final String SORT_PRICE = "price";
+    public static final String SORT_QUANTITY = "quantity";
+    public static final String SORT_SOLD = "sold";
+    /** Provider method (see ContentResolver.call()) returning the row cache counters */
+    public static final String METHOD_ROW_CACHE_STATS = "rowCacheStats";
+    /** Long extra of the row cache counters with the amount of product queries served from memory */
+    public static final String EXTRA_ROW_CACHE_HITS = "hits";
+    /** Long extra of the row cache counters with the amount of product queries that read the database */
+    public static final String EXTRA_ROW_CACHE_MISSES = "misses";
+    /**
+     * Provider method (see ContentResolver.call()) selling units of several products in one transaction.
+     * The arg is an id of the batch chosen by the caller: a batch that was already applied isn't applied again,
+     * so a batch can be sent again when the caller doesn't know whether it went through.
+     * Each product is sold as with {@link ProductEntry#buildSellUri(long, int)}, only if there is enough stock.
+     */
+    public static final String METHOD_SELL_BATCH = "sellBatch";
+    /** Long array extra of a sale batch with the _id of each product sold */
+    public static final String EXTRA_PRODUCT_IDS = "productIds";
+    /** Int array extra of a sale batch with the units sold of each product, in the order of the product ids */
+    public static final String EXTRA_COUNTS = "counts";
+    /** Boolean extra of the sale batch result, false if the batch had already been applied */
+    public static final String EXTRA_APPLIED = "applied";
+    /** Long array extra of the sale batch result with the products that weren't sold for lack of stock */
+    public static final String EXTRA_REJECTED_IDS = "rejectedIds";
+    /** Path appended to a single product URI to open its image with ContentResolver.openFileDescriptor() */
+    public static final String PATH_IMAGE = "image";
+    /** Query parameter with the size of the image opened, one of the IMAGE_SIZE_* values */
+    public static final String QUERY_PARAMETER_SIZE = "size";
+    /** Image size of the list thumbnail (ThumbnailPipeline.THUMBNAIL_SIZE) */
+    public static final String IMAGE_SIZE_THUMB = "thumb";
+    /** Image size of the editor preview (ThumbnailPipeline.PREVIEW_SIZE), the default */
+    public static final String IMAGE_SIZE_MEDIUM = "medium";
+    /** Image size of the stored photo */
+    public static final String IMAGE_SIZE_FULL = "full";
+    public static final String PATH_SALES = "sales";
+    /** Path appended to the sales URI to read the per-day rollups */
+    public static final String PATH_DAILY = "daily";
+    /** Path of the provider metrics, served by debug builds only */
+    public static final String PATH_METRICS = "metrics";
+    /** Path appended to the metrics URI to read the slow-query log */
+    public static final String PATH_SLOW = "slow";
     /** MIME type constants */
     public static final String CONTENT_LIST_TYPE
             // vnd.android.cursor.dir/xyz.kbalto.inventory/products
@@ -21,12 +101,25 @@ public class ProductContract {
     public static final String CONTENT_ITEM_TYPE
             // vnd.android.cursor.item/xyz.kbalto.inventory/products
             = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PRODUCTS;
+    public static final String CONTENT_SECTIONS_TYPE
+            // vnd.android.cursor.dir/xyz.kbalto.inventory/sections
+            = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SECTIONS;
 
     /** Private empty constructor */
     private ProductContract() {
         // TODO: make nice throw implementation
     }
 
+    /**
+     * Converts a time to the local day number used by the sales tables (days since 1970-01-01 in the
+     * device time zone), so "today" or "last week" can be queried as a range of days.
+     * @param timeMillis time in milliseconds since the epoch.
+     */
+    public static long toDay(long timeMillis) {
+        long localMillis = timeMillis + TimeZone.getDefault().getOffset(timeMillis);
+        return localMillis / TimeUnit.DAYS.toMillis(1);
+    }
+
     /**
      * Inner entry class for the table "products"
      */
@@ -35,6 +128,20 @@ public class ProductContract {
                 // content://xyz.kbalto.inventory/products
                 = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
         public static final String TABLE_NAME = "products";
+        /**
+         * Alphabetical sections of the products sorted by name (case insensitive): one row per first letter
+         * with the columns COLUMN_SECTION_*, in the order of the list.
+         */
+        public static final Uri SECTIONS_URI
+                // content://xyz.kbalto.inventory/products/sections
+                = Uri.withAppendedPath(CONTENT_URI, PATH_SECTIONS);
+        /**
+         * Notified after a write changed the sections, on top of the products it changed. Outside of the products
+         * URI, so the list, which reloads on every change of the products, reads the sections again only then.
+         */
+        public static final Uri SECTIONS_CHANGED_URI
+                // content://xyz.kbalto.inventory/sections
+                = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SECTIONS);
 
         /** Column names for the database */
         // ID for each product.
@@ -43,7 +150,7 @@ public class ProductContract {
         public static final String COLUMN_PRODUCT_NAME = "name";
         // Description of the product. SQL Type = TEXT
         public static final String COLUMN_PRODUCT_DESCRIPTION = "description";
-        // Price of the product. SQL Type = INTEGER DEFAULT 0
+        // Price of the product, 0 if the seller hasn't set it. SQL Type = INTEGER DEFAULT 0, never NULL
         public static final String COLUMN_PRODUCT_PRICE = "price";
         // Quantity of the product. SQL Type = INTEGER DEFAULT 0
         public static final String COLUMN_PRODUCT_QUANTITY = "quantity";
@@ -53,5 +160,432 @@ public class ProductContract {
         public static final String COLUMN_PRODUCT_SOLD_QUANTITY = "soldQuantity";
         // Product sold profit ($ earned). SQL Type = INTEGER
         public static final String COLUMN_PRODUCT_SOLD_PROFIT = "soldProfit";
+        // Small thumbnail of the picture, shown in the list. SQL Type = TEXT (URI String)
+        public static final String COLUMN_PRODUCT_THUMBNAIL = "thumbnail";
+        // Larger thumbnail of the picture, shown in the editor. SQL Type = TEXT (URI String)
+        public static final String COLUMN_PRODUCT_PREVIEW = "preview";
+        // Stock keeping unit or barcode of the product, unique when set. SQL Type = TEXT
+        public static final String COLUMN_PRODUCT_SKU = "sku";
+        // Incremented by every write of the product, to detect stale updates. SQL Type = INTEGER
+        public static final String COLUMN_PRODUCT_VERSION = "version";
+
+        /** Columns of the sections URI */
+        // First letter of the names of the section, upper case. SQL Type = TEXT
+        public static final String COLUMN_SECTION_LABEL = "section";
+        // Amount of products of the section. SQL Type = INTEGER
+        public static final String COLUMN_SECTION_COUNT = "productCount";
+        // Name of the first product of the section (case insensitive), where a page of the section starts.
+        // SQL Type = TEXT
+        public static final String COLUMN_SECTION_START = "startName";
+
+        /** Sort order by product name, served by the name index (case insensitive). */
+        public static final String SORT_ORDER_NAME = COLUMN_PRODUCT_NAME + " COLLATE NOCASE ASC";
+
+        /**
+         * Builds the URI of a page of products sorted by name (case insensitive), then by _id.
+         * Pages are read with keyset pagination, so reading a page costs the same wherever it is in the list.
+         * @param afterName name of the last product of the previous page, or null for the first page.
+         * @param afterId _id of the last product of the previous page.
+         * @param limit maximum amount of products of the page.
+         * @return content://xyz.kbalto.inventory/products?after=afterName,afterId&limit=limit
+         */
+        public static Uri buildPageUri(String afterName, long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (afterName != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterName + "," + afterId);
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+        }
+
+        /**
+         * Builds the URI used to search products. Every word of the query matches as a prefix of a word
+         * of the product name or description. Products matching on the name come first.
+         * @param query text typed by the user.
+         * @return content://xyz.kbalto.inventory/products/search?q=query
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the product with the given SKU, read with a single probe of the unique SKU index.
+         * The query returns no row if no product has the SKU.
+         * @param sku scanned or typed code.
+         * @return content://xyz.kbalto.inventory/products/sku/sku
+         */
+        public static Uri buildSkuUri(String sku) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SKU)
+                    .appendPath(sku)
+                    .build();
+        }
+
+        /**
+         * Builds the URI used to sell units of a product through ContentResolver.update(). The update
+         * returns 1 if the sale was recorded and 0 if there wasn't enough stock.
+         * @param id of the product.
+         * @param count amount of units sold.
+         * @return content://xyz.kbalto.inventory/products/id/sell?count=count
+         */
+        public static Uri buildSellUri(long id, int count) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_SELL)
+                    .appendQueryParameter(QUERY_PARAMETER_COUNT, String.valueOf(count))
+                    .build();
+        }
+
+        /**
+         * Builds the URI used to update a product through ContentResolver.update() only if it wasn't written since
+         * it was read. The update returns 1 if the values were written and 0 if the product changed or is gone,
+         * so the values it was based on should be read again.
+         * @param id of the product.
+         * @param version of the product when it was read, from the version column.
+         * @return content://xyz.kbalto.inventory/products/id?version=version
+         */
+        public static Uri buildVersionedUri(long id, long version) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_VERSION, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * Builds the URI used to add units to the stock of a product through ContentResolver.update().
+         * @param id of the product.
+         * @param count amount of units received.
+         * @return content://xyz.kbalto.inventory/products/id/restock?count=count
+         */
+        public static Uri buildRestockUri(long id, int count) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_RESTOCK)
+                    .appendQueryParameter(QUERY_PARAMETER_COUNT, String.valueOf(count))
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the image of a product, to open with ContentResolver.openFileDescriptor().
+         * The thumbnail and preview are made the first time they are opened.
+         * @param id of the product.
+         * @param size one of IMAGE_SIZE_THUMB, IMAGE_SIZE_MEDIUM and IMAGE_SIZE_FULL.
+         * @return content://xyz.kbalto.inventory/products/#/image?size=size
+         */
+        public static Uri buildImageUri(long id, String size) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_IMAGE)
+                    .appendQueryParameter(QUERY_PARAMETER_SIZE, size)
+                    .build();
+        }
+    }
+
+    /**
+     * Filters and sort order of a list of products, encoded as query parameters of the products URI so they
+     * can be given to a CursorLoader or saved in a Bundle. Unset bounds don't filter. For example, the
+     * products out of stock, best sellers first:
+     * <pre>new ProductQuery().setOutOfStock().setSort(ProductQuery.Sort.SOLD, true).buildUri()</pre>
+     */
+    public static final class ProductQuery {
+        /**
+         * Sort orders of the list. Rows with the same sort key are sorted by _id, in the same direction.
+         */
+        public enum Sort {
+            NAME(SORT_NAME, ProductEntry.COLUMN_PRODUCT_NAME),
+            PRICE(SORT_PRICE, ProductEntry.COLUMN_PRODUCT_PRICE),
+            QUANTITY(SORT_QUANTITY, ProductEntry.COLUMN_PRODUCT_QUANTITY),
+            SOLD(SORT_SOLD, ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY);
+
+            /** Value of the sort parameter */
+            private final String mParameter;
+            /** Column sorted on, whose value in the last row of a page is the page's sort key */
+            private final String mColumn;
+
+            Sort(String parameter, String column) {
+                mParameter = parameter;
+                mColumn = column;
+            }
+
+            public String getColumn() {
+                return mColumn;
+            }
+
+            /**
+             * @throws IllegalArgumentException if the value isn't one of the SORT_* values.
+             */
+            static Sort fromParameter(String parameter) {
+                for (Sort sort : values()) {
+                    if (sort.mParameter.equals(parameter)) {
+                        return sort;
+                    }
+                }
+                throw new IllegalArgumentException("Unknown sort order " + parameter);
+            }
+        }
+
+        private Long mMinPrice;
+        private Long mMaxPrice;
+        private Long mMinQuantity;
+        private Long mMaxQuantity;
+        private Sort mSort = Sort.NAME;
+        private boolean mDescending;
+
+        /**
+         * Lists the products priced between min and max, both included.
+         * @param min lowest price, or null for no lower bound.
+         * @param max highest price, or null for no upper bound.
+         */
+        public ProductQuery setPriceRange(Long min, Long max) {
+            checkRange(min, max);
+            mMinPrice = min;
+            mMaxPrice = max;
+            return this;
+        }
+
+        /**
+         * Lists the products with a quantity in stock between min and max, both included.
+         * @param min lowest quantity, or null for no lower bound.
+         * @param max highest quantity, or null for no upper bound.
+         */
+        public ProductQuery setStockRange(Long min, Long max) {
+            checkRange(min, max);
+            mMinQuantity = min;
+            mMaxQuantity = max;
+            return this;
+        }
+
+        /**
+         * Lists only the products out of stock.
+         */
+        public ProductQuery setOutOfStock() {
+            return setStockRange(0L, 0L);
+        }
+
+        public ProductQuery setSort(Sort sort, boolean descending) {
+            if (sort == null) {
+                throw new IllegalArgumentException("Sort order is required");
+            }
+            mSort = sort;
+            mDescending = descending;
+            return this;
+        }
+
+        public Long getMinPrice() {
+            return mMinPrice;
+        }
+
+        public Long getMaxPrice() {
+            return mMaxPrice;
+        }
+
+        public Long getMinQuantity() {
+            return mMinQuantity;
+        }
+
+        public Long getMaxQuantity() {
+            return mMaxQuantity;
+        }
+
+        public Sort getSort() {
+            return mSort;
+        }
+
+        public boolean isDescending() {
+            return mDescending;
+        }
+
+        /**
+         * @return whether the query leaves products out.
+         */
+        public boolean hasFilters() {
+            return mMinPrice != null || mMaxPrice != null || mMinQuantity != null || mMaxQuantity != null;
+        }
+
+        /**
+         * @return content://xyz.kbalto.inventory/products with the filters and sort order as query parameters.
+         */
+        public Uri buildUri() {
+            return appendParameters(ProductEntry.CONTENT_URI.buildUpon()).build();
+        }
+
+        /**
+         * Builds the URI of a page of the products, read with keyset pagination like
+         * {@link ProductEntry#buildPageUri(String, long, int)}.
+         * @param afterSortKey value of the sort column (see {@link Sort#getColumn()}) in the last product of the
+         *                     previous page, or null for the first page.
+         * @param afterId _id of the last product of the previous page.
+         * @param limit maximum amount of products of the page.
+         */
+        public Uri buildPageUri(String afterSortKey, long afterId, int limit) {
+            Uri.Builder builder = appendParameters(ProductEntry.CONTENT_URI.buildUpon());
+            if (afterSortKey != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterSortKey + "," + afterId);
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+        }
+
+        /**
+         * Reads the filters and sort order of a products URI.
+         * @throws IllegalArgumentException if a parameter has an invalid value.
+         */
+        public static ProductQuery fromUri(Uri uri) {
+            ProductQuery query = new ProductQuery();
+            query.setPriceRange(parseBound(uri, QUERY_PARAMETER_MIN_PRICE), parseBound(uri, QUERY_PARAMETER_MAX_PRICE));
+            query.setStockRange(parseBound(uri, QUERY_PARAMETER_MIN_QUANTITY),
+                    parseBound(uri, QUERY_PARAMETER_MAX_QUANTITY));
+            String sort = uri.getQueryParameter(QUERY_PARAMETER_SORT);
+            query.setSort(sort == null ? Sort.NAME : Sort.fromParameter(sort),
+                    Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAMETER_DESCENDING)));
+            return query;
+        }
+
+        private Uri.Builder appendParameters(Uri.Builder builder) {
+            appendBound(builder, QUERY_PARAMETER_MIN_PRICE, mMinPrice);
+            appendBound(builder, QUERY_PARAMETER_MAX_PRICE, mMaxPrice);
+            appendBound(builder, QUERY_PARAMETER_MIN_QUANTITY, mMinQuantity);
+            appendBound(builder, QUERY_PARAMETER_MAX_QUANTITY, mMaxQuantity);
+            if (mSort != Sort.NAME) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT, mSort.mParameter);
+            }
+            if (mDescending) {
+                builder.appendQueryParameter(QUERY_PARAMETER_DESCENDING, String.valueOf(true));
+            }
+            return builder;
+        }
+
+        private static void appendBound(Uri.Builder builder, String parameter, Long value) {
+            if (value != null) {
+                builder.appendQueryParameter(parameter, String.valueOf(value));
+            }
+        }
+
+        private static Long parseBound(Uri uri, String parameter) {
+            String value = uri.getQueryParameter(parameter);
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number " + value + " in " + uri);
+            }
+        }
+
+        /**
+         * @throws IllegalArgumentException if a bound is negative or the range is empty.
+         */
+        private static void checkRange(Long min, Long max) {
+            if ((min != null && min < 0) || (max != null && max < 0)) {
+                throw new IllegalArgumentException("Bounds must not be negative: " + min + ", " + max);
+            }
+            if (min != null && max != null && min > max) {
+                throw new IllegalArgumentException("Empty range: " + min + " > " + max);
+            }
+        }
+    }
+
+    /**
+     * Inner entry class for the table "sales", an append-only ledger with a row for every sale.
+     * Rows are added by the provider when a product is sold; the table is read-only for clients.
+     */
+    public static abstract class SaleEntry implements BaseColumns {
+        public static final Uri CONTENT_URI
+                // content://xyz.kbalto.inventory/sales
+                = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SALES);
+        public static final String TABLE_NAME = "sales";
+        /** MIME type of the list of sales */
+        public static final String CONTENT_LIST_TYPE
+                // vnd.android.cursor.dir/xyz.kbalto.inventory/sales
+                = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+
+        /** Column names for the database */
+        // ID for each sale.
+        public static final String _ID = BaseColumns._ID;
+        // _id of the product sold. SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_SALE_PRODUCT_ID = "productId";
+        // Units sold. SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_SALE_QUANTITY = "quantity";
+        // Price of a unit when it was sold. SQL Type = INTEGER NOT NULL DEFAULT 0
+        public static final String COLUMN_SALE_UNIT_PRICE = "unitPrice";
+        // Time of the sale, in milliseconds since the epoch. SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_SALE_TIME = "soldAt";
+        // Local day of the sale, see toDay(). SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_SALE_DAY = "day";
+    }
+
+    /**
+     * Inner entry class for the table "daily_sales", with the units sold and revenue of each product per day.
+     * Maintained by a trigger on the sales table, so period reports read a few rows instead of the whole ledger.
+     */
+    public static abstract class DailySalesEntry {
+        public static final Uri CONTENT_URI
+                // content://xyz.kbalto.inventory/sales/daily
+                = Uri.withAppendedPath(SaleEntry.CONTENT_URI, PATH_DAILY);
+        public static final String TABLE_NAME = "daily_sales";
+        /** MIME type of the list of daily rollups */
+        public static final String CONTENT_LIST_TYPE
+                // vnd.android.cursor.dir/xyz.kbalto.inventory/sales/daily
+                = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES + "/" + PATH_DAILY;
+
+        /** Column names for the database */
+        // Local day, see toDay(). SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_DAILY_DAY = "day";
+        // _id of the product. SQL Type = INTEGER NOT NULL
+        public static final String COLUMN_DAILY_PRODUCT_ID = "productId";
+        // Units sold that day. SQL Type = INTEGER NOT NULL DEFAULT 0
+        public static final String COLUMN_DAILY_QUANTITY = "quantity";
+        // Revenue of that day ($ earned). SQL Type = INTEGER NOT NULL DEFAULT 0
+        public static final String COLUMN_DAILY_REVENUE = "revenue";
+    }
+
+    /**
+     * Latency, row counts and slow queries of the provider operations since the process started, read-only.
+     * Served by debug builds only, to pull them from a device with "adb shell content query --uri";
+     * release builds reject these URIs like any unknown URI.
+     */
+    public static abstract class MetricsEntry {
+        public static final Uri CONTENT_URI
+                // content://xyz.kbalto.inventory/metrics
+                = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_METRICS);
+        public static final Uri SLOW_QUERIES_URI
+                // content://xyz.kbalto.inventory/metrics/slow
+                = Uri.withAppendedPath(CONTENT_URI, PATH_SLOW);
+        /** MIME type of the list of operations */
+        public static final String CONTENT_LIST_TYPE
+                // vnd.android.cursor.dir/xyz.kbalto.inventory/metrics
+                = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+        /** MIME type of the slow-query log */
+        public static final String SLOW_QUERIES_LIST_TYPE
+                // vnd.android.cursor.dir/xyz.kbalto.inventory/metrics/slow
+                = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS + "/" + PATH_SLOW;
+
+        /** Column names of the operations, a row per URI pattern and operation */
+        // URI pattern, like "products/#". TEXT
+        public static final String COLUMN_URI = "uri";
+        // Operation: query, insert, update, delete or call. TEXT
+        public static final String COLUMN_OPERATION = "operation";
+        // Amount of operations. INTEGER
+        public static final String COLUMN_COUNT = "count";
+        // Rows read by the queries, or written by the other operations. INTEGER
+        public static final String COLUMN_ROWS = "rows";
+        // Total duration of the operations, in microseconds. INTEGER
+        public static final String COLUMN_TOTAL_MICROS = "totalMicros";
+        // Duration of the slowest operation, in microseconds. INTEGER
+        public static final String COLUMN_MAX_MICROS = "maxMicros";
+        // Durations under which 50%, 90% and 99% of the operations ran, in microseconds, to a power of two. INTEGER
+        public static final String COLUMN_P50_MICROS = "p50Micros";
+        public static final String COLUMN_P90_MICROS = "p90Micros";
+        public static final String COLUMN_P99_MICROS = "p99Micros";
+        // Comma-separated counts of the histogram: under 1 microsecond, then from 2^(n-1) to 2^n microseconds. TEXT
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        /** Column names of the slow-query log, also with uri, operation and rows */
+        // Time the operation ended, in milliseconds since the epoch. INTEGER
+        public static final String COLUMN_TIME = "time";
+        // Duration of the operation, in microseconds. INTEGER
+        public static final String COLUMN_DURATION_MICROS = "durationMicros";
+        // SQL of the last query of the operation, null if it only ran precompiled statements. TEXT
+        public static final String COLUMN_SQL = "sql";
+        // Query plan of the SQL, one line per step. TEXT
+        public static final String COLUMN_PLAN = "plan";
     }
 }
@@ -1,22 +1,38 @@
 package xyz.kbalto.inventory.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import xyz.kbalto.inventory.R;
+import xyz.kbalto.inventory.data.ProductContract.DailySalesEntry;
 import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.SaleEntry;
 
 /**
- * TODO: include Class description
+ * Creates and upgrades the inventory database.
+ * New databases are created with the version 1 schema and then go through the same
+ * migration chain as upgraded ones, so both always end up with an identical schema.
  */
 
 public class ProductDbHelper extends SQLiteOpenHelper {
     // Constant for database name
-    private static final String DATABASE_NAME = "inventory.db";
-    // Constant for database version
-    private static final int DATABASE_VERSION = 1;
-    // Constant for SQL command used to create the table
+    static final String DATABASE_NAME = "inventory.db";
+    // Constant for database version. Must match the version of the last migration in MIGRATIONS.
+    static final int DATABASE_VERSION = 13;
+    // Constant for SQL command used to create the table (version 1 schema, changes go in MIGRATIONS)
     public static final String SQL_CREATE_ENTRIES =
             // CREATE TABLE products (_ID INTEGER PRIMARY KEY AUTOINCREMENT,
             // name TEXT NOT NULL, description TEXT, price INTEGER DEFAULT 0,
@@ -32,10 +48,340 @@ public class ProductDbHelper extends SQLiteOpenHelper {
                     + ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
                     + ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT + " INTEGER NOT NULL DEFAULT 0);";
     // Constant for SQL command used to delete the table TODO: find out if needed.
+    // Name of the full-text index over product names and descriptions. Its docid is the product _id.
+    static final String FTS_TABLE_NAME = ProductEntry.TABLE_NAME + "_fts";
+    // Ids of the sale batches applied (see ProductContract.METHOD_SELL_BATCH), so a replayed batch isn't sold twice.
+    static final String SALE_BATCHES_TABLE_NAME = "sale_batches";
+    // Id of the batch, given by the client. SQL Type = TEXT PRIMARY KEY
+    static final String COLUMN_BATCH_ID = "batchId";
+    // Time the batch was applied, in milliseconds since the epoch. SQL Type = INTEGER NOT NULL
+    static final String COLUMN_BATCH_APPLIED_AT = "appliedAt";
+
+    /** Ordered schema migrations. Append new ones at the end and bump DATABASE_VERSION. */
+    static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // CREATE INDEX products_name_index ON products (name COLLATE NOCASE);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_name_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE);");
+                }
+            },
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // CREATE INDEX products_quantity_index ON products (quantity);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_quantity_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_QUANTITY + ");");
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // CREATE INDEX products_price_index ON products (price);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_price_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_PRICE + ");");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String name = ProductEntry.COLUMN_PRODUCT_NAME;
+                    String description = ProductEntry.COLUMN_PRODUCT_DESCRIPTION;
+                    // Prefix indexes (SQLite 3.7.7+) keep "term*" queries from walking every term.
+                    String prefixOption = supportsFtsPrefixIndex(db) ? ", prefix=\"2,3\"" : "";
+                    // CREATE VIRTUAL TABLE products_fts USING fts4(name, description, prefix="2,3");
+                    db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                            + name + ", " + description + prefixOption + ");");
+                    // Index the existing products
+                    db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, " + name + ", " + description + ")"
+                            + " SELECT " + ProductEntry._ID + ", " + name + ", " + description
+                            + " FROM " + ProductEntry.TABLE_NAME + ";");
+                    // Keep the index in sync with the products table
+                    db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_insert AFTER INSERT ON " + ProductEntry.TABLE_NAME
+                            + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, " + name + ", " + description + ")"
+                            + " VALUES (NEW." + ProductEntry._ID + ", NEW." + name + ", NEW." + description + "); END;");
+                    db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update AFTER UPDATE OF " + name + ", " + description
+                            + " ON " + ProductEntry.TABLE_NAME
+                            + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET " + name + " = NEW." + name + ", "
+                            + description + " = NEW." + description + " WHERE docid = NEW." + ProductEntry._ID + "; END;");
+                    db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_delete AFTER DELETE ON " + ProductEntry.TABLE_NAME
+                            + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = OLD." + ProductEntry._ID + "; END;");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // CREATE TABLE sales (_id INTEGER PRIMARY KEY AUTOINCREMENT, productId INTEGER NOT NULL,
+                    // quantity INTEGER NOT NULL, unitPrice INTEGER NOT NULL DEFAULT 0, soldAt INTEGER NOT NULL,
+                    // day INTEGER NOT NULL);
+                    db.execSQL("CREATE TABLE " + SaleEntry.TABLE_NAME + " ("
+                            + SaleEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + SaleEntry.COLUMN_SALE_PRODUCT_ID + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_SALE_QUANTITY + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_SALE_UNIT_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                            + SaleEntry.COLUMN_SALE_TIME + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_SALE_DAY + " INTEGER NOT NULL);");
+                    // CREATE INDEX sales_product_index ON sales (productId, soldAt);
+                    db.execSQL("CREATE INDEX " + SaleEntry.TABLE_NAME + "_product_index ON " + SaleEntry.TABLE_NAME
+                            + " (" + SaleEntry.COLUMN_SALE_PRODUCT_ID + ", " + SaleEntry.COLUMN_SALE_TIME + ");");
+                    // CREATE INDEX sales_time_index ON sales (soldAt);
+                    db.execSQL("CREATE INDEX " + SaleEntry.TABLE_NAME + "_time_index ON " + SaleEntry.TABLE_NAME
+                            + " (" + SaleEntry.COLUMN_SALE_TIME + ");");
+                    // CREATE TABLE daily_sales (day INTEGER NOT NULL, productId INTEGER NOT NULL,
+                    // quantity INTEGER NOT NULL DEFAULT 0, revenue INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (day, productId));
+                    db.execSQL("CREATE TABLE " + DailySalesEntry.TABLE_NAME + " ("
+                            + DailySalesEntry.COLUMN_DAILY_DAY + " INTEGER NOT NULL, "
+                            + DailySalesEntry.COLUMN_DAILY_PRODUCT_ID + " INTEGER NOT NULL, "
+                            + DailySalesEntry.COLUMN_DAILY_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                            + DailySalesEntry.COLUMN_DAILY_REVENUE + " INTEGER NOT NULL DEFAULT 0, "
+                            + "PRIMARY KEY (" + DailySalesEntry.COLUMN_DAILY_DAY + ", "
+                            + DailySalesEntry.COLUMN_DAILY_PRODUCT_ID + "));");
+                    // Every sale is added to the rollup of its day and product
+                    db.execSQL("CREATE TRIGGER " + DailySalesEntry.TABLE_NAME + "_insert AFTER INSERT ON " + SaleEntry.TABLE_NAME
+                            + " BEGIN INSERT OR IGNORE INTO " + DailySalesEntry.TABLE_NAME + " ("
+                            + DailySalesEntry.COLUMN_DAILY_DAY + ", " + DailySalesEntry.COLUMN_DAILY_PRODUCT_ID + ")"
+                            + " VALUES (NEW." + SaleEntry.COLUMN_SALE_DAY + ", NEW." + SaleEntry.COLUMN_SALE_PRODUCT_ID + ");"
+                            + " UPDATE " + DailySalesEntry.TABLE_NAME + " SET "
+                            + DailySalesEntry.COLUMN_DAILY_QUANTITY + " = " + DailySalesEntry.COLUMN_DAILY_QUANTITY
+                            + " + NEW." + SaleEntry.COLUMN_SALE_QUANTITY + ", "
+                            + DailySalesEntry.COLUMN_DAILY_REVENUE + " = " + DailySalesEntry.COLUMN_DAILY_REVENUE
+                            + " + NEW." + SaleEntry.COLUMN_SALE_QUANTITY + " * NEW." + SaleEntry.COLUMN_SALE_UNIT_PRICE
+                            + " WHERE " + DailySalesEntry.COLUMN_DAILY_DAY + " = NEW." + SaleEntry.COLUMN_SALE_DAY
+                            + " AND " + DailySalesEntry.COLUMN_DAILY_PRODUCT_ID + " = NEW." + SaleEntry.COLUMN_SALE_PRODUCT_ID
+                            + "; END;");
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // ALTER TABLE products ADD COLUMN thumbnail TEXT;
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME
+                            + " ADD COLUMN " + ProductEntry.COLUMN_PRODUCT_THUMBNAIL + " TEXT;");
+                    // ALTER TABLE products ADD COLUMN preview TEXT;
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME
+                            + " ADD COLUMN " + ProductEntry.COLUMN_PRODUCT_PREVIEW + " TEXT;");
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Products sharing a stored photo are found by its URI
+                    // CREATE INDEX products_picture_index ON products (picture);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_picture_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_PICTURE + ");");
+                }
+            },
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Stock filters sorted by name: "out of stock" is an equality on quantity, then the index
+                    // is already in name order.
+                    // CREATE INDEX products_quantity_name_index ON products (quantity, name COLLATE NOCASE);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_quantity_name_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                            + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE);");
+                    // Sort by units sold
+                    // CREATE INDEX products_sold_index ON products (soldQuantity);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_sold_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY + ");");
+                }
+            },
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // CREATE TABLE sale_batches (batchId TEXT PRIMARY KEY, appliedAt INTEGER NOT NULL);
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + SALE_BATCHES_TABLE_NAME + " ("
+                            + COLUMN_BATCH_ID + " TEXT PRIMARY KEY, "
+                            + COLUMN_BATCH_APPLIED_AT + " INTEGER NOT NULL);");
+                }
+            },
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // ALTER TABLE products ADD COLUMN sku TEXT;
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductEntry.COLUMN_PRODUCT_SKU + " TEXT;");
+                    // Products without a SKU are NULL, which the unique index allows any number of times
+                    // CREATE UNIQUE INDEX products_sku_index ON products (sku);
+                    db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_sku_index ON "
+                            + ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SKU + ");");
+                }
+            },
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String version = ProductEntry.COLUMN_PRODUCT_VERSION;
+                    // ALTER TABLE products ADD COLUMN version INTEGER NOT NULL DEFAULT 0;
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " + version
+                            + " INTEGER NOT NULL DEFAULT 0;");
+                    // Every update that doesn't set the version itself bumps it. The hot sale, restock and quantity
+                    // statements do, which skips the extra write of the trigger.
+                    // CREATE TRIGGER products_version AFTER UPDATE ON products WHEN NEW.version = OLD.version
+                    // BEGIN UPDATE products SET version = OLD.version + 1 WHERE _id = NEW._id; END;
+                    db.execSQL("CREATE TRIGGER IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_version AFTER UPDATE ON "
+                            + ProductEntry.TABLE_NAME + " WHEN NEW." + version + " = OLD." + version
+                            + " BEGIN UPDATE " + ProductEntry.TABLE_NAME + " SET " + version + " = OLD." + version + " + 1"
+                            + " WHERE " + ProductEntry._ID + " = NEW." + ProductEntry._ID + "; END;");
+                }
+            },
+            new Migration(13) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Products saved without a price cost 0, like the column default. A NULL price would be left out
+                    // of the price filters and the pages sorted by price. The provider doesn't write NULL prices anymore.
+                    // UPDATE products SET price = 0 WHERE price IS NULL;
+                    db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_PRICE
+                            + " = 0 WHERE " + ProductEntry.COLUMN_PRODUCT_PRICE + " IS NULL;");
+                }
+            }
+    };
+
+    /** Delay between the last write and the background WAL checkpoint, in milliseconds. */
+    private static final long CHECKPOINT_DELAY_MILLIS = 1000;
+    /** WAL size (in pages) at which the writing thread checkpoints by itself if the background one fell behind. */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 4000;
+
+    /** Whether the database uses write-ahead logging instead of the rollback journal. */
+    private final boolean mWriteAheadLogging;
+    /** Runs the WAL checkpoints off the writing threads. */
+    private final ScheduledExecutorService mCheckpointExecutor = Executors.newSingleThreadScheduledExecutor();
+    /** Whether a checkpoint is already scheduled, so bursts of writes only schedule one. */
+    private final AtomicBoolean mCheckpointScheduled = new AtomicBoolean();
+    /** Last checkpoint scheduled, canceled when the helper is closed. */
+    private volatile ScheduledFuture<?> mPendingCheckpoint;
+    /** Set once the helper is closed: a checkpoint then would open the database again, and nothing would close it. */
+    private volatile boolean mClosed;
+
+    /**
+     * Runs a passive checkpoint, which copies the WAL back into the database without blocking readers or writers.
+     */
+    private final Runnable mCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            mCheckpointScheduled.set(false);
+            SQLiteDatabase db;
+            // Under the lock of close(), which can't run between the check and the reference taken on the database.
+            // The reference keeps a database closed meanwhile open until the checkpoint is done, without blocking
+            // the writers for the duration of the checkpoint.
+            synchronized (ProductDbHelper.this) {
+                if (mClosed) {
+                    return;
+                }
+                db = getWritableDatabase();
+                db.acquireReference();
+            }
+            try {
+                DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+            } catch (SQLiteException e) {
+                Log.e("checkpointDB", "WAL checkpoint failed", e);
+            } finally {
+                db.releaseReference();
+            }
+        }
+    };
 
-    /** Constructor method. Cursor factory is set to null in order to use default. */
+    /**
+     * Constructor method. Cursor factory is set to null in order to use default.
+     * Write-ahead logging is configured with the config_write_ahead_logging resource.
+     */
     public ProductDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, null);
+    }
+
+    /**
+     * Constructor for the app database with a cursor factory, like the provider metrics.
+     */
+    ProductDbHelper(Context context, SQLiteDatabase.CursorFactory factory) {
+        this(context, DATABASE_NAME, context.getResources().getBoolean(R.bool.config_write_ahead_logging), factory);
+    }
+
+    /**
+     * Constructor for a database with the given name and journal mode.
+     * @param writeAheadLogging true to let reads proceed while a write is in progress.
+     */
+    ProductDbHelper(Context context, String name, boolean writeAheadLogging) {
+        this(context, name, writeAheadLogging, null);
+    }
+
+    private ProductDbHelper(Context context, String name, boolean writeAheadLogging,
+                            SQLiteDatabase.CursorFactory factory) {
+        super(context, name, factory, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+    }
+
+    /**
+     * Tunes the connection before it is created or upgraded (API 16+).
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        configureJournal(db);
+    }
+
+    /**
+     * Enables write-ahead logging on API 15, where onConfigure() isn't available.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && mWriteAheadLogging && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            configureJournal(db);
+        }
+    }
+
+    /**
+     * In WAL mode a commit only needs to be synced at checkpoints, so the sales path runs with
+     * synchronous=NORMAL: the database can't be corrupted, at most the last commits are lost on power loss.
+     * Checkpoints are mostly left to the background checkpoint, see {@link #scheduleCheckpoint()}.
+     */
+    private void configureJournal(SQLiteDatabase db) {
+        if (!mWriteAheadLogging) {
+            return;
+        }
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+    }
+
+    /**
+     * Schedules a background WAL checkpoint after a write. Calls during a burst of writes are coalesced.
+     */
+    public void scheduleCheckpoint() {
+        if (mWriteAheadLogging && !mClosed && mCheckpointScheduled.compareAndSet(false, true)) {
+            try {
+                mPendingCheckpoint = mCheckpointExecutor.schedule(mCheckpoint, CHECKPOINT_DELAY_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile: no more checkpoints
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending checkpoint and stops the checkpoint thread before closing the database, so a late
+     * checkpoint doesn't open it again. The helper can still be opened after, without background checkpoints.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        ScheduledFuture<?> checkpoint = mPendingCheckpoint;
+        if (checkpoint != null) {
+            checkpoint.cancel(false);
+        }
+        mCheckpointExecutor.shutdown();
+        super.close();
+    }
+
+    /**
+     * Whether the database uses write-ahead logging.
+     */
+    public boolean isWriteAheadLoggingEnabled() {
+        return mWriteAheadLogging;
     }
 
     /**
@@ -45,10 +391,49 @@ public class ProductDbHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         Log.i("onCreateDB", SQL_CREATE_ENTRIES);
         db.execSQL(SQL_CREATE_ENTRIES);
+        migrate(db, 1, DATABASE_VERSION);
     }
 
+    /**
+     * Upgrades the database in place. SQLiteOpenHelper runs this inside a transaction,
+     * so a failing migration leaves the database at its old version.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // TODO: find out if needs implementation.
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Whether the SQLite library supports the FTS4 prefix option (added in 3.7.7, API 16 ships 3.7.11).
+     */
+    private static boolean supportsFtsPrefixIndex(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        int patch = version.length > 2 ? Integer.parseInt(version[2]) : 0;
+        return major > 3 || (major == 3 && (minor > 7 || (minor == 7 && patch >= 7)));
+    }
+
+    /**
+     * Runs, in order, every migration that takes the database from fromVersion to toVersion.
+     * @throws IllegalStateException if the migration chain has a gap.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        int version = fromVersion;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion <= version || migration.toVersion > toVersion) {
+                continue;
+            }
+            if (migration.toVersion != version + 1) {
+                throw new IllegalStateException("Missing migration from version " + version
+                        + " to " + migration.toVersion);
+            }
+            Log.i("onUpgradeDB", "Migrating " + DATABASE_NAME + " to version " + migration.toVersion);
+            migration.migrate(db);
+            version = migration.toVersion;
+        }
+        if (version != toVersion) {
+            throw new IllegalStateException("Missing migration from version " + version + " to " + toVersion);
+        }
     }
 }
@@ -0,0 +1,168 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.ProductQuery;
+
+/**
+ * SQL of the products filtered, sorted and paged by the ProductQuery parameters of a products URI.
+ * ProductProvider runs it, and ProductDbHelperTest checks its query plan, so a change that stops
+ * the list or filter queries from using the indexes fails the test.
+ * <p>
+ * Filters become bound range conditions on the indexed columns; a range of a single quantity becomes
+ * an equality, so the (quantity, name) index also sorts it by name. In a sorted list, the other filters on
+ * another column than the sort column are written as "+column", which SQLite can't look up in an index: it
+ * then walks the index of the sort column and stops at the limit, instead of reading every matching row
+ * through the index of the filter and sorting them all for each page. With the "after" or "limit"
+ * parameters, a page is read with keyset pagination: the page starts right after the (sort key, _id)
+ * given in "after", so SQLite seeks into the index of the sort column instead of skipping the previous
+ * rows. Pages are always sorted by the sort parameter (name by default) then _id, the sortOrder is ignored.
+ */
+final class ProductListSql {
+    /** Amount of rows of a page when the "after" parameter is given without a limit */
+    private static final int DEFAULT_PAGE_LIMIT = 50;
+
+    /** SELECT statement, with a ? per argument */
+    final String sql;
+    /** Arguments bound to the statement */
+    final String[] args;
+
+    private ProductListSql(String sql, String[] args) {
+        this.sql = sql;
+        this.args = args;
+    }
+
+    /**
+     * @param uri of the form products?minPrice=..&maxQuantity=..&sort=price&desc=true&after=key,id&limit=N
+     * @param selection additional condition, may be null.
+     * @param sortOrder used when the URI has no sort nor page parameter, may be null.
+     * @throws IllegalArgumentException if a parameter of the URI is invalid.
+     */
+    static ProductListSql fromUri(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                  String sortOrder) {
+        ProductQuery query = ProductQuery.fromUri(uri);
+        String after = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_AFTER);
+        String limit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+        boolean paged = after != null || limit != null;
+        boolean sorted = paged || uri.getQueryParameter(ProductContract.QUERY_PARAMETER_SORT) != null
+                || uri.getQueryParameter(ProductContract.QUERY_PARAMETER_DESCENDING) != null;
+
+        ArrayList<String> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder();
+        if (!TextUtils.isEmpty(selection)) {
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+        ProductQuery.Sort sort = query.getSort();
+        // The (quantity, name) index reads the products of a single quantity, like those out of stock, by name
+        Long minQuantity = query.getMinQuantity();
+        boolean singleQuantityByName = sort == ProductQuery.Sort.NAME && minQuantity != null
+                && minQuantity.equals(query.getMaxQuantity());
+        appendRange(where, args, ProductEntry.COLUMN_PRODUCT_PRICE, query.getMinPrice(), query.getMaxPrice(),
+                !sorted || sort == ProductQuery.Sort.PRICE);
+        appendRange(where, args, ProductEntry.COLUMN_PRODUCT_QUANTITY, minQuantity, query.getMaxQuantity(),
+                !sorted || sort == ProductQuery.Sort.QUANTITY || singleQuantityByName);
+
+        String sortKey = getSortExpression(sort);
+        // Rows with the same sort key go by _id, in the same direction, so the index can be walked backwards.
+        String direction = query.isDescending() ? " DESC" : " ASC";
+        if (after != null) {
+            // The name can contain commas, the id can't.
+            int separator = after.lastIndexOf(',');
+            if (separator == -1) {
+                throw new IllegalArgumentException("Page requires a valid position " + uri);
+            }
+            String afterKey = after.substring(0, separator);
+            String afterId = after.substring(separator + 1);
+            if (where.length() != 0) {
+                where.append(" AND ");
+            }
+            // key >= ? drives the index seek, the rest skips the rows of the previous page with the same key.
+            // Descending pages compare the other way.
+            // name COLLATE NOCASE >= ? AND (name COLLATE NOCASE > ? OR _id > ?)
+            String comparison = query.isDescending() ? " <" : " >";
+            where.append(sortKey).append(comparison).append("= ? AND (").append(sortKey).append(comparison)
+                    .append(" ? OR ").append(ProductEntry._ID).append(comparison).append(" ?)");
+            args.add(afterKey);
+            args.add(afterKey);
+            args.add(String.valueOf(parseLong(afterId, uri)));
+        }
+
+        if (limit == null) {
+            limit = paged ? String.valueOf(DEFAULT_PAGE_LIMIT) : null;
+        } else if (parseLong(limit, uri) <= 0) {
+            throw new IllegalArgumentException("Page requires a valid limit " + uri);
+        }
+        if (sorted) {
+            sortOrder = sortKey + direction + ", " + ProductEntry._ID + direction;
+        }
+
+        String sql = SQLiteQueryBuilder.buildQueryString(false, ProductEntry.TABLE_NAME, projection,
+                where.length() == 0 ? null : where.toString(), null, null, sortOrder, limit);
+        return new ProductListSql(sql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Appends "column BETWEEN ? AND ?", "column >= ?", "column <= ?" or "column = ?" to the WHERE clause,
+     * depending on the bounds given.
+     * @param indexed false to keep SQLite from reading the column's index: the column is then written "+column",
+     *                and the bounds are cast to integers since "+column" loses the affinity that converts them.
+     */
+    private static void appendRange(StringBuilder where, List<String> args, String column, Long min, Long max,
+                                    boolean indexed) {
+        if (min == null && max == null) {
+            return;
+        }
+        if (where.length() != 0) {
+            where.append(" AND ");
+        }
+        String bound = indexed ? "?" : "CAST(? AS INTEGER)";
+        where.append(indexed ? column : "+" + column);
+        if (min != null && min.equals(max)) {
+            where.append(" = ").append(bound);
+            args.add(String.valueOf(min));
+        } else if (min != null && max != null) {
+            where.append(" BETWEEN ").append(bound).append(" AND ").append(bound);
+            args.add(String.valueOf(min));
+            args.add(String.valueOf(max));
+        } else if (min != null) {
+            where.append(" >= ").append(bound);
+            args.add(String.valueOf(min));
+        } else {
+            where.append(" <= ").append(bound);
+            args.add(String.valueOf(max));
+        }
+    }
+
+    /**
+     * @return the expression sorted on, matching the index of the column.
+     */
+    private static String getSortExpression(ProductQuery.Sort sort) {
+        if (sort == ProductQuery.Sort.NAME) {
+            // Same collation as the name index
+            return ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE";
+        }
+        return sort.getColumn();
+    }
+
+    /**
+     * Parses a number of a query parameter.
+     * @throws IllegalArgumentException if the value isn't a number.
+     */
+    private static long parseLong(String value, Uri uri) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri);
+        }
+    }
+}
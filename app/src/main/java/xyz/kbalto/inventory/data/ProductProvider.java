@@ -1,16 +1,46 @@
 package xyz.kbalto.inventory.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import xyz.kbalto.inventory.BuildConfig;
+import xyz.kbalto.inventory.data.ProductContract.DailySalesEntry;
+import xyz.kbalto.inventory.data.ProductContract.MetricsEntry;
 import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+import xyz.kbalto.inventory.data.ProductContract.SaleEntry;
+import xyz.kbalto.inventory.image.ThumbnailPipeline;
 
 /**
  * ContentProvider for the Inventory app.
@@ -21,10 +51,149 @@ public class ProductProvider extends ContentProvider {
     private static final int PRODUCTS = 100;
     /** URI matcher code for the content URI for a single product in the products table. */
     private static final int PRODUCT_ID = 101;
+    /** URI matcher code for the content URI used to sell units of a single product. */
+    private static final int PRODUCT_SELL = 102;
+    /** URI matcher code for the content URI used to search products. */
+    private static final int PRODUCT_SEARCH = 103;
+    /** URI matcher code for the content URI used to restock a single product. */
+    private static final int PRODUCT_RESTOCK = 104;
+    /** URI matcher code for the content URI of the image of a single product. */
+    private static final int PRODUCT_IMAGE = 105;
+    /** URI matcher code for the content URI of the product with a given SKU. */
+    private static final int PRODUCT_SKU = 106;
+    /** URI matcher code for the content URI of the alphabetical sections of the products. */
+    private static final int PRODUCT_SECTIONS = 107;
+    /** URI matcher code for the content URI for the sales ledger. */
+    private static final int SALES = 200;
+    /** URI matcher code for the content URI for the per-day sales rollups. */
+    private static final int DAILY_SALES = 201;
+    /** URI matcher code for the content URI for the provider metrics, debug builds only. */
+    private static final int METRICS = 300;
+    /** URI matcher code for the content URI for the slow-query log, debug builds only. */
+    private static final int SLOW_QUERIES = 301;
+    /** URI matcher codes measured by the metrics, and the URI patterns they are reported under */
+    private static final int[] MEASURED_MATCHES = {PRODUCTS, PRODUCT_ID, PRODUCT_SELL, PRODUCT_SEARCH,
+            PRODUCT_RESTOCK, PRODUCT_SKU, PRODUCT_SECTIONS, SALES, DAILY_SALES};
+    private static final String[] MEASURED_URIS = {"products", "products/#", "products/#/sell", "products/search",
+            "products/#/restock", "products/sku/*", "products/sections", "sales", "sales/daily"};
+    /** Maximum amount of search results */
+    private static final int SEARCH_LIMIT = 100;
+    /** Columns read to open the image of a product */
+    private static final String[] IMAGE_COLUMNS = {ProductEntry.COLUMN_PRODUCT_PICTURE,
+            ProductEntry.COLUMN_PRODUCT_THUMBNAIL, ProductEntry.COLUMN_PRODUCT_PREVIEW};
+    /** MIME type of the thumbnails and previews, and of photos without a known extension */
+    private static final String IMAGE_TYPE_JPEG = "image/jpeg";
     /** Database helper object. */
     private ProductDbHelper mDbHelper;
+    /** Collapses the change notifications of bursts of writes. */
+    private ChangeNotifier mNotifier;
+    /** Products recently queried by id */
+    private final ProductRowCache mRowCache = new ProductRowCache();
+    /** Alphabetical sections of the list, until the names change */
+    private final ProductSectionCache mSectionCache = new ProductSectionCache();
+    /** Latency, row counts and slow queries of the operations, also the cursor factory of the database */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(MEASURED_MATCHES, MEASURED_URIS);
+    /** Whether quantity-only updates use the compiled statement, turned off by the benchmark to compare */
+    private volatile boolean mCompiledQuantityUpdates = true;
     /** Tag for Log messages */
     public static final String LOG_TAG = ProductProvider.class.getSimpleName();
+    /** Columns bound by the pre-compiled insert statement, in bind order. */
+    private static final String[] INSERT_COLUMNS = {
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_DESCRIPTION,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_PICTURE,
+            ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT,
+            ProductEntry.COLUMN_PRODUCT_THUMBNAIL,
+            ProductEntry.COLUMN_PRODUCT_PREVIEW,
+            ProductEntry.COLUMN_PRODUCT_SKU
+    };
+    /** Values bound when a column is missing from the ContentValues, matching the column defaults. */
+    private static final Object[] INSERT_DEFAULTS = {null, null, 0L, 0L, null, 0L, 0L, null, null, null};
+    /** SQL for the compiled insert statement. */
+    private static final String SQL_INSERT_PRODUCT =
+            // INSERT INTO products (name, description, price, quantity, picture, soldQuantity, soldProfit,
+            // thumbnail, preview, sku) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            "INSERT INTO " + ProductEntry.TABLE_NAME + " ("
+                    + TextUtils.join(", ", INSERT_COLUMNS) + ") VALUES ("
+                    + TextUtils.join(", ", Collections.nCopies(INSERT_COLUMNS.length, "?")) + ")";
+    /**
+     * Bumps the version of a product in the hot statements below. Setting it here keeps the version trigger, which
+     * only bumps it when an update leaves it unchanged, from writing the row a second time.
+     */
+    private static final String SQL_BUMP_VERSION =
+            ProductEntry.COLUMN_PRODUCT_VERSION + " = " + ProductEntry.COLUMN_PRODUCT_VERSION + " + 1";
+    /** SQL for selling ?1 units of the product with id ?2, only if there is enough stock. */
+    private static final String SQL_SELL_PRODUCT =
+            // UPDATE products SET quantity = quantity - ?1, soldQuantity = soldQuantity + ?1,
+            // soldProfit = soldProfit + IFNULL(price, 0) * ?1, version = version + 1 WHERE _id = ?2 AND quantity >= ?1
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                    + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - ?1, "
+                    + ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY + " = " + ProductEntry.COLUMN_PRODUCT_SOLD_QUANTITY + " + ?1, "
+                    + ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT + " = " + ProductEntry.COLUMN_PRODUCT_SOLD_PROFIT
+                    + " + IFNULL(" + ProductEntry.COLUMN_PRODUCT_PRICE + ", 0) * ?1, " + SQL_BUMP_VERSION
+                    + " WHERE " + ProductEntry._ID + " = ?2 AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " >= ?1";
+    /** SQL for adding ?1 units to the stock of the product with id ?2. */
+    private static final String SQL_RESTOCK_PRODUCT =
+            // UPDATE products SET quantity = quantity + ?1, version = version + 1 WHERE _id = ?2
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                    + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?1, "
+                    + SQL_BUMP_VERSION
+                    + " WHERE " + ProductEntry._ID + " = ?2";
+    /** SQL for setting the quantity of the product with id ?2 to ?1. */
+    private static final String SQL_SET_QUANTITY =
+            // UPDATE products SET quantity = ?1, version = version + 1 WHERE _id = ?2
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = ?1, "
+                    + SQL_BUMP_VERSION
+                    + " WHERE " + ProductEntry._ID + " = ?2";
+
+    /** SQL for adding ?1 units of the product with id ?4, sold at time ?2 on day ?3, to the sales ledger. */
+    private static final String SQL_RECORD_SALE =
+            // INSERT INTO sales (productId, quantity, unitPrice, soldAt, day)
+            // SELECT _id, ?1, IFNULL(price, 0), ?2, ?3 FROM products WHERE _id = ?4
+            "INSERT INTO " + SaleEntry.TABLE_NAME + " (" + SaleEntry.COLUMN_SALE_PRODUCT_ID + ", "
+                    + SaleEntry.COLUMN_SALE_QUANTITY + ", " + SaleEntry.COLUMN_SALE_UNIT_PRICE + ", "
+                    + SaleEntry.COLUMN_SALE_TIME + ", " + SaleEntry.COLUMN_SALE_DAY + ")"
+                    + " SELECT " + ProductEntry._ID + ", ?1, IFNULL(" + ProductEntry.COLUMN_PRODUCT_PRICE + ", 0), ?2, ?3"
+                    + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ?4";
+
+    /** SQL for recording that the sale batch with id ?1 was applied at time ?2, unless it already was. */
+    private static final String SQL_MARK_SALE_BATCH =
+            // INSERT OR IGNORE INTO sale_batches (batchId, appliedAt) VALUES (?1, ?2)
+            "INSERT OR IGNORE INTO " + ProductDbHelper.SALE_BATCHES_TABLE_NAME + " ("
+                    + ProductDbHelper.COLUMN_BATCH_ID + ", " + ProductDbHelper.COLUMN_BATCH_APPLIED_AT + ") VALUES (?1, ?2)";
+    /** Time sale batch ids are kept, in milliseconds. Batches are only sent again right after a restart. */
+    private static final long SALE_BATCH_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** Indexes of the statements in mStatements */
+    private static final int STATEMENT_INSERT = 0;
+    private static final int STATEMENT_SELL = 1;
+    private static final int STATEMENT_RESTOCK = 2;
+    private static final int STATEMENT_SET_QUANTITY = 3;
+    private static final int STATEMENT_RECORD_SALE = 4;
+    private static final int STATEMENT_MARK_SALE_BATCH = 5;
+    /** Compiled statements of the fixed-shape writes, by STATEMENT_* index. */
+    private final StatementCache mStatements = new StatementCache(
+            SQL_INSERT_PRODUCT, SQL_SELL_PRODUCT, SQL_RESTOCK_PRODUCT, SQL_SET_QUANTITY, SQL_RECORD_SALE,
+            SQL_MARK_SALE_BATCH);
+
+    /** Batch running on the current thread (null outside of bulkInsert() and applyBatch()). */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * State of a bulkInsert() or applyBatch() call. The whole batch shares one transaction
+     * and one change notification.
+     */
+    private static class Batch {
+        /** Table URIs (products, sales) whose data the batch changed. */
+        final Set<Uri> changedUris = new HashSet<>();
+        /** Whether the batch transaction was marked as successful. */
+        boolean successful;
+        /** Whether the batch inserted, deleted or renamed products, changing the sections. */
+        boolean sectionsChanged;
+    }
 
     /**
      * Matches a content URI to a corresponding code
@@ -36,6 +205,36 @@ public class ProductProvider extends ContentProvider {
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS, PRODUCTS);
         // Match the content URI of the form "content://xyz.kbalto.inventory/products/#" to the integer PRODUCT_ID
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/search" to the integer PRODUCT_SEARCH
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SEARCH, PRODUCT_SEARCH);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/#/sell" to the integer PRODUCT_SELL
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/#/" + ProductContract.PATH_SELL, PRODUCT_SELL);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/#/restock" to the integer PRODUCT_RESTOCK
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/#/" + ProductContract.PATH_RESTOCK, PRODUCT_RESTOCK);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/#/image" to the integer PRODUCT_IMAGE
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/#/" + ProductContract.PATH_IMAGE, PRODUCT_IMAGE);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/sku/*" to the integer PRODUCT_SKU
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SKU + "/*", PRODUCT_SKU);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/products/sections" to the integer PRODUCT_SECTIONS
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SECTIONS, PRODUCT_SECTIONS);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/sales" to the integer SALES
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SALES, SALES);
+        // Match the content URI of the form "content://xyz.kbalto.inventory/sales/daily" to the integer DAILY_SALES
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_SALES + "/" + ProductContract.PATH_DAILY, DAILY_SALES);
+        if (BuildConfig.DEBUG) {
+            // Match the content URI of the form "content://xyz.kbalto.inventory/metrics" to the integer METRICS
+            sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_METRICS, METRICS);
+            // Match the content URI of the form "content://xyz.kbalto.inventory/metrics/slow" to the integer SLOW_QUERIES
+            sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                    ProductContract.PATH_METRICS + "/" + ProductContract.PATH_SLOW, SLOW_QUERIES);
+        }
     }
 
     /**
@@ -43,10 +242,58 @@ public class ProductProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new ProductDbHelper(getContext());
+        mDbHelper = new ProductDbHelper(getContext(), mMetrics);
+        mNotifier = new ChangeNotifier(getContext().getContentResolver());
         return true;
     }
 
+    /**
+     * Releases the compiled statements and closes the database. Only called by tests.
+     */
+    @Override
+    public void shutdown() {
+        mNotifier.flush();
+        mStatements.close();
+        mDbHelper.close();
+        super.shutdown();
+    }
+
+    /**
+     * Sends quantity-only updates through the compiled statement, or through SQLiteDatabase.update() like
+     * other updates. For the benchmark.
+     */
+    void setCompiledQuantityUpdates(boolean compiled) {
+        mCompiledQuantityUpdates = compiled;
+    }
+
+    /**
+     * Returns the row cache counters for {@link ProductContract#METHOD_ROW_CACHE_STATS}, and applies the sale
+     * batches of {@link ProductContract#METHOD_SELL_BATCH}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (ProductContract.METHOD_SELL_BATCH.equals(method)) {
+            long start = mMetrics.start();
+            int rows = 0;
+            try {
+                Bundle result = sellBatch(arg, extras);
+                // The batch was validated, it has product ids
+                rows = extras.getLongArray(ProductContract.EXTRA_PRODUCT_IDS).length;
+                return result;
+            } finally {
+                mMetrics.record(PRODUCT_SELL, ProviderMetrics.OPERATION_CALL, start, rows, ProductEntry.CONTENT_URI);
+            }
+        }
+        if (ProductContract.METHOD_ROW_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(ProductContract.EXTRA_ROW_CACHE_HITS, mRowCache.getHitCount());
+            stats.putLong(ProductContract.EXTRA_ROW_CACHE_MISSES, mRowCache.getMissCount());
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
     /**
      * Performs the query.
      * @param uri the given URI.
@@ -59,25 +306,87 @@ public class ProductProvider extends ContentProvider {
     @Nullable
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        // Match the Uri to a specific code
+        int match = sUriMatcher.match(uri);
+        long start = mMetrics.start();
+        int rows = 0;
+        try {
+            Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+            // Fill the window here, so the latency includes reading the rows and not only preparing the query
+            rows = cursor.getCount();
+            return cursor;
+        } finally {
+            mMetrics.record(match, ProviderMetrics.OPERATION_QUERY, start, rows, uri);
+        }
+    }
+
+    /**
+     * Performs the query of a matched URI.
+     */
+    private Cursor query(int match, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder) {
         // Get a readable database (no need to modify it)
         SQLiteDatabase readableDatabase = mDbHelper.getReadableDatabase();
         // Cursor that will hold the result of the query
         Cursor cursor;
 
-        // Match the Uri to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
+                if (!uri.getQueryParameterNames().isEmpty()) {
+                    // Perform the query filtered, sorted or paged by the URI parameters
+                    cursor = queryProducts(readableDatabase, uri, projection, selection, selectionArgs, sortOrder);
+                    break;
+                }
                 // Perform the query on the whole table
                 cursor = readableDatabase.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
             case PRODUCT_ID:
+                if (TextUtils.isEmpty(selection) && TextUtils.isEmpty(sortOrder)) {
+                    // Serve the product from memory when possible
+                    cursor = mRowCache.query(readableDatabase, ContentUris.parseId(uri), projection);
+                    if (cursor != null) {
+                        break;
+                    }
+                }
                 // Extract the id from the URI
                 selection = ProductEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 // Perform the query on the single product on the table
                 cursor = readableDatabase.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
+            case PRODUCT_SKU:
+                // A single probe of the unique SKU index
+                selection = ProductEntry.COLUMN_PRODUCT_SKU + "=?";
+                selectionArgs = new String[]{uri.getLastPathSegment()};
+                cursor = readableDatabase.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, null, "1");
+                // The product changes are notified under its products/# URI, a descendant of the products URI.
+                uri = ProductEntry.CONTENT_URI;
+                break;
+            case PRODUCT_SECTIONS:
+                // Counted once per change of the names
+                cursor = mSectionCache.query(readableDatabase);
+                // Product changes are notified under the products URI, even though only new names change the sections.
+                uri = ProductEntry.CONTENT_URI;
+                break;
+            case SALES:
+                // Perform the query on the sales ledger
+                cursor = readableDatabase.query(SaleEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case DAILY_SALES:
+                // Perform the query on the per-day rollups
+                cursor = readableDatabase.query(DailySalesEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case PRODUCT_SEARCH:
+                cursor = searchProducts(readableDatabase, uri, projection, selection, selectionArgs, sortOrder);
+                // Results change whenever any product does, and product changes are notified under the products URI.
+                uri = ProductEntry.CONTENT_URI;
+                break;
+            case METRICS:
+                // Counters since the process started, a snapshot that isn't updated
+                return mMetrics.queryOperations();
+            case SLOW_QUERIES:
+                return mMetrics.querySlowQueries(readableDatabase);
             default:
                 // Throw exception if the Uri does not match any case.
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -88,6 +397,94 @@ public class ProductProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Helper method that reads the products filtered, sorted and paged by the ProductQuery parameters of the URI,
+     * with the SQL of {@link ProductListSql}.
+     * @return the matching products, or the page of them.
+     */
+    private Cursor queryProducts(SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs, String sortOrder) {
+        ProductListSql query = ProductListSql.fromUri(uri, projection, selection, selectionArgs, sortOrder);
+        return database.rawQuery(query.sql, query.args);
+    }
+
+    /**
+     * Parses a number of a query parameter.
+     * @throws IllegalArgumentException if the value isn't a number.
+     */
+    private static long parseLong(String value, Uri uri) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri);
+        }
+    }
+
+    /**
+     * Helper method that searches products through the full-text index.
+     * Every word of the query is matched as a prefix. Products matching on the name are ranked before
+     * the ones matching only on the description, then results are sorted by name.
+     * @param uri of the form products/search?q=query.
+     * @return the matching products (at most SEARCH_LIMIT).
+     */
+    private Cursor searchProducts(SQLiteDatabase database, Uri uri, String[] projection,
+                                  String selection, String[] selectionArgs, String sortOrder) {
+        String match = buildMatchExpression(uri.getQueryParameter(ProductContract.QUERY_PARAMETER_QUERY));
+        if (match == null) {
+            // Nothing to search for, return an empty cursor with the requested columns.
+            return database.query(ProductEntry.TABLE_NAME, projection, "0", null, null, null, null);
+        }
+
+        String fts = ProductDbHelper.FTS_TABLE_NAME;
+        // SELECT <projection> FROM products JOIN (SELECT docid, docid IN (SELECT docid FROM products_fts
+        // WHERE name MATCH ?) AS name_hit FROM products_fts WHERE products_fts MATCH ?) AS hits
+        // ON products._id = hits.docid [WHERE <selection>] ORDER BY hits.name_hit DESC, name COLLATE NOCASE ASC LIMIT 100
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(projection == null ? ProductEntry.TABLE_NAME + ".*" : TextUtils.join(", ", projection))
+                .append(" FROM ").append(ProductEntry.TABLE_NAME)
+                .append(" JOIN (SELECT docid, docid IN (SELECT docid FROM ").append(fts)
+                .append(" WHERE ").append(ProductEntry.COLUMN_PRODUCT_NAME).append(" MATCH ?) AS name_hit")
+                .append(" FROM ").append(fts).append(" WHERE ").append(fts).append(" MATCH ?) AS hits")
+                .append(" ON ").append(ProductEntry.TABLE_NAME).append(".").append(ProductEntry._ID).append(" = hits.docid");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        sql.append(" ORDER BY ")
+                .append(TextUtils.isEmpty(sortOrder) ? "hits.name_hit DESC, " + ProductEntry.SORT_ORDER_NAME : sortOrder)
+                .append(" LIMIT ").append(SEARCH_LIMIT);
+
+        int extraArgs = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[2 + extraArgs];
+        args[0] = match;
+        args[1] = match;
+        if (extraArgs != 0) {
+            System.arraycopy(selectionArgs, 0, args, 2, extraArgs);
+        }
+        return database.rawQuery(sql.toString(), args);
+    }
+
+    /**
+     * Turns the text typed by the user into an FTS prefix query: "red sh" becomes "red* sh*".
+     * Punctuation is dropped and words are lowercased, so the user can't type FTS operators (AND, OR, "...") by accident.
+     * @return the MATCH expression, or null if the text has no words.
+     */
+    private static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() != 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -98,13 +495,163 @@ public class ProductProvider extends ContentProvider {
         switch (match){
             case PRODUCTS:
                 return ProductContract.CONTENT_LIST_TYPE;
+            case PRODUCT_SEARCH:
+                return ProductContract.CONTENT_LIST_TYPE;
+            case PRODUCT_SECTIONS:
+                return ProductContract.CONTENT_SECTIONS_TYPE;
+            case SALES:
+                return SaleEntry.CONTENT_LIST_TYPE;
+            case DAILY_SALES:
+                return DailySalesEntry.CONTENT_LIST_TYPE;
+            case METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case SLOW_QUERIES:
+                return MetricsEntry.SLOW_QUERIES_LIST_TYPE;
             case PRODUCT_ID:
+            case PRODUCT_SELL:
+            case PRODUCT_RESTOCK:
+            case PRODUCT_SKU:
                 return ProductContract.CONTENT_ITEM_TYPE;
+            case PRODUCT_IMAGE:
+                return getImageType(uri);
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Opens the image of a product at the size of the URI's size parameter, medium if absent.
+     * The thumbnail and preview are made and recorded in the product the first time they are opened;
+     * the returned descriptor is the one of the file itself, nothing is copied.
+     * @param uri of the form products/#/image?size=thumb|medium|full.
+     * @param mode must be "r", images are read-only.
+     * @throws FileNotFoundException if the product has no image or it can't be read.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PRODUCT_IMAGE) {
+            throw new IllegalArgumentException("Cannot open unknown URI " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new IllegalArgumentException("Product images are read-only " + uri);
+        }
+        Uri image = findImage(uri);
+        if (ContentResolver.SCHEME_FILE.equals(image.getScheme())) {
+            return ParcelFileDescriptor.open(new File(image.getPath()), ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        // Photos taken before the image store are served by the FileProvider
+        return getContext().getContentResolver().openFileDescriptor(image, mode);
+    }
+
+    /**
+     * Opens the image of a product like {@link #openFile(Uri, String)}, if its type matches the filter.
+     */
+    @Nullable
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  @Nullable Bundle opts) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PRODUCT_IMAGE) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        if (!ClipDescription.compareMimeTypes(getImageType(uri), mimeTypeFilter)) {
+            throw new FileNotFoundException("Cannot open " + uri + " as " + mimeTypeFilter);
+        }
+        return new AssetFileDescriptor(openFile(uri, "r"), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * @return the type of the image of a product URI if it matches the filter, else null.
+     */
+    @Nullable
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != PRODUCT_IMAGE) {
+            return null;
+        }
+        String type = getImageType(uri);
+        return ClipDescription.compareMimeTypes(type, mimeTypeFilter) ? new String[]{type} : null;
+    }
+
+    /**
+     * Finds the file of the requested size of a product image, making the thumbnails if needed.
+     * @return the URI of the file.
+     * @throws FileNotFoundException if the product has no image or its thumbnails can't be made.
+     */
+    private Uri findImage(Uri uri) throws FileNotFoundException {
+        String[] images = readImageColumns(uri);
+        String size = getImageSize(uri);
+        if (images[0] == null) {
+            throw new FileNotFoundException("Product has no image " + uri);
+        }
+        Uri picture = Uri.parse(images[0]);
+        if (ProductContract.IMAGE_SIZE_FULL.equals(size)) {
+            return picture;
+        }
+        int index = ProductContract.IMAGE_SIZE_THUMB.equals(size) ? 1 : 2;
+        if (images[index] != null && new File(Uri.parse(images[index]).getPath()).exists()) {
+            return Uri.parse(images[index]);
+        }
+        // Rendered on first use, then recorded in the product like the ones made after a capture.
+        Uri[] thumbnails = ThumbnailPipeline.getInstance(getContext()).makeThumbnails(picture);
+        if (thumbnails == null) {
+            throw new FileNotFoundException("Cannot make the thumbnails of " + uri);
+        }
+        return thumbnails[index - 1];
+    }
+
+    /**
+     * @return the picture, thumbnail and preview of the product of an image URI, each of them may be null.
+     * @throws FileNotFoundException if the product doesn't exist.
+     */
+    private String[] readImageColumns(Uri uri) throws FileNotFoundException {
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        Cursor cursor = query(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id), IMAGE_COLUMNS, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No product " + uri);
+            }
+            return new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the MIME type of the image of a product URI: JPEG for the thumbnails, else the type of the photo.
+     */
+    private String getImageType(Uri uri) {
+        if (!ProductContract.IMAGE_SIZE_FULL.equals(getImageSize(uri))) {
+            return IMAGE_TYPE_JPEG;
+        }
+        String picture;
+        try {
+            picture = readImageColumns(uri)[0];
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        String extension = picture == null ? null : MimeTypeMap.getFileExtensionFromUrl(picture);
+        String type = TextUtils.isEmpty(extension) ? null
+                : MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.US));
+        return type != null ? type : IMAGE_TYPE_JPEG;
+    }
+
+    /**
+     * @return the size parameter of an image URI, medium if absent.
+     * @throws IllegalArgumentException if the size isn't one of the IMAGE_SIZE_* values.
+     */
+    private static String getImageSize(Uri uri) {
+        String size = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_SIZE);
+        if (size == null) {
+            return ProductContract.IMAGE_SIZE_MEDIUM;
+        }
+        if (!ProductContract.IMAGE_SIZE_THUMB.equals(size) && !ProductContract.IMAGE_SIZE_MEDIUM.equals(size)
+                && !ProductContract.IMAGE_SIZE_FULL.equals(size)) {
+            throw new IllegalArgumentException("Unknown image size " + uri);
+        }
+        return size;
+    }
+
     /**
      * Calls insertProduct() to add new data into the provider with the given contentValues.
      * @return the new inserted product URI.
@@ -113,21 +660,27 @@ public class ProductProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
-        switch (match){
-            // Only proceed if matching the PRODUCTS code because the product needs to be inserted in the table.
-            case PRODUCTS:
-                return insertProduct(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        long start = mMetrics.start();
+        Uri newUri = null;
+        try {
+            switch (match){
+                // Only proceed if matching the PRODUCTS code because the product needs to be inserted in the table.
+                case PRODUCTS:
+                    newUri = insertProduct(uri, contentValues);
+                    return newUri;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(match, ProviderMetrics.OPERATION_INSERT, start, newUri == null ? 0 : 1, uri);
         }
     }
 
     /**
-     * Helper method that adds the product to the database.
-     * @return the new inserted product URI.
+     * "Sanity checking" the data of a new product before trying to add it to the database.
+     * @throws IllegalArgumentException if the product is not valid.
      */
-    private Uri insertProduct(Uri uri, ContentValues values) {
-        /** "Sanity checking" the data before trying to add it to the database. */
+    private static void validateProduct(ContentValues values) {
         // Check if product name is OK (not null)
         String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
         if (name == null) {
@@ -136,9 +689,12 @@ public class ProductProvider extends ContentProvider {
 
         // No need to check for product description, it can be null.
 
-        // Check if "The Price is Right!" (price can be null -as the seller can decide that later- but it can't be negative)
+        // Check if "The Price is Right!" (price can be left out -as the seller can decide that later- but it can't be negative)
         Integer price = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
-        if (price != null && price < 0){
+        if (price == null) {
+            // Stored as 0 like the column default, never NULL, which the price filters and pages would skip.
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 0);
+        } else if (price < 0){
             throw new IllegalArgumentException("Product requires a valid price");
         }
 
@@ -152,22 +708,256 @@ public class ProductProvider extends ContentProvider {
         // No need to check for product sold quantity, it can be null.
         // No need to check for product sold profit, it can be null.
 
+        normalizeSku(values);
+    }
+
+    /**
+     * Trims the SKU of the values, and turns an empty SKU into NULL so products without one don't collide
+     * in the unique index.
+     */
+    private static void normalizeSku(ContentValues values) {
+        if (!values.containsKey(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            return;
+        }
+        String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+        if (sku == null || sku.trim().isEmpty()) {
+            values.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+        } else {
+            values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku.trim());
+        }
+    }
+
+    /**
+     * Inserts a validated product row through the compiled insert statement. Values with columns
+     * the statement doesn't bind go through SQLiteDatabase.insert() instead.
+     * @return the new row id, or -1 if the insert failed.
+     */
+    private long insertRow(SQLiteDatabase database, ContentValues values) {
+        if (!bindsAllColumns(values)) {
+            return database.insert(ProductEntry.TABLE_NAME, null, values);
+        }
+        SQLiteStatement statement = mStatements.get(database, STATEMENT_INSERT);
+        synchronized (statement) {
+            for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                // Bind indexes are 1-based. Missing columns get the same value as the column default.
+                Object value = values.containsKey(INSERT_COLUMNS[i]) ? values.get(INSERT_COLUMNS[i]) : INSERT_DEFAULTS[i];
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, value);
+            }
+            try {
+                return statement.executeInsert();
+            } catch (SQLException e) {
+                // Same behaviour as SQLiteDatabase.insert(), which logs and returns -1.
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Executes one of the compiled UPDATE statements with its two arguments.
+     * @return the number of rows updated.
+     */
+    private int executeUpdate(int statementIndex, long firstArg, long secondArg) {
+        SQLiteStatement statement = mStatements.get(mDbHelper.getWritableDatabase(), statementIndex);
+        synchronized (statement) {
+            statement.bindLong(1, firstArg);
+            statement.bindLong(2, secondArg);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Checks whether every key of the values is one of the columns of the compiled insert statement.
+     */
+    private static boolean bindsAllColumns(ContentValues values) {
+        int known = 0;
+        for (String column : INSERT_COLUMNS) {
+            if (values.containsKey(column)) {
+                known++;
+            }
+        }
+        return known == values.size();
+    }
+
+    /**
+     * Notifies the listeners that the data has changed and schedules the background WAL checkpoint.
+     * Writes to a single product pass the product URI, which reaches both the list (registered on the
+     * products URI with its descendants) and that product's editor. The notifier sends at most one
+     * notification per table per frame. Inside a batch both are postponed until the batch is committed.
+     * The cached rows the change may affect are dropped right away.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateRows(uri);
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            // Keep only the table URI: content://xyz.kbalto.inventory/<table>
+            batch.changedUris.add(Uri.withAppendedPath(ProductContract.BASE_CONTENT_URI, uri.getPathSegments().get(0)));
+        } else {
+            mDbHelper.scheduleCheckpoint();
+            mNotifier.notifyChange(uri);
+        }
+    }
+
+    /**
+     * Drops the cached row of the product of a products/#/... URI, or all cached rows for a products URI.
+     */
+    private void invalidateRows(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (!ProductContract.PATH_PRODUCTS.equals(segments.get(0))) {
+            return;
+        }
+        if (segments.size() > 1 && TextUtils.isDigitsOnly(segments.get(1))) {
+            mRowCache.invalidate(Long.parseLong(segments.get(1)));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Drops the sections after a write that changed the names, and notifies the list to read them again.
+     * Inside a batch they are dropped again once it is committed, so sections read by other threads in the
+     * meantime don't outlive it, and the notification waits for the commit.
+     */
+    private void invalidateSections() {
+        mSectionCache.invalidate();
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.sectionsChanged = true;
+        } else {
+            mNotifier.notifyChange(ProductEntry.SECTIONS_CHANGED_URI);
+        }
+    }
+
+    /**
+     * Inserts all the products in a single transaction, measured as a single insert of many rows.
+     * @return the number of products inserted.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        long start = mMetrics.start();
+        int rowsInserted = 0;
+        try {
+            rowsInserted = bulkInsert(match, uri, values);
+            return rowsInserted;
+        } finally {
+            mMetrics.record(match, ProviderMetrics.OPERATION_INSERT, start, rowsInserted, uri);
+        }
+    }
+
+    /**
+     * Inserts all the products in a single transaction. Every row is validated before anything is
+     * written, so an invalid product leaves the table untouched.
+     */
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
+        if (match != PRODUCTS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+        for (ContentValues productValues : values) {
+            validateProduct(productValues);
+        }
+
+        SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
+        Batch batch = beginBatch(writableDatabase);
+        int rowsInserted = 0;
+        try {
+            for (ContentValues productValues : values) {
+                if (insertRow(writableDatabase, productValues) != -1) {
+                    rowsInserted++;
+                }
+            }
+            if (rowsInserted != 0) {
+                batch.changedUris.add(ProductEntry.CONTENT_URI);
+                invalidateSections();
+            }
+            writableDatabase.setTransactionSuccessful();
+            batch.successful = true;
+        } finally {
+            endBatch(writableDatabase, batch);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Applies all the operations in a single transaction. If any operation fails, none of them is kept.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
+        Batch batch = beginBatch(writableDatabase);
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            writableDatabase.setTransactionSuccessful();
+            batch.successful = true;
+            return results;
+        } finally {
+            endBatch(writableDatabase, batch);
+        }
+    }
+
+    /**
+     * Starts a transaction and registers a new batch for the current thread.
+     */
+    private Batch beginBatch(SQLiteDatabase database) {
+        Batch batch = new Batch();
+        // Non-exclusive, so with write-ahead logging the loaders keep reading during the batch.
+        database.beginTransactionNonExclusive();
+        mBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Ends the batch transaction and notifies each changed table once if it was committed.
+     */
+    private void endBatch(SQLiteDatabase database, Batch batch) {
+        mBatch.remove();
+        database.endTransaction();
+        if (!batch.changedUris.isEmpty()) {
+            // Rows read by other threads while the batch was running are stale once it's committed.
+            mRowCache.invalidateAll();
+        }
+        if (batch.sectionsChanged) {
+            mSectionCache.invalidate();
+            if (batch.successful) {
+                mNotifier.notifyChange(ProductEntry.SECTIONS_CHANGED_URI);
+            }
+        }
+        if (batch.successful && !batch.changedUris.isEmpty()) {
+            // One checkpoint and one notification per changed table for the whole batch.
+            mDbHelper.scheduleCheckpoint();
+            for (Uri changedUri : batch.changedUris) {
+                mNotifier.notifyChange(changedUri);
+            }
+        }
+    }
+
+    /**
+     * Helper method that adds the product to the database.
+     * @return the new inserted product URI.
+     */
+    private Uri insertProduct(Uri uri, ContentValues values) {
+        validateProduct(values);
+
         /** Actually add the product to the database */
         // Get a writable database, as it needs to be modified.
         SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
         // Insert the product and store its returned id.
-        long id = writableDatabase.insert(ProductEntry.TABLE_NAME, null, values);
+        long id = insertRow(writableDatabase, values);
         if (id == -1){
             // -1 indicates SQL insert operation error.
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
         }
 
-        // Notify listeners that the data has changed for the content URI.
-        getContext().getContentResolver().notifyChange(uri, null);
+        Uri productUri = ContentUris.withAppendedId(uri, id);
+        invalidateSections();
+        // Notify listeners that the data has changed for the new product.
+        notifyChange(productUri);
 
         // Return the new product content URI.
-        return ContentUris.withAppendedId(uri, id);
+        return productUri;
     }
 
 
@@ -183,19 +973,205 @@ public class ProductProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
+        long start = mMetrics.start();
+        int rowsUpdated = 0;
+        try {
+            rowsUpdated = update(match, uri, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            mMetrics.record(match, ProviderMetrics.OPERATION_UPDATE, start, rowsUpdated, uri);
+        }
+    }
+
+    /**
+     * Updates the product or products of a matched URI.
+     */
+    private int update(int match, Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
         switch (match) {
             case PRODUCTS:
                 return updateProduct(uri, contentValues, selection, selectionArgs);
             case PRODUCT_ID:
+                String version = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_VERSION);
+                if (mCompiledQuantityUpdates && version == null && contentValues.size() == 1
+                        && contentValues.containsKey(ProductEntry.COLUMN_PRODUCT_QUANTITY)
+                        && TextUtils.isEmpty(selection)) {
+                    // Quantity edits are frequent, use the compiled statement.
+                    return updateQuantity(uri, contentValues.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY));
+                }
                 // Extract id from the URI
+                long id = ContentUris.parseId(uri);
                 selection = ProductEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                selectionArgs = new String[]{String.valueOf(id)};
+                if (version != null) {
+                    // Only if nothing wrote the product since the caller read it. Setting the next version here
+                    // also keeps the version trigger from writing the row again.
+                    long expectedVersion = parseLong(version, uri);
+                    selection += " AND " + ProductEntry.COLUMN_PRODUCT_VERSION + "=?";
+                    selectionArgs = new String[]{String.valueOf(id), version};
+                    contentValues = new ContentValues(contentValues);
+                    contentValues.put(ProductEntry.COLUMN_PRODUCT_VERSION, expectedVersion + 1);
+                    // Notify the product itself, not the versioned URI
+                    uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+                }
                 return updateProduct(uri, contentValues, selection, selectionArgs);
+            case PRODUCT_SELL:
+                // The sale is fully described by the URI, values and selection are ignored.
+                return sellProduct(uri);
+            case PRODUCT_RESTOCK:
+                // The restock is fully described by the URI, values and selection are ignored.
+                return restockProduct(uri);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
+    /**
+     * Helper method that sells units of a product. A single conditional UPDATE changes the quantity and
+     * sold counters without reading the row first, and the sale is added to the ledger in the same transaction.
+     * @param uri of the form products/#/sell?count=N (count defaults to 1).
+     * @return 1 if the sale was recorded, 0 if the product doesn't exist or there isn't enough stock.
+     */
+    private int sellProduct(Uri uri) {
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        long count = parseCount(uri);
+
+        SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        writableDatabase.beginTransactionNonExclusive();
+        try {
+            rowsUpdated = executeUpdate(STATEMENT_SELL, count, id);
+            if (rowsUpdated != 0) {
+                long now = System.currentTimeMillis();
+                SQLiteStatement statement = mStatements.get(writableDatabase, STATEMENT_RECORD_SALE);
+                synchronized (statement) {
+                    statement.bindLong(1, count);
+                    statement.bindLong(2, now);
+                    statement.bindLong(3, ProductContract.toDay(now));
+                    statement.bindLong(4, id);
+                    statement.executeInsert();
+                }
+            }
+            writableDatabase.setTransactionSuccessful();
+        } finally {
+            writableDatabase.endTransaction();
+        }
+        if (rowsUpdated != 0) {
+            // Notify the listeners of the product that was sold and of the sales
+            notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id));
+            notifyChange(SaleEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Helper method that sells units of several products in a single transaction, with one change
+     * notification. The batch id is recorded in the same transaction, so a batch sent again after a crash
+     * is recognized and skipped.
+     * @param batchId id of the batch, chosen by the caller.
+     * @param extras with the EXTRA_PRODUCT_IDS and EXTRA_COUNTS arrays.
+     * @return EXTRA_APPLIED, and the EXTRA_REJECTED_IDS of the products without enough stock.
+     */
+    private Bundle sellBatch(String batchId, Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(ProductContract.EXTRA_PRODUCT_IDS);
+        int[] counts = extras == null ? null : extras.getIntArray(ProductContract.EXTRA_COUNTS);
+        if (TextUtils.isEmpty(batchId) || ids == null || counts == null || ids.length != counts.length) {
+            throw new IllegalArgumentException("Sale batch requires an id, product ids and counts");
+        }
+        for (int count : counts) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Sale batch requires valid counts " + batchId);
+            }
+        }
+
+        SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
+        ArrayList<Long> rejected = new ArrayList<>();
+        boolean applied;
+        Batch batch = beginBatch(writableDatabase);
+        try {
+            long now = System.currentTimeMillis();
+            SQLiteStatement statement = mStatements.get(writableDatabase, STATEMENT_MARK_SALE_BATCH);
+            synchronized (statement) {
+                statement.bindString(1, batchId);
+                statement.bindLong(2, now);
+                applied = statement.executeInsert() != -1;
+            }
+            if (applied) {
+                for (int i = 0; i < ids.length; i++) {
+                    // Notified once the batch is committed
+                    if (sellProduct(ProductEntry.buildSellUri(ids[i], counts[i])) == 0) {
+                        rejected.add(ids[i]);
+                    }
+                }
+                writableDatabase.delete(ProductDbHelper.SALE_BATCHES_TABLE_NAME,
+                        ProductDbHelper.COLUMN_BATCH_APPLIED_AT + " < ?",
+                        new String[]{String.valueOf(now - SALE_BATCH_RETENTION_MILLIS)});
+            } else {
+                Log.i(LOG_TAG, "Sale batch " + batchId + " was already applied");
+            }
+            writableDatabase.setTransactionSuccessful();
+            batch.successful = true;
+        } finally {
+            endBatch(writableDatabase, batch);
+        }
+
+        long[] rejectedIds = new long[rejected.size()];
+        for (int i = 0; i < rejectedIds.length; i++) {
+            rejectedIds[i] = rejected.get(i);
+        }
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.EXTRA_APPLIED, applied);
+        result.putLongArray(ProductContract.EXTRA_REJECTED_IDS, rejectedIds);
+        return result;
+    }
+
+    /**
+     * Helper method that adds units to the stock of a product with a single UPDATE.
+     * @param uri of the form products/#/restock?count=N (count defaults to 1).
+     * @return 1 if the stock changed, 0 if the product doesn't exist.
+     */
+    private int restockProduct(Uri uri) {
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        int rowsUpdated = executeUpdate(STATEMENT_RESTOCK, parseCount(uri), id);
+        if (rowsUpdated != 0) {
+            // Notify the listeners of the product that changed
+            notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id));
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Reads the count parameter of a sell or restock URI.
+     * @return the count, 1 if the parameter is absent.
+     * @throws IllegalArgumentException if the count isn't a positive number.
+     */
+    private static long parseCount(Uri uri) {
+        String countParameter = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_COUNT);
+        long count = countParameter == null ? 1 : parseLong(countParameter, uri);
+        if (count <= 0) {
+            throw new IllegalArgumentException("Stock change requires a valid count " + uri);
+        }
+        return count;
+    }
+
+    /**
+     * Helper method that sets the quantity of a single product through the compiled statement.
+     * @param uri of the product.
+     * @param quantity new quantity.
+     * @return number of rows updated.
+     */
+    private int updateQuantity(Uri uri, Integer quantity) {
+        // Check if product quantity is OK (can't be null or negative)
+        if (quantity == null || quantity < 0){
+            throw new IllegalArgumentException("Product requires a valid quantity");
+        }
+        int rowsUpdated = executeUpdate(STATEMENT_SET_QUANTITY, quantity, ContentUris.parseId(uri));
+        if (rowsUpdated != 0){
+            // Notify the listeners that the data has changed
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
     /**
      * Helper method that updates the data at the given selection and selections arguments with the new ContentValues.
      * @param uri to update.
@@ -219,7 +1195,7 @@ public class ProductProvider extends ContentProvider {
         // Check for product price
         if (contentValues.containsKey(ProductEntry.COLUMN_PRODUCT_PRICE)){
             Integer price = contentValues.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
-            if (price != null && price < 0){
+            if (price == null || price < 0){
                 throw new IllegalArgumentException("Product requires a valid price");
             }
         }
@@ -236,14 +1212,28 @@ public class ProductProvider extends ContentProvider {
         // No need to check for product sold quantity
         // No need to check for product sold profit
 
+        // Check for product SKU (unique, see the catch below)
+        normalizeSku(contentValues);
+
         /** Actually update the product with the new values */
         // Get a writable database (needs to be modified)
         SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
         // Perform the update operation and store the number of rows affected
-        int rowsUpdated = writableDatabase.update(ProductEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        int rowsUpdated;
+        try {
+            rowsUpdated = writableDatabase.update(ProductEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        } catch (SQLiteConstraintException e) {
+            // SKU already used by another product. Same behaviour as a failed insert, which returns null.
+            Log.e(LOG_TAG, "Error updating " + uri + " with " + contentValues, e);
+            return 0;
+        }
         if (rowsUpdated != 0){
+            if (contentValues.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)) {
+                // A new name may move the product to another section
+                invalidateSections();
+            }
             // Notify the listeners that the data has changed
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -257,21 +1247,36 @@ public class ProductProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        // Match the content URI
+        final int match = sUriMatcher.match(uri);
+        long start = mMetrics.start();
+        int rowsDeleted = 0;
+        try {
+            rowsDeleted = delete(match, uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(match, ProviderMetrics.OPERATION_DELETE, start, rowsDeleted, uri);
+        }
+    }
+
+    /**
+     * Deletes the product or products of a matched URI.
+     */
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         int rowsDeleted;
 
         // Get a writable database (needs to be modified)
         SQLiteDatabase writableDatabase = mDbHelper.getWritableDatabase();
-        // Match the content URI
-        final int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
                 // Delete all rows that match the selection and selection arguments and store the number of rows affected
                 rowsDeleted = writableDatabase.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
                 if (rowsDeleted != 0){
+                    invalidateSections();
                     // If there are rows deleted, notify the listeners
-                    getContext().getContentResolver().notifyChange(uri, null);
-                    return rowsDeleted;
+                    notifyChange(uri);
                 }
+                return rowsDeleted;
             case PRODUCT_ID:
                 // Get the ID from the URI
                 selection = ProductEntry._ID + "=?";
@@ -279,10 +1284,11 @@ public class ProductProvider extends ContentProvider {
                 // Delete a single row given by the ID in the URI and store the number of rows affected
                 rowsDeleted = writableDatabase.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
                 if (rowsDeleted != 0){
+                    invalidateSections();
                     // If there are rows deleted, notify the listeners
-                    getContext().getContentResolver().notifyChange(uri, null);
-                    return rowsDeleted;
+                    notifyChange(uri);
                 }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
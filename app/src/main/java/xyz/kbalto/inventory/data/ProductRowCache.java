@@ -0,0 +1,166 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Read-through LRU cache of whole product rows, keyed by _id, serving the single product queries.
+ * The provider drops a row whenever it writes it, and drops every row after writes that aren't
+ * about a single product (selection-based updates and deletes, batches).
+ * A row read from the database is only kept if nothing was invalidated while it was read,
+ * so a write racing with the read can't leave a stale row behind.
+ */
+class ProductRowCache {
+    /** Amount of product rows kept in memory */
+    static final int MAX_ROWS = 128;
+
+    /** Cached rows, by _id */
+    private final LruCache<Long, Row> mRows = new LruCache<>(MAX_ROWS);
+    /** Incremented by every invalidation. Guarded by this. */
+    private long mGeneration;
+    /** Queries served from memory */
+    private final AtomicLong mHits = new AtomicLong();
+    /** Queries that read the database */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Values of a product row, in the order of the table columns.
+     */
+    private static class Row {
+        final String[] columns;
+        final Object[] values;
+
+        Row(String[] columns, Object[] values) {
+            this.columns = columns;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Returns the product with the given id, reading it from the database if it isn't cached.
+     * @param projection columns to include, null for all of them.
+     * @return a cursor with the product, or null if it doesn't exist or the projection isn't made of
+     * plain column names, in which case the caller queries the database itself.
+     */
+    Cursor query(SQLiteDatabase database, long id, String[] projection) {
+        Row row = mRows.get(id);
+        if (row == null) {
+            mMisses.incrementAndGet();
+            long generation;
+            synchronized (this) {
+                generation = mGeneration;
+            }
+            row = readRow(database, id);
+            if (row == null) {
+                // Missing products aren't cached, the caller returns the empty result of the database.
+                return null;
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mRows.put(id, row);
+                }
+            }
+        } else {
+            mHits.incrementAndGet();
+        }
+        return toCursor(row, projection);
+    }
+
+    /**
+     * Drops the cached row of a product.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drops all the cached rows.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Reads every column of a product.
+     * @return the row, or null if the product doesn't exist.
+     */
+    private static Row readRow(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(ProductEntry.TABLE_NAME, null, ProductEntry._ID + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Object[] values = new Object[cursor.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        values[i] = null;
+                }
+            }
+            return new Row(cursor.getColumnNames(), values);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds a single row cursor with the projected columns of a cached row.
+     * @return the cursor, or null if a projected column isn't a column of the table.
+     */
+    private static Cursor toCursor(Row row, String[] projection) {
+        if (projection == null) {
+            MatrixCursor cursor = new MatrixCursor(row.columns, 1);
+            cursor.addRow(row.values);
+            return cursor;
+        }
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            int index = indexOf(row.columns, projection[i]);
+            if (index == -1) {
+                return null;
+            }
+            values[i] = row.values[index];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,85 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Read-through cache of the alphabetical sections of the products sorted by name, serving the sections URI.
+ * The sections are counted by a single grouped query over the covering name index, and kept until a write
+ * changes the names: inserts, deletes and updates of the name. Sales and restocks, which make the list
+ * reload far more often, keep them.
+ * As with ProductRowCache, sections read while an invalidation happens aren't kept.
+ */
+class ProductSectionCache {
+    /** Columns of the sections cursor */
+    private static final String[] COLUMNS = {ProductEntry.COLUMN_SECTION_LABEL, ProductEntry.COLUMN_SECTION_COUNT,
+            ProductEntry.COLUMN_SECTION_START};
+    /**
+     * Groups the products by first character, case insensitive as the list is sorted. The characters of a group
+     * are equal for the NOCASE collation, so each group is a run of consecutive rows of the list.
+     */
+    static final String SQL_SECTIONS =
+            // SELECT upper(substr(name, 1, 1)) AS section, COUNT(*) AS productCount,
+            //     MIN(name COLLATE NOCASE) AS startName
+            // FROM products GROUP BY substr(name, 1, 1) COLLATE NOCASE ORDER BY startName COLLATE NOCASE
+            "SELECT upper(substr(" + ProductEntry.COLUMN_PRODUCT_NAME + ", 1, 1)) AS "
+                    + ProductEntry.COLUMN_SECTION_LABEL + ", COUNT(*) AS " + ProductEntry.COLUMN_SECTION_COUNT
+                    + ", MIN(" + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE) AS "
+                    + ProductEntry.COLUMN_SECTION_START + " FROM " + ProductEntry.TABLE_NAME
+                    + " GROUP BY substr(" + ProductEntry.COLUMN_PRODUCT_NAME + ", 1, 1) COLLATE NOCASE"
+                    + " ORDER BY " + ProductEntry.COLUMN_SECTION_START + " COLLATE NOCASE";
+
+    /** Rows of the sections cursor, null until read. Guarded by this. */
+    private Object[][] mSections;
+    /** Incremented by every invalidation. Guarded by this. */
+    private long mGeneration;
+
+    /**
+     * Returns the sections, reading them from the database if they aren't cached.
+     */
+    Cursor query(SQLiteDatabase database) {
+        Object[][] sections;
+        long generation;
+        synchronized (this) {
+            sections = mSections;
+            generation = mGeneration;
+        }
+        if (sections == null) {
+            sections = readSections(database);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mSections = sections;
+                }
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, sections.length);
+        for (Object[] section : sections) {
+            cursor.addRow(section);
+        }
+        return cursor;
+    }
+
+    /**
+     * Drops the sections, after a write that may have changed the names.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mSections = null;
+    }
+
+    private static Object[][] readSections(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery(SQL_SECTIONS, null);
+        try {
+            Object[][] sections = new Object[cursor.getCount()][];
+            while (cursor.moveToNext()) {
+                sections[cursor.getPosition()] = new Object[]{cursor.getString(0), cursor.getInt(1), cursor.getString(2)};
+            }
+            return sections;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the inserts, updates and deletes of the screens on a single background thread, one at a time and in
+ * the order they were submitted, and hands their results back on the main thread for the toasts and the
+ * navigation. The main thread never waits for the database, however slow the storage.
+ * At most {@link #MAX_PENDING_WRITES} writes wait in line; writes submitted beyond that fail right away
+ * instead of piling up behind a stuck database.
+ * Sales from the list go through the SaleBuffer, which sends them in batches on its own thread.
+ */
+public class ProductWriter {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ProductWriter.class.getSimpleName();
+    /** Amount of writes waiting for the writer thread, beyond which writes are refused */
+    static final int MAX_PENDING_WRITES = 16;
+
+    /**
+     * Database work of a write, run on the writer thread.
+     */
+    public interface Write<T> {
+        /**
+         * @return the result handed to the callback.
+         */
+        T run(ContentResolver resolver);
+    }
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback<T> {
+        /**
+         * @param result of the write, or null if it threw or couldn't be queued.
+         */
+        void onWritten(T result);
+    }
+
+    private static ProductWriter sInstance;
+
+    private final ContentResolver mResolver;
+    /** The writer thread, at background priority, with a bounded queue */
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ProductWriter");
+        }
+    });
+    /** Delivers the results to the callbacks */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return the writer shared by the whole app.
+     */
+    public static synchronized ProductWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProductWriter(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    ProductWriter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Queues a write after the ones already submitted.
+     * @param callback notified on the main thread with the result, may be null.
+     */
+    public <T> void submit(final Write<T> write, final Callback<T> callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    T result = null;
+                    try {
+                        result = write.run(mResolver);
+                    } catch (RuntimeException e) {
+                        // Invalid values rejected by the provider, or a database error
+                        Log.e(LOG_TAG, "Write failed", e);
+                    }
+                    deliver(callback, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Too many pending writes, dropping one", e);
+            deliver(callback, null);
+        }
+    }
+
+    private <T> void deliver(final Callback<T> callback, final T result) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWritten(result);
+            }
+        });
+    }
+}
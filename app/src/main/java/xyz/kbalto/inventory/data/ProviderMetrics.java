@@ -0,0 +1,284 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.net.Uri;
+import android.util.SparseIntArray;
+
+import java.util.concurrent.TimeUnit;
+
+import xyz.kbalto.inventory.data.ProductContract.MetricsEntry;
+
+/**
+ * Latency histograms, row counts and slow-query log of the provider operations, per URI pattern and operation,
+ * read through the debug-only {@link MetricsEntry} URIs.
+ * <p>
+ * Recording an operation allocates nothing: the counters are arrays made up front, indexed by URI pattern and
+ * operation, and the histograms have power-of-two buckets of microseconds. As the cursor factory of the database,
+ * the metrics also keep a reference to the last query compiled by each thread; only an operation slower than
+ * {@link #SLOW_QUERY_MILLIS} copies its SQL into the ring of slow queries. Their plan is explained when the log
+ * is read, so a slow query doesn't run an EXPLAIN on top of itself.
+ */
+class ProviderMetrics implements SQLiteDatabase.CursorFactory {
+    /** Operations measured, with their names in the metrics */
+    static final int OPERATION_QUERY = 0;
+    static final int OPERATION_INSERT = 1;
+    static final int OPERATION_UPDATE = 2;
+    static final int OPERATION_DELETE = 3;
+    static final int OPERATION_CALL = 4;
+    private static final String[] OPERATION_NAMES = {"query", "insert", "update", "delete", "call"};
+    /** Buckets of a histogram: bucket 0 is under 1 microsecond, bucket n from 2^(n-1) to 2^n microseconds */
+    static final int BUCKET_COUNT = 24;
+    /** Duration from which an operation goes to the slow-query log */
+    static final long SLOW_QUERY_MILLIS = 50;
+    /** Amount of slow queries kept, the oldest are dropped */
+    static final int SLOW_QUERY_LOG_SIZE = 32;
+    private static final long SLOW_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(SLOW_QUERY_MILLIS);
+    /** Prefix of SQLiteQuery.toString() before the SQL */
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    /** Columns of the cursors */
+    private static final String[] OPERATION_COLUMNS = {MetricsEntry.COLUMN_URI, MetricsEntry.COLUMN_OPERATION,
+            MetricsEntry.COLUMN_COUNT, MetricsEntry.COLUMN_ROWS, MetricsEntry.COLUMN_TOTAL_MICROS,
+            MetricsEntry.COLUMN_MAX_MICROS, MetricsEntry.COLUMN_P50_MICROS, MetricsEntry.COLUMN_P90_MICROS,
+            MetricsEntry.COLUMN_P99_MICROS, MetricsEntry.COLUMN_HISTOGRAM};
+    private static final String[] SLOW_QUERY_COLUMNS = {MetricsEntry.COLUMN_TIME, MetricsEntry.COLUMN_URI,
+            MetricsEntry.COLUMN_OPERATION, MetricsEntry.COLUMN_DURATION_MICROS, MetricsEntry.COLUMN_ROWS,
+            MetricsEntry.COLUMN_SQL, MetricsEntry.COLUMN_PLAN};
+
+    /**
+     * An operation of the slow-query log.
+     */
+    private static class SlowQuery {
+        final long time;
+        final String uri;
+        final int operation;
+        final long durationMicros;
+        final int rows;
+        /** SQL of the last query of the operation, null if it didn't query the database */
+        final String sql;
+
+        SlowQuery(long time, String uri, int operation, long durationMicros, int rows, String sql) {
+            this.time = time;
+            this.uri = uri;
+            this.operation = operation;
+            this.durationMicros = durationMicros;
+            this.rows = rows;
+            this.sql = sql;
+        }
+    }
+
+    /** URI patterns reported, by slot */
+    private final String[] mUriNames;
+    /** Slot of each URI matcher code measured */
+    private final SparseIntArray mSlots = new SparseIntArray();
+    /** Counters by slot * OPERATION_NAMES.length + operation. Guarded by this. */
+    private final long[] mCounts;
+    private final long[] mRows;
+    private final long[] mTotalNanos;
+    private final long[] mMaxNanos;
+    /** Histograms, BUCKET_COUNT counters per slot and operation. Guarded by this. */
+    private final long[] mBuckets;
+    /** Ring of the slow queries, and where the next one goes. Guarded by this. */
+    private final SlowQuery[] mSlowQueries = new SlowQuery[SLOW_QUERY_LOG_SIZE];
+    private int mNextSlowQuery;
+    /** Last query compiled by each thread during the current operation, in a holder made once per thread */
+    private final ThreadLocal<SQLiteQuery[]> mLastQuery = new ThreadLocal<SQLiteQuery[]>() {
+        @Override
+        protected SQLiteQuery[] initialValue() {
+            return new SQLiteQuery[1];
+        }
+    };
+
+    /**
+     * @param matchCodes URI matcher codes measured.
+     * @param uriNames patterns of those URIs, as reported.
+     */
+    ProviderMetrics(int[] matchCodes, String[] uriNames) {
+        if (matchCodes.length != uriNames.length) {
+            throw new IllegalArgumentException("Metrics require a name for every URI");
+        }
+        mUriNames = uriNames;
+        for (int slot = 0; slot < matchCodes.length; slot++) {
+            mSlots.put(matchCodes[slot], slot);
+        }
+        int size = matchCodes.length * OPERATION_NAMES.length;
+        mCounts = new long[size];
+        mRows = new long[size];
+        mTotalNanos = new long[size];
+        mMaxNanos = new long[size];
+        mBuckets = new long[size * BUCKET_COUNT];
+    }
+
+    /**
+     * Remembers the query compiled for the operation running on this thread.
+     */
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        mLastQuery.get()[0] = query;
+        return new SQLiteCursor(driver, editTable, query);
+    }
+
+    /**
+     * Starts an operation on this thread, forgetting the queries compiled outside of the operations.
+     * @return the start time to pass to {@link #record}.
+     */
+    long start() {
+        mLastQuery.get()[0] = null;
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds an operation that started at startNanos, from {@link #start()}, and ends now.
+     * @param match URI matcher code of the operation, ignored if it isn't measured.
+     * @param rows read by a query or written by a write.
+     */
+    void record(int match, int operation, long startNanos, int rows, Uri uri) {
+        long nanos = System.nanoTime() - startNanos;
+        SQLiteQuery[] lastQuery = mLastQuery.get();
+        SQLiteQuery query = lastQuery[0];
+        lastQuery[0] = null;
+        int slot = mSlots.get(match, -1);
+        if (slot == -1) {
+            return;
+        }
+        int index = slot * OPERATION_NAMES.length + operation;
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+        synchronized (this) {
+            mCounts[index]++;
+            mRows[index] += rows;
+            mTotalNanos[index] += nanos;
+            mMaxNanos[index] = Math.max(mMaxNanos[index], nanos);
+            mBuckets[index * BUCKET_COUNT + bucket]++;
+        }
+        if (nanos >= SLOW_QUERY_NANOS) {
+            // Rare: the only path that allocates
+            String sql = null;
+            if (query != null) {
+                sql = query.toString();
+                if (sql.startsWith(QUERY_PREFIX)) {
+                    sql = sql.substring(QUERY_PREFIX.length());
+                }
+            }
+            SlowQuery slowQuery = new SlowQuery(System.currentTimeMillis(), uri.toString(), operation,
+                    nanos / 1000, rows, sql);
+            synchronized (this) {
+                mSlowQueries[mNextSlowQuery] = slowQuery;
+                mNextSlowQuery = (mNextSlowQuery + 1) % SLOW_QUERY_LOG_SIZE;
+            }
+        }
+    }
+
+    /**
+     * @return a row per URI pattern and operation that happened, with its counters and histogram.
+     */
+    Cursor queryOperations() {
+        long[] counts;
+        long[] rows;
+        long[] totalNanos;
+        long[] maxNanos;
+        long[] buckets;
+        synchronized (this) {
+            counts = mCounts.clone();
+            rows = mRows.clone();
+            totalNanos = mTotalNanos.clone();
+            maxNanos = mMaxNanos.clone();
+            buckets = mBuckets.clone();
+        }
+        MatrixCursor cursor = new MatrixCursor(OPERATION_COLUMNS);
+        for (int index = 0; index < counts.length; index++) {
+            if (counts[index] == 0) {
+                continue;
+            }
+            long maxMicros = maxNanos[index] / 1000;
+            StringBuilder histogram = new StringBuilder();
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                if (bucket != 0) {
+                    histogram.append(',');
+                }
+                histogram.append(buckets[index * BUCKET_COUNT + bucket]);
+            }
+            cursor.addRow(new Object[]{
+                    mUriNames[index / OPERATION_NAMES.length],
+                    OPERATION_NAMES[index % OPERATION_NAMES.length],
+                    counts[index],
+                    rows[index],
+                    totalNanos[index] / 1000,
+                    maxMicros,
+                    getPercentileMicros(buckets, index, counts[index], 0.5, maxMicros),
+                    getPercentileMicros(buckets, index, counts[index], 0.9, maxMicros),
+                    getPercentileMicros(buckets, index, counts[index], 0.99, maxMicros),
+                    histogram.toString()});
+        }
+        return cursor;
+    }
+
+    /**
+     * @param database to explain the plans of the queries with.
+     * @return the slow queries, newest first, with their query plan.
+     */
+    Cursor querySlowQueries(SQLiteDatabase database) {
+        SlowQuery[] slowQueries = new SlowQuery[SLOW_QUERY_LOG_SIZE];
+        synchronized (this) {
+            for (int i = 0; i < SLOW_QUERY_LOG_SIZE; i++) {
+                slowQueries[i] = mSlowQueries[(mNextSlowQuery - 1 - i + SLOW_QUERY_LOG_SIZE) % SLOW_QUERY_LOG_SIZE];
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(SLOW_QUERY_COLUMNS);
+        for (SlowQuery slowQuery : slowQueries) {
+            if (slowQuery == null) {
+                break;
+            }
+            cursor.addRow(new Object[]{slowQuery.time, slowQuery.uri, OPERATION_NAMES[slowQuery.operation],
+                    slowQuery.durationMicros, slowQuery.rows, slowQuery.sql,
+                    slowQuery.sql == null ? null : explain(database, slowQuery.sql)});
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the percentile, at most the slowest operation.
+     */
+    private static long getPercentileMicros(long[] buckets, int index, long count, double percentile, long maxMicros) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += buckets[index * BUCKET_COUNT + bucket];
+            if (seen >= rank) {
+                return Math.min(maxMicros, 1L << bucket);
+            }
+        }
+        return maxMicros;
+    }
+
+    /**
+     * @return the lines of the query plan of the SQL, with its parameters unbound.
+     */
+    private static String explain(SQLiteDatabase database, String sql) {
+        Cursor cursor;
+        try {
+            // EXPLAIN QUERY PLAN <sql>
+            cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        } catch (SQLException e) {
+            return e.getMessage();
+        }
+        try {
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (plan.length() != 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detailColumnIndex));
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package xyz.kbalto.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Write-behind buffer of the sales made from the product list. A sale is added to the pending units of its
+ * product right away, and the pending units of every product are sold together with one
+ * {@link ProductContract#METHOD_SELL_BATCH} call a moment later, or as soon as enough of them piled up.
+ * A burst of taps at the counter is then one transaction and one list reload instead of one per tap.
+ * <p>
+ * Pending sales are appended to a journal file before {@link #sell(long, int)} returns. A flush moves the
+ * journal aside, named after the batch id, and deletes it once the batch is committed. A batch that can't be
+ * sent keeps its units pending and is sent again after a growing delay. At startup the journals left by a
+ * process that died are sent again, and the provider skips the batch ids it already applied.
+ * Must be used from the main thread. The journal appends and renames are the only disk access allowed there
+ * by the debug StrictMode policy: they are what makes a sale durable before {@link #sell(long, int)} returns.
+ */
+public class SaleBuffer {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = SaleBuffer.class.getSimpleName();
+    /** Time a sale waits for the next ones before being sent, in milliseconds */
+    static final long FLUSH_DELAY_MILLIS = 2000;
+    /** Amount of pending units sent without waiting */
+    static final int FLUSH_THRESHOLD = 20;
+    /** Directory of the journals, in the app's files directory */
+    private static final String DIRECTORY = "sales";
+    /** Journal of the pending sales */
+    static final String JOURNAL_NAME = "pending.journal";
+    /** Name of the journals of the batches being sent: batch-<batch id>.journal */
+    private static final String BATCH_PREFIX = "batch-";
+    private static final String BATCH_SUFFIX = ".journal";
+    /** Delay before sending a failed batch again, doubled by every failure up to MAX_RETRY_DELAY_MILLIS */
+    static final long RETRY_DELAY_MILLIS = 1000;
+    static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    /**
+     * Receives the changes of the pending sales on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Units of the product were sold and are pending.
+         */
+        void onPendingSalesChanged(long productId);
+
+        /**
+         * The batch with the pending units of the product was sent.
+         * @param sold units now in the database.
+         * @param rejected units that weren't sold for lack of stock.
+         */
+        void onSalesFlushed(long productId, int sold, int rejected);
+
+        /**
+         * A batch couldn't be sent. Its units stay pending, and it is sent again later.
+         * @param failures times in a row the batch failed.
+         */
+        void onSalesDelayed(int failures);
+    }
+
+    /**
+     * Units of a batch, sent until the provider answers.
+     */
+    private static class SaleBatch {
+        final String id;
+        final Map<Long, Integer> units;
+        final File journal;
+        /** Whether the batch was journaled by the previous process, so its units aren't pending in this one */
+        final boolean replayed;
+        /** Times in a row the batch couldn't be sent */
+        int failures;
+
+        SaleBatch(String id, Map<Long, Integer> units, File journal, boolean replayed) {
+            this.id = id;
+            this.units = units;
+            this.journal = journal;
+            this.replayed = replayed;
+        }
+    }
+
+    private static SaleBuffer sInstance;
+
+    private final ContentResolver mResolver;
+    /** Directory of the journals */
+    private final File mDirectory;
+    /** Sends one batch at a time, at background priority. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "SaleBuffer");
+        }
+    });
+    /** Runs the flush timer and delivers the results to the listeners */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+    /** Units not sent yet, by product id, in the order they were first sold */
+    private Map<Long, Integer> mPending = new LinkedHashMap<>();
+    /** Total of mPending */
+    private int mPendingUnits;
+    /** Units sent and not committed yet, by product id */
+    private final Map<Long, Integer> mSending = new HashMap<>();
+    /** Journal of the pending units, opened by the first sale after a flush */
+    private OutputStream mJournal;
+    /** Whether the flush timer is running */
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * @return the buffer shared by the whole app. The first call sends the sales journaled by the previous process.
+     */
+    public static synchronized SaleBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new SaleBuffer(appContext.getContentResolver(), new File(appContext.getFilesDir(), DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    SaleBuffer(ContentResolver resolver, File directory) {
+        mResolver = resolver;
+        mDirectory = directory;
+        replay();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Sells units of a product: they are journaled now and sent with the next batch. The caller checks the
+     * stock against {@link #getPendingCount(long)}; units without enough stock are rejected by the provider.
+     */
+    public void sell(long productId, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a valid count: " + count);
+        }
+        boolean journaled = appendJournal(productId, count);
+        Integer pending = mPending.get(productId);
+        mPending.put(productId, pending == null ? count : pending + count);
+        mPendingUnits += count;
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onPendingSalesChanged(productId);
+        }
+
+        if (!journaled || mPendingUnits >= FLUSH_THRESHOLD) {
+            // Not durable, or enough to send: don't wait
+            flush();
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mMainHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * @return the units of the product sold but not in the database yet.
+     */
+    public int getPendingCount(long productId) {
+        Integer pending = mPending.get(productId);
+        Integer sending = mSending.get(productId);
+        return (pending == null ? 0 : pending) + (sending == null ? 0 : sending);
+    }
+
+    /**
+     * Sends the pending sales now, e.g. when the list is left.
+     */
+    public void flush() {
+        if (mFlushScheduled) {
+            mMainHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final String batchId = UUID.randomUUID().toString();
+        final File batchJournal = getBatchJournal(batchId);
+        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskWrites();
+        try {
+            closeJournal();
+            File journal = new File(mDirectory, JOURNAL_NAME);
+            if (journal.exists() && !journal.renameTo(batchJournal)) {
+                // The journal would be sent again with the next batch: keep the units pending.
+                Log.e(LOG_TAG, "Cannot move " + journal + " aside, the sales are sent with the next batch");
+                return;
+            }
+        } finally {
+            StrictMode.setThreadPolicy(policy);
+        }
+
+        Map<Long, Integer> units = mPending;
+        mPending = new LinkedHashMap<>();
+        mPendingUnits = 0;
+        for (Map.Entry<Long, Integer> entry : units.entrySet()) {
+            Integer sending = mSending.get(entry.getKey());
+            mSending.put(entry.getKey(), sending == null ? entry.getValue() : sending + entry.getValue());
+        }
+        sendInBackground(new SaleBatch(batchId, units, batchJournal, false));
+    }
+
+    /**
+     * Sends a batch on the executor, then handles the answer on the main thread.
+     */
+    private void sendInBackground(final SaleBatch batch) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] rejectedIds = send(batch);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (rejectedIds == null) {
+                            onBatchFailed(batch);
+                        } else if (!batch.replayed) {
+                            onBatchSent(batch.units, rejectedIds);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keeps the units of a batch that couldn't be sent pending, and sends it again after a delay.
+     * The batch keeps its id, so the provider skips it if it was applied after all.
+     */
+    private void onBatchFailed(final SaleBatch batch) {
+        batch.failures++;
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(batch.failures - 1, 16));
+        Log.w(LOG_TAG, "Sending sale batch " + batch.id + " again in " + delay + " ms");
+        if (!batch.replayed) {
+            for (Listener listener : new ArrayList<>(mListeners)) {
+                listener.onSalesDelayed(batch.failures);
+            }
+        }
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                sendInBackground(batch);
+            }
+        }, delay);
+    }
+
+    /**
+     * Takes the sent units out of the pending ones and tells the listeners.
+     * @param rejectedIds products without enough stock.
+     */
+    private void onBatchSent(Map<Long, Integer> units, long[] rejectedIds) {
+        for (Map.Entry<Long, Integer> entry : units.entrySet()) {
+            long productId = entry.getKey();
+            int count = entry.getValue();
+            int sending = mSending.get(productId) - count;
+            if (sending == 0) {
+                mSending.remove(productId);
+            } else {
+                mSending.put(productId, sending);
+            }
+
+            boolean rejected = false;
+            for (long rejectedId : rejectedIds) {
+                rejected |= rejectedId == productId;
+            }
+            for (Listener listener : new ArrayList<>(mListeners)) {
+                listener.onSalesFlushed(productId, rejected ? 0 : count, rejected ? count : 0);
+            }
+        }
+    }
+
+    /**
+     * Sells the units of a batch in one transaction and deletes its journal. Runs on the executor.
+     * @return the products without enough stock, or null if the batch failed and its journal was kept.
+     */
+    private long[] send(SaleBatch batch) {
+        long[] ids = new long[batch.units.size()];
+        int[] counts = new int[batch.units.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : batch.units.entrySet()) {
+            ids[i] = entry.getKey();
+            counts[i] = entry.getValue();
+            i++;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, ids);
+        extras.putIntArray(ProductContract.EXTRA_COUNTS, counts);
+        Bundle result;
+        try {
+            result = mResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_SELL_BATCH, batch.id, extras);
+        } catch (RuntimeException e) {
+            // Sent again later, and at the next start if the process dies first
+            Log.e(LOG_TAG, "Cannot send sale batch " + batch.id, e);
+            return null;
+        }
+        if (!batch.journal.delete() && batch.journal.exists()) {
+            // Harmless: the provider skips the batch when it's sent again
+            Log.w(LOG_TAG, "Cannot delete " + batch.journal);
+        }
+        long[] rejectedIds = result == null ? null : result.getLongArray(ProductContract.EXTRA_REJECTED_IDS);
+        return rejectedIds == null ? new long[0] : rejectedIds;
+    }
+
+    /**
+     * Sends the journals left by the previous process. Its pending journal becomes a batch of its own,
+     * and the batch journals are listed before this process makes any.
+     */
+    private void replay() {
+        File journal = new File(mDirectory, JOURNAL_NAME);
+        final File[] files;
+        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskWrites();
+        try {
+            if (journal.length() > 0 && !journal.renameTo(getBatchJournal(UUID.randomUUID().toString()))) {
+                Log.e(LOG_TAG, "Cannot move " + journal + " aside");
+            }
+            files = mDirectory.listFiles();
+        } finally {
+            StrictMode.setThreadPolicy(policy);
+        }
+        if (files == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (!name.startsWith(BATCH_PREFIX) || !name.endsWith(BATCH_SUFFIX)) {
+                        continue;
+                    }
+                    String batchId = name.substring(BATCH_PREFIX.length(), name.length() - BATCH_SUFFIX.length());
+                    Map<Long, Integer> units = readJournal(file);
+                    if (units == null) {
+                        // Kept for the next start
+                        continue;
+                    }
+                    if (units.isEmpty()) {
+                        file.delete();
+                        continue;
+                    }
+                    Log.i(LOG_TAG, "Replaying sale batch " + batchId);
+                    final SaleBatch batch = new SaleBatch(batchId, units, file, true);
+                    if (send(batch) == null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onBatchFailed(batch);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends a sale to the journal. The write goes straight to the file, so the sale outlives the process.
+     * @return whether the sale was journaled.
+     */
+    private boolean appendJournal(long productId, int count) {
+        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskWrites();
+        try {
+            if (mJournal == null) {
+                if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                    throw new IOException("Cannot create " + mDirectory);
+                }
+                mJournal = new FileOutputStream(new File(mDirectory, JOURNAL_NAME), true);
+            }
+            mJournal.write((productId + " " + count + "\n").getBytes("US-ASCII"));
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot journal the sale of product " + productId, e);
+            closeJournal();
+            return false;
+        } finally {
+            StrictMode.setThreadPolicy(policy);
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot close the sales journal", e);
+        }
+        mJournal = null;
+    }
+
+    /**
+     * Reads the units sold of a journal, by product id. A line cut short by the death of the process is skipped.
+     * @return the units, or null if the journal can't be read.
+     */
+    private static Map<Long, Integer> readJournal(File file) {
+        Map<Long, Integer> batch = new LinkedHashMap<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    long productId = Long.parseLong(fields[0]);
+                    int count = Integer.parseInt(fields[1]);
+                    if (count > 0) {
+                        Integer units = batch.get(productId);
+                        batch.put(productId, units == null ? count : units + count);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    Log.w(LOG_TAG, "Skipping the line \"" + line + "\" of " + file);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot read " + file, e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Cannot close " + file, e);
+                }
+            }
+        }
+        return batch;
+    }
+
+    private File getBatchJournal(String batchId) {
+        return new File(mDirectory, BATCH_PREFIX + batchId + BATCH_SUFFIX);
+    }
+}
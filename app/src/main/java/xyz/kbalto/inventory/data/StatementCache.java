@@ -0,0 +1,54 @@
+package xyz.kbalto.inventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compiled statements for the provider's fixed-shape writes (insert, sell, restock, quantity edits).
+ * Each statement is compiled once for the database writes go through and then reused with new bindings,
+ * so the hot write paths don't rebuild or recompile their SQL.
+ * SQLiteStatement bindings aren't thread safe: hold the statement's monitor while binding and executing it.
+ */
+class StatementCache {
+    /** SQL of each statement, by index */
+    private final String[] mSql;
+    /** Compiled statements, by index (null until first used) */
+    private final SQLiteStatement[] mStatements;
+    /** Database the statements were compiled for */
+    private SQLiteDatabase mDatabase;
+
+    StatementCache(String... sql) {
+        mSql = sql;
+        mStatements = new SQLiteStatement[sql.length];
+    }
+
+    /**
+     * Returns the compiled statement with the given index, compiling it on first use.
+     * If the database was reopened, the statements of the old one are closed first.
+     */
+    synchronized SQLiteStatement get(SQLiteDatabase database, int index) {
+        if (database != mDatabase) {
+            close();
+            mDatabase = database;
+        }
+        SQLiteStatement statement = mStatements[index];
+        if (statement == null) {
+            statement = database.compileStatement(mSql[index]);
+            mStatements[index] = statement;
+        }
+        return statement;
+    }
+
+    /**
+     * Closes every compiled statement.
+     */
+    synchronized void close() {
+        for (int i = 0; i < mStatements.length; i++) {
+            if (mStatements[i] != null) {
+                mStatements[i].close();
+                mStatements[i] = null;
+            }
+        }
+        mDatabase = null;
+    }
+}
@@ -0,0 +1,193 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images downsampled to the size they are displayed at, so a camera photo shown in an
+ * 80dp row costs a few hundred kilobytes instead of tens of megabytes.
+ * With a BitmapPool, the pixels are decoded into a pooled bitmap instead of a new one when possible.
+ */
+final class BitmapDecoder {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = BitmapDecoder.class.getSimpleName();
+
+    /**
+     * Opens the encoded image, once for the bounds and once for the pixels.
+     */
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Reads the bounds of the image, then decodes it with the largest power of two sample size that
+     * keeps both dimensions at least as large as the requested ones.
+     * @param pool bitmaps to decode into, may be null.
+     * @return the decoded bitmap, or null if the image can't be decoded.
+     * @throws IOException if the image can't be read.
+     */
+    static Bitmap decodeSampledBitmap(final ContentResolver resolver, final Uri uri, int reqWidth, int reqHeight,
+                                      BitmapPool pool) throws IOException {
+        return decode(new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream input = resolver.openInputStream(uri);
+                if (input == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                return input;
+            }
+        }, reqWidth, reqHeight, pool);
+    }
+
+    /**
+     * Decodes a file at its own size.
+     * @param pool bitmaps to decode into, may be null.
+     * @return the decoded bitmap, or null if the file can't be decoded.
+     * @throws IOException if the file can't be read.
+     */
+    static Bitmap decodeFile(final File file, BitmapPool pool) throws IOException {
+        return decode(new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        }, 0, 0, pool);
+    }
+
+    /**
+     * @return the largest power of two that divides the image dimensions without going below the requested ones.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * @return the bitmap scaled down to fit in a square of the given size, or the same bitmap if it fits already.
+     */
+    static Bitmap scaleToFit(Bitmap bitmap, int maxSize) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= maxSize && height <= maxSize) {
+            return bitmap;
+        }
+        float scale = Math.min((float) maxSize / width, (float) maxSize / height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Reads the EXIF orientation of a local image. BitmapFactory ignores it, so the decoded pixels of a photo
+     * taken with the phone held upright may be sideways.
+     * @return one of the ExifInterface.ORIENTATION_* constants, ORIENTATION_NORMAL if the image has none, or
+     * ORIENTATION_UNDEFINED if it can't be read: before Android 7.0, only files have readable EXIF.
+     */
+    static int readOrientation(Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+        try {
+            return new ExifInterface(uri.getPath()).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read the orientation of " + uri, e);
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+    }
+
+    /**
+     * @param orientation EXIF orientation of the image, from {@link #readOrientation(Uri)}.
+     * @return the bitmap rotated and flipped upright, or the same bitmap if it is upright already.
+     */
+    static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    private static Bitmap decode(Source source, int reqWidth, int reqHeight, BitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        // Pooled bitmaps must be mutable, and so must the decoded ones to go back to the pool later.
+        options.inMutable = true;
+        if (pool != null) {
+            // Sampled dimensions are rounded up, so the reused bitmap is never too small.
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = pool.get(width, height, Bitmap.Config.ARGB_8888, options.inSampleSize);
+        }
+        try {
+            return decode(source, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The pooled bitmap doesn't fit this image after all: decode into a new one.
+            Log.w(LOG_TAG, "Cannot reuse bitmap", e);
+            options.inBitmap = null;
+            return decode(source, options);
+        }
+    }
+
+    private static Bitmap decode(Source source, BitmapFactory.Options options) throws IOException {
+        InputStream input = source.open();
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package xyz.kbalto.inventory.image;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that aren't displayed or cached anymore, reused by the decoder through
+ * BitmapFactory.Options.inBitmap so scrolling doesn't allocate a new bitmap for every bound row.
+ * Bitmaps are bucketed by their allocation size. From KitKat, any bitmap at least as large as the decoded
+ * image can be reused (up to {@link #MAX_OVERSIZE} times larger, to keep large ones for large images);
+ * before, only a bitmap of exactly the same dimensions and config, decoded without sampling.
+ * Thread safe.
+ */
+class BitmapPool {
+    /** Maximum ratio between the size of a reused bitmap and the size of the decoded image */
+    private static final int MAX_OVERSIZE = 4;
+
+    /** Bitmaps, by allocation size in bytes. Guarded by this. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    /** Maximum size of the pooled bitmaps, in bytes */
+    private final int mMaxBytes;
+    /** Size of the pooled bitmaps, in bytes. Guarded by this. */
+    private int mSize;
+
+    /**
+     * @param maxBytes maximum size of the pooled bitmaps, in bytes (0 disables the pool).
+     */
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a bitmap the decoder can reuse for an image of the given decoded size.
+     * @param sampleSize inSampleSize of the decode.
+     * @return the bitmap, removed from the pool, or null if there is none.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize) {
+        int bytes = width * height * getBytesPerPixel(config);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Integer size = mBuckets.ceilingKey(bytes);
+            if (size == null || size > bytes * MAX_OVERSIZE) {
+                return null;
+            }
+            Bitmap bitmap = mBuckets.get(size).pollFirst();
+            removed(size);
+            return bitmap;
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+        if (sampleSize != 1 || bucket == null) {
+            return null;
+        }
+        Iterator<Bitmap> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                iterator.remove();
+                removed(bytes);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a bitmap that is neither displayed nor cached anymore, evicting the largest pooled bitmaps
+     * if the pool grows over its maximum size.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = getAllocationSize(bitmap);
+        if (bytes > mMaxBytes) {
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(bytes, bucket);
+        }
+        bucket.addLast(bitmap);
+        mSize += bytes;
+        while (mSize > mMaxBytes) {
+            Integer largest = mBuckets.lastKey();
+            mBuckets.get(largest).pollFirst();
+            removed(largest);
+        }
+    }
+
+    /**
+     * @return the size of the pooled bitmaps, in bytes.
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Updates the size and drops the bucket if it's empty, after a bitmap of the given size was removed from it.
+     */
+    private void removed(int size) {
+        if (mBuckets.get(size).isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mSize -= size;
+    }
+
+    static int getAllocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
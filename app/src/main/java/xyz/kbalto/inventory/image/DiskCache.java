@@ -0,0 +1,159 @@
+package xyz.kbalto.inventory.image;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cache of decoded thumbnails on disk, so a thumbnail evicted from memory (or lost with the process)
+ * is read back from a small file instead of decoding the original photo again.
+ * Files are named after the hash of their key, and the least recently used ones are deleted once the
+ * cache grows over its maximum size.
+ */
+class DiskCache {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = DiskCache.class.getSimpleName();
+    /** Quality of the cached thumbnails */
+    private static final int JPEG_QUALITY = 85;
+
+    /** Directory of the cached files */
+    private final File mDirectory;
+    /** Maximum size of the cached files, in bytes */
+    private final long mMaxBytes;
+    /** Size of the cached files, in bytes (-1 until the directory is read). Guarded by this. */
+    private long mSize = -1;
+
+    DiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param pool bitmaps to decode into, may be null.
+     * @return the cached bitmap, or null if there is none.
+     */
+    Bitmap get(String key, BitmapPool pool) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapDecoder.decodeFile(file, pool);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot read " + file, e);
+            return null;
+        }
+        if (bitmap == null) {
+            // Corrupted (e.g. written while the process was killed)
+            delete(file);
+        } else {
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes the bitmap to the cache, then deletes the least recently used files if the cache is too big.
+     */
+    void put(String key, Bitmap bitmap) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Cannot create " + mDirectory);
+            return;
+        }
+        File file = getFile(key);
+        // Write to a temporary file first, so readers never see a partial thumbnail.
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        try {
+            OutputStream output = new FileOutputStream(temporary);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot write " + temporary, e);
+            temporary.delete();
+            return;
+        }
+
+        synchronized (this) {
+            long previousLength = file.length();
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                return;
+            }
+            if (mSize != -1) {
+                mSize += file.length() - previousLength;
+            }
+            trimToSize();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits its maximum size.
+     */
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (mSize == -1) {
+            mSize = 0;
+            for (File file : files) {
+                mSize += file.length();
+            }
+        }
+        if (mSize <= mMaxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = first.lastModified() - second.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && mSize > mMaxBytes; i++) {
+            delete(files[i]);
+        }
+    }
+
+    private synchronized void delete(File file) {
+        long length = file.length();
+        if (file.delete() && mSize != -1) {
+            mSize -= length;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, hash(key));
+    }
+
+    /**
+     * @return the hexadecimal MD5 of the key, usable as a file name.
+     */
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package xyz.kbalto.inventory.image;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.DrawableRes;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.kbalto.inventory.R;
+
+/**
+ * Loads product images into ImageViews off the main thread.
+ * Images are decoded downsampled to the size of the view, and kept in a memory cache sized in bytes,
+ * backed by a disk cache of the downsampled files. A view keeps track of the request loading into it,
+ * so binding another image to a recycled row cancels the decode of the previous one.
+ * Bitmaps that are neither displayed by a view nor in the memory cache anymore go to a BitmapPool,
+ * and new images are decoded into them. Displayed bitmaps are pinned (counted per view) so that a bitmap
+ * evicted from the cache while a row still shows it only goes to the pool once the row is recycled.
+ * Images can also be prefetched into the memory cache for rows about to be shown; prefetches are queued
+ * behind every load for a view and decoded at the lowest thread priority.
+ * Must be called from the main thread.
+ */
+public class ImageLoader {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ImageLoader.class.getSimpleName();
+    /** Part of the app's memory class used by the memory cache */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+    /** Part of the app's memory class used by the bitmap pool */
+    private static final int BITMAP_POOL_DIVIDER = 16;
+    /** Maximum size of the disk cache, in bytes */
+    private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+    /** Directory of the disk cache, in the app's cache directory */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+    /** Amount of images decoded at the same time */
+    private static final int THREAD_COUNT = 2;
+    /** Priority of the loads for a view, taken from the queue first */
+    private static final int PRIORITY_VISIBLE = 0;
+    /** Priority of the prefetches */
+    private static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * A prefetch that can be cancelled, e.g. when the list scrolls back.
+     */
+    public interface Prefetch {
+        void cancel();
+    }
+
+    /**
+     * Receives the end of a prefetch on the main thread, whether the image could be decoded or not.
+     */
+    public interface PrefetchListener {
+        void onPrefetched(Uri uri);
+    }
+
+    private static ImageLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final MemoryCache mMemoryCache;
+    private final DiskCache mDiskCache;
+    private final BitmapPool mPool;
+    /** Amount of views and pending deliveries using each bitmap. Guarded by itself. */
+    private final Map<Bitmap, Integer> mPins = new WeakHashMap<>();
+    /** Pinned bitmaps removed from the memory cache, which go to the pool once unpinned. Guarded by mPins. */
+    private final Set<Bitmap> mUncached = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    /** Size used when the view isn't laid out yet and has no fixed size, in pixels */
+    private final int mDefaultSize;
+    /** Orders the requests of the same priority */
+    private final AtomicLong mSequence = new AtomicLong();
+    /**
+     * Decodes the images, at background priority so it doesn't compete with the main thread.
+     * The queue orders the requests by priority, then in the order they were made.
+     */
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+            0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageLoader");
+        }
+    });
+    /** Delivers the decoded images to the views */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return the loader shared by the whole app.
+     */
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+            sInstance = new ImageLoader(appContext, memoryClassBytes / MEMORY_CACHE_DIVIDER,
+                    memoryClassBytes / BITMAP_POOL_DIVIDER,
+                    new File(appContext.getCacheDir(), DISK_CACHE_DIRECTORY), DISK_CACHE_BYTES);
+        }
+        return sInstance;
+    }
+
+    ImageLoader(Context context, int memoryCacheBytes, int poolBytes, File diskCacheDirectory, long diskCacheBytes) {
+        mResolver = context.getContentResolver();
+        mPool = new BitmapPool(poolBytes);
+        mMemoryCache = new MemoryCache(memoryCacheBytes) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    onRemovedFromMemory(oldValue);
+                }
+            }
+        };
+        mDiskCache = new DiskCache(diskCacheDirectory, diskCacheBytes);
+        mDefaultSize = context.getResources().getDisplayMetrics().widthPixels;
+    }
+
+    /**
+     * Shows the image in the view: right away if it's in memory, else shows the placeholder
+     * and loads the image in the background. Cancels the previous load of the view, if any.
+     */
+    public void load(Uri uri, ImageView imageView, @DrawableRes int placeholderResId) {
+        cancel(imageView);
+        int[] size = getTargetSize(imageView);
+        String key = getKey(uri, size);
+
+        Bitmap cached;
+        synchronized (mPins) {
+            // Pin before another thread can evict it into the pool
+            cached = mMemoryCache.get(key);
+            if (cached != null) {
+                pin(cached);
+            }
+        }
+        if (cached != null) {
+            display(imageView, cached);
+            return;
+        }
+        display(imageView, null);
+        imageView.setImageResource(placeholderResId);
+        Request request = new Request(key, uri, size[0], size[1], imageView, null);
+        imageView.setTag(R.id.image_request, request);
+        mExecutor.execute(request);
+    }
+
+    /**
+     * Decodes the image into the memory cache in the background, at the size load() would use for the
+     * given view, unless it's cached already. Only starts once no load for a view is waiting.
+     * @param sizeReference a view of the size the image will be shown at, e.g. the image view of another row.
+     * @param listener notified on the main thread once the prefetch is done or skipped, but not if cancelled.
+     * @return the prefetch, to cancel it, or null if the image is already in memory.
+     */
+    public Prefetch prefetch(Uri uri, ImageView sizeReference, PrefetchListener listener) {
+        int[] size = getTargetSize(sizeReference);
+        String key = getKey(uri, size);
+        if (mMemoryCache.get(key) != null) {
+            return null;
+        }
+        Request request = new Request(key, uri, size[0], size[1], null, listener);
+        mExecutor.execute(request);
+        return request;
+    }
+
+    /**
+     * Cancels the load of the view and clears its image, giving its bitmap back. Called when its row is recycled.
+     */
+    public void recycle(ImageView imageView) {
+        cancel(imageView);
+        display(imageView, null);
+        imageView.setImageDrawable(null);
+    }
+
+    /**
+     * Cancels the load of the view, if any.
+     */
+    public void cancel(ImageView imageView) {
+        Request request = (Request) imageView.getTag(R.id.image_request);
+        if (request != null) {
+            request.cancel();
+            imageView.setTag(R.id.image_request, null);
+        }
+    }
+
+    /**
+     * @return the size of the images held in memory, in bytes.
+     */
+    int getMemoryCacheSize() {
+        return mMemoryCache.size();
+    }
+
+    /**
+     * @return the size of the pooled bitmaps, in bytes.
+     */
+    int getPoolSize() {
+        return mPool.size();
+    }
+
+    /**
+     * Shows a pinned bitmap in the view, or nothing, and unpins the bitmap the view showed before.
+     */
+    private void display(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = (Bitmap) imageView.getTag(R.id.image_bitmap);
+        imageView.setTag(R.id.image_bitmap, bitmap);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+        }
+        if (previous != null) {
+            unpin(previous);
+        }
+    }
+
+    /**
+     * Marks the bitmap as used. Must hold mPins.
+     */
+    private void pin(Bitmap bitmap) {
+        Integer pins = mPins.get(bitmap);
+        mPins.put(bitmap, pins == null ? 1 : pins + 1);
+    }
+
+    /**
+     * Marks the bitmap as not used anymore by a view, putting it in the pool if it isn't cached either.
+     */
+    private void unpin(Bitmap bitmap) {
+        synchronized (mPins) {
+            Integer pins = mPins.get(bitmap);
+            if (pins == null) {
+                return;
+            }
+            if (pins > 1) {
+                mPins.put(bitmap, pins - 1);
+                return;
+            }
+            mPins.remove(bitmap);
+            if (mUncached.remove(bitmap)) {
+                mPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Puts a bitmap evicted from the memory cache in the pool, once no view shows it.
+     */
+    private void onRemovedFromMemory(Bitmap bitmap) {
+        synchronized (mPins) {
+            if (mPins.containsKey(bitmap)) {
+                mUncached.add(bitmap);
+            } else {
+                mPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * @return the width and height to decode the images of the view at.
+     */
+    private int[] getTargetSize(ImageView imageView) {
+        int width = getTargetSize(imageView.getLayoutParams().width, imageView.getWidth());
+        int height = getTargetSize(imageView.getLayoutParams().height, imageView.getHeight());
+        if (width <= 0 && height <= 0) {
+            width = mDefaultSize;
+            height = mDefaultSize;
+        } else if (width <= 0) {
+            width = height;
+        } else if (height <= 0) {
+            height = width;
+        }
+        return new int[]{width, height};
+    }
+
+    private static String getKey(Uri uri, int[] size) {
+        return uri + "@" + size[0] + "x" + size[1];
+    }
+
+    /**
+     * @return the fixed size of the layout params, else the current size of the view (0 if not laid out).
+     */
+    private static int getTargetSize(int layoutSize, int viewSize) {
+        if (layoutSize > 0) {
+            return layoutSize;
+        }
+        return layoutSize == ViewGroup.LayoutParams.WRAP_CONTENT ? 0 : viewSize;
+    }
+
+    /**
+     * Reads an image from the disk cache or decodes it, then delivers it to its view on the main thread,
+     * or only keeps it in the memory cache for a prefetch.
+     */
+    private class Request implements Runnable, Prefetch, Comparable<Request> {
+        private final String mKey;
+        private final Uri mUri;
+        private final int mWidth;
+        private final int mHeight;
+        /** View the image is loaded into, null for a prefetch */
+        private final ImageView mImageView;
+        private final PrefetchListener mPrefetchListener;
+        private final int mPriority;
+        private final long mSequence;
+        /** Set on the main thread when the view is recycled or given another image, or the prefetch cancelled */
+        volatile boolean mCancelled;
+
+        Request(String key, Uri uri, int width, int height, ImageView imageView, PrefetchListener prefetchListener) {
+            mKey = key;
+            mUri = uri;
+            mWidth = width;
+            mHeight = height;
+            mImageView = imageView;
+            mPrefetchListener = prefetchListener;
+            mPriority = imageView != null ? PRIORITY_VISIBLE : PRIORITY_PREFETCH;
+            mSequence = ImageLoader.this.mSequence.getAndIncrement();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            // Drop the request if it didn't start yet
+            mExecutor.remove(this);
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            if (mImageView == null) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                try {
+                    prefetch();
+                } finally {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+                return;
+            }
+            Bitmap bitmap = decode();
+            if (bitmap == null) {
+                return;
+            }
+            synchronized (mPins) {
+                // Pinned for the delivery, so it can't be evicted into the pool before it's shown
+                pin(bitmap);
+                mMemoryCache.put(mKey, bitmap);
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been given another image meanwhile
+                    if (!mCancelled && mImageView.getTag(R.id.image_request) == Request.this) {
+                        mImageView.setTag(R.id.image_request, null);
+                        display(mImageView, result);
+                    } else {
+                        unpin(result);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Puts the image in the memory cache, unpinned, then notifies the listener.
+         */
+        private void prefetch() {
+            if (mMemoryCache.get(mKey) == null) {
+                Bitmap bitmap = decode();
+                if (bitmap != null && !mCancelled) {
+                    synchronized (mPins) {
+                        mMemoryCache.put(mKey, bitmap);
+                    }
+                } else if (bitmap != null) {
+                    mPool.put(bitmap);
+                }
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled && mPrefetchListener != null) {
+                        mPrefetchListener.onPrefetched(mUri);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return the image read from the disk cache or decoded, or null if it can't be read.
+         */
+        private Bitmap decode() {
+            // Local files are the thumbnails made by the ThumbnailPipeline, already small: no need to copy them.
+            boolean useDiskCache = !ContentResolver.SCHEME_FILE.equals(mUri.getScheme());
+            Bitmap bitmap = useDiskCache ? mDiskCache.get(mKey, mPool) : null;
+            if (bitmap == null) {
+                try {
+                    bitmap = BitmapDecoder.decodeSampledBitmap(mResolver, mUri, mWidth, mHeight, mPool);
+                } catch (IOException | SecurityException e) {
+                    Log.e(LOG_TAG, "Cannot load " + mUri, e);
+                }
+                if (bitmap != null && useDiskCache) {
+                    mDiskCache.put(mKey, bitmap);
+                }
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import xyz.kbalto.inventory.R;
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Shrinks the photos after they are captured: each photo is decoded down to the configured maximum size
+ * and re-encoded, as WebP where the platform handles it well, else as JPEG. The new file is read back to
+ * check its dimensions and only kept if it's smaller; it then goes into the ImageStore and replaces the
+ * original in every product using it, with a single update. The original is left to the ImageStore collector.
+ * <p>
+ * The new file has no EXIF, so its pixels are turned upright by the EXIF orientation of the original;
+ * a photo whose orientation can't be read is kept as it is.
+ */
+public class ImageRecompressor {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ImageRecompressor.class.getSimpleName();
+
+    /**
+     * Receives the recompressed photo on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param replacement URI of the smaller photo that replaces the original in the products.
+         */
+        void onRecompressed(Uri original, Uri replacement);
+    }
+
+    private static ImageRecompressor sInstance;
+
+    private final ContentResolver mResolver;
+    private final ImageStore mImageStore;
+    /** Directory of the files being encoded */
+    private final File mWorkDirectory;
+    /** Largest width or height of the recompressed photos, in pixels */
+    private final int mMaxSize;
+    /** Encoding quality, from 0 to 100 */
+    private final int mQuality;
+    /** Recompresses one photo at a time, at background priority. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageRecompressor");
+        }
+    });
+    /** Delivers the results to the listeners */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return the recompressor shared by the whole app, configured by the config_picture_* resources.
+     */
+    public static synchronized ImageRecompressor getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            Resources resources = appContext.getResources();
+            sInstance = new ImageRecompressor(appContext.getContentResolver(), ImageStore.getInstance(appContext),
+                    appContext.getCacheDir(), resources.getInteger(R.integer.config_picture_max_size),
+                    resources.getInteger(R.integer.config_picture_quality));
+        }
+        return sInstance;
+    }
+
+    ImageRecompressor(ContentResolver resolver, ImageStore imageStore, File workDirectory, int maxSize, int quality) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maxSize);
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be between 0 and 100: " + quality);
+        }
+        mResolver = resolver;
+        mImageStore = imageStore;
+        mWorkDirectory = workDirectory;
+        mMaxSize = maxSize;
+        mQuality = quality;
+    }
+
+    /**
+     * Recompresses the photo in the background.
+     * @param listener notified on the main thread if the photo was replaced, may be null.
+     */
+    public void schedule(final Uri picture, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Uri replacement = recompress(picture);
+                if (replacement == null || listener == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRecompressed(picture, replacement);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Re-encodes the photo and points the products using it to the new file.
+     * @return the URI of the new photo, or null if the photo was kept as is.
+     */
+    Uri recompress(Uri picture) {
+        // The new file has no EXIF: its pixels must be upright, so a photo that can't say which way is up is kept
+        int orientation = BitmapDecoder.readOrientation(picture);
+        if (orientation == ExifInterface.ORIENTATION_UNDEFINED) {
+            Log.i(LOG_TAG, "Cannot read the orientation of " + picture + ", keeping the original");
+            return null;
+        }
+        long originalBytes = getLength(picture);
+        File encoded = null;
+        try {
+            Bitmap decoded = BitmapDecoder.decodeSampledBitmap(mResolver, picture, mMaxSize, mMaxSize, null);
+            if (decoded == null) {
+                Log.e(LOG_TAG, "Cannot decode " + picture);
+                return null;
+            }
+            Bitmap scaled = BitmapDecoder.applyOrientation(BitmapDecoder.scaleToFit(decoded, mMaxSize), orientation);
+            if (!mWorkDirectory.exists() && !mWorkDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mWorkDirectory);
+            }
+            encoded = File.createTempFile("recompress", ".tmp", mWorkDirectory);
+            OutputStream output = new FileOutputStream(encoded);
+            try {
+                if (!scaled.compress(getFormat(), mQuality, output)) {
+                    throw new IOException("Cannot encode " + picture);
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!isValid(encoded, scaled.getWidth(), scaled.getHeight())) {
+                Log.e(LOG_TAG, "Recompressed " + picture + " doesn't read back, keeping the original");
+                return null;
+            }
+            long encodedBytes = encoded.length();
+            if (originalBytes >= 0 && encodedBytes >= originalBytes) {
+                Log.i(LOG_TAG, picture + " is already smaller than its recompressed version");
+                return null;
+            }
+
+            Uri replacement = mImageStore.store(encoded, getExtension());
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_PICTURE, replacement.toString());
+            int products = mResolver.update(ProductEntry.CONTENT_URI, values,
+                    ProductEntry.COLUMN_PRODUCT_PICTURE + "=?", new String[]{picture.toString()});
+            Log.i(LOG_TAG, "Recompressed " + picture + " from " + originalBytes + " to " + encodedBytes
+                    + " bytes, used by " + products + " products");
+            return replacement;
+        } catch (IOException | SecurityException e) {
+            Log.e(LOG_TAG, "Cannot recompress " + picture, e);
+            return null;
+        } finally {
+            if (encoded != null) {
+                encoded.delete();
+            }
+        }
+    }
+
+    /**
+     * @return WebP from Android 4.2.1, whose decoder handles every WebP variant, else JPEG.
+     */
+    static Bitmap.CompressFormat getFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+    }
+
+    private static String getExtension() {
+        return getFormat() == Bitmap.CompressFormat.WEBP ? ".webp" : ".jpg";
+    }
+
+    /**
+     * @return whether the file decodes to an image of the given size.
+     */
+    private static boolean isValid(File file, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return options.outWidth == width && options.outHeight == height;
+    }
+
+    /**
+     * @return the size of a local file, or -1 if it's unknown.
+     */
+    private static long getLength(Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return -1;
+        }
+        File file = new File(uri.getPath());
+        return file.exists() ? file.length() : -1;
+    }
+}
@@ -0,0 +1,317 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * App-private store of the product photos. Files are named after the SHA-256 of their content, so the same
+ * image is stored once whatever the amount of products using it; a stored file is referenced by the picture
+ * column of each of those products. Captures go to a temporary file first and are moved into the store once
+ * the camera returns, or deleted if the capture was cancelled.
+ * The collector deletes the stored photos and thumbnails no product references anymore, in small batches
+ * on a background thread. Files younger than {@link #GRACE_PERIOD_MILLIS} are kept, as they may belong to a
+ * product that is still being edited.
+ */
+public class ImageStore {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ImageStore.class.getSimpleName();
+    /** Directory of the stored photos, in the app's files directory */
+    private static final String DIRECTORY = "images";
+    /** Directory of the captures in progress, in the app's cache directory (shared through the FileProvider) */
+    private static final String CAPTURE_DIRECTORY = "capture";
+    /** Extension of the stored photos */
+    private static final String EXTENSION = ".jpg";
+    /** Age under which an unreferenced file is kept */
+    static final long GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /** Amount of files deleted at a time by the collector */
+    private static final int COLLECT_BATCH_SIZE = 32;
+    /** Pause between two batches of the collector, so it doesn't hog the storage */
+    private static final long COLLECT_BATCH_PAUSE_MILLIS = 50;
+
+    /**
+     * Receives the stored photo on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param image URI of the stored photo, or null if it couldn't be stored.
+         */
+        void onStored(Uri image);
+    }
+
+    private static ImageStore sInstance;
+
+    private final ContentResolver mResolver;
+    /** Directory of the stored photos */
+    private final File mDirectory;
+    /** Directory of the captures in progress */
+    private final File mCaptureDirectory;
+    /** Directory of the thumbnails made by the ThumbnailPipeline, also collected */
+    private final File mThumbnailDirectory;
+    /** Stores the captures and runs the collector, one at a time, at background priority. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageStore");
+        }
+    });
+    /** Whether a collection is already scheduled, so a burst of deletes only schedules one. */
+    private final AtomicBoolean mCollectionScheduled = new AtomicBoolean();
+    /** Delivers the results to the callbacks */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return the store shared by the whole app.
+     */
+    public static synchronized ImageStore getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new ImageStore(appContext.getContentResolver(),
+                    new File(appContext.getFilesDir(), DIRECTORY),
+                    new File(appContext.getCacheDir(), CAPTURE_DIRECTORY),
+                    new File(appContext.getFilesDir(), ThumbnailPipeline.DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    ImageStore(ContentResolver resolver, File directory, File captureDirectory, File thumbnailDirectory) {
+        mResolver = resolver;
+        mDirectory = directory;
+        mCaptureDirectory = captureDirectory;
+        mThumbnailDirectory = thumbnailDirectory;
+    }
+
+    /**
+     * Creates the temporary file the camera writes a capture to. Allowed on the main thread, as the camera
+     * needs the file before it starts; it's a single empty file in the cache directory.
+     */
+    public File createCaptureFile() throws IOException {
+        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskWrites();
+        try {
+            if (!mCaptureDirectory.exists() && !mCaptureDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mCaptureDirectory);
+            }
+            return File.createTempFile("IMG_", EXTENSION, mCaptureDirectory);
+        } finally {
+            StrictMode.setThreadPolicy(policy);
+        }
+    }
+
+    /**
+     * Moves a capture into the store in the background, deleting the capture file.
+     * @param callback notified on the main thread with the stored photo.
+     */
+    public void importCapture(final File capture, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri stored = null;
+                try {
+                    stored = store(capture);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Cannot store " + capture, e);
+                } finally {
+                    capture.delete();
+                }
+                final Uri image = stored;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onStored(image);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Deletes a capture that was cancelled, or whose photo is already stored, in the background.
+     */
+    public void discardCapture(final File capture) {
+        if (capture == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (capture.exists() && !capture.delete()) {
+                    Log.e(LOG_TAG, "Cannot delete " + capture);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the file into the store under the hash of its content, unless the same content is stored already.
+     * @return the URI of the stored photo.
+     */
+    Uri store(File source) throws IOException {
+        return store(source, EXTENSION);
+    }
+
+    /**
+     * Copies the file into the store like {@link #store(File)}, with the extension of its format.
+     */
+    Uri store(File source, String extension) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Always available on Android
+            throw new IllegalStateException(e);
+        }
+
+        // Hash while copying to a temporary file of the store, so the content is read once.
+        File temporary = File.createTempFile("import", ".tmp", mDirectory);
+        try {
+            InputStream input = new FileInputStream(source);
+            try {
+                OutputStream output = new FileOutputStream(temporary);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+
+            File stored = new File(mDirectory, toHex(digest.digest()) + extension);
+            if (stored.exists()) {
+                // Same image stored already: keep that one, and mark it as recently used for the collector.
+                stored.setLastModified(System.currentTimeMillis());
+            } else if (!temporary.renameTo(stored)) {
+                throw new IOException("Cannot write " + stored);
+            }
+            return Uri.fromFile(stored);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Runs the collector in the background, unless a collection is already scheduled.
+     */
+    public void scheduleCollection() {
+        if (mCollectionScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCollectionScheduled.set(false);
+                    collect(System.currentTimeMillis());
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the stored photos and thumbnails older than the grace period that no product references.
+     * @return the amount of files deleted.
+     */
+    int collect(long now) {
+        Set<String> referenced = new HashSet<>();
+        Cursor cursor = mResolver.query(ProductEntry.CONTENT_URI, new String[]{
+                ProductEntry.COLUMN_PRODUCT_PICTURE,
+                ProductEntry.COLUMN_PRODUCT_THUMBNAIL,
+                ProductEntry.COLUMN_PRODUCT_PREVIEW}, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    String uri = cursor.getString(i);
+                    if (uri != null) {
+                        referenced.add(uri);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int deleted = collect(mDirectory, referenced, now);
+        deleted += collect(mThumbnailDirectory, referenced, now);
+        // Captures whose editor was closed without a result
+        deleted += collect(mCaptureDirectory, referenced, now);
+        Log.i(LOG_TAG, "Deleted " + deleted + " unreferenced images");
+        return deleted;
+    }
+
+    /**
+     * Deletes the unreferenced files of a directory, a batch at a time.
+     */
+    private static int collect(File directory, Set<String> referenced, long now) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        int batch = 0;
+        for (File file : files) {
+            if (referenced.contains(Uri.fromFile(file).toString())
+                    || now - file.lastModified() < GRACE_PERIOD_MILLIS) {
+                continue;
+            }
+            if (file.delete()) {
+                deleted++;
+            }
+            if (++batch == COLLECT_BATCH_SIZE) {
+                batch = 0;
+                try {
+                    Thread.sleep(COLLECT_BATCH_PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return deleted;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package xyz.kbalto.inventory.image;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * LRU cache of decoded thumbnails, sized by the bytes of their pixels rather than by their count,
+ * so large and small thumbnails share the same memory budget.
+ */
+class MemoryCache extends LruCache<String, Bitmap> {
+
+    /**
+     * @param maxBytes maximum size of the cached bitmaps, in bytes.
+     */
+    MemoryCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap bitmap) {
+        // Reused bitmaps can be larger than the image they hold
+        return BitmapPool.getAllocationSize(bitmap);
+    }
+}
@@ -0,0 +1,189 @@
+package xyz.kbalto.inventory.image;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import xyz.kbalto.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Makes the fixed-size thumbnails of a product picture once, in the background, right after the photo
+ * is captured (or the first time a product without thumbnails is shown). The original is decoded a single
+ * time, downsampled, into the preview shown by the editor; the list thumbnail is scaled from the preview.
+ * The thumbnails are written to app-private storage and recorded in the thumbnail and preview columns of
+ * every product using the picture, so the list and the editor never decode the original image.
+ */
+public class ThumbnailPipeline {
+    /** Tag for Log messages */
+    private static final String LOG_TAG = ThumbnailPipeline.class.getSimpleName();
+    /** Maximum width and height of the list thumbnail, in pixels */
+    public static final int THUMBNAIL_SIZE = 256;
+    /** Maximum width and height of the editor preview, in pixels */
+    public static final int PREVIEW_SIZE = 1024;
+    /** Quality of the thumbnails */
+    private static final int JPEG_QUALITY = 85;
+    /** Directory of the thumbnails, in the app's files directory */
+    static final String DIRECTORY = "thumbnails";
+
+    /**
+     * Receives the thumbnails of a picture on the main thread.
+     */
+    public interface Listener {
+        void onThumbnailsReady(Uri picture, Uri thumbnail, Uri preview);
+    }
+
+    private static ThumbnailPipeline sInstance;
+
+    private final ContentResolver mResolver;
+    /** Directory of the thumbnails */
+    private final File mDirectory;
+    /** Pictures whose thumbnails are being made. Only used on the main thread. */
+    private final Set<Uri> mPending = new HashSet<>();
+    /** Pictures that couldn't be read, not tried again for the list. Only used on the main thread. */
+    private final Set<Uri> mFailed = new HashSet<>();
+    /** Makes the thumbnails one picture at a time, at background priority. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ThumbnailPipeline");
+        }
+    });
+    /** Delivers the results to the listeners */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return the pipeline shared by the whole app.
+     */
+    public static synchronized ThumbnailPipeline getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new ThumbnailPipeline(appContext.getContentResolver(),
+                    new File(appContext.getFilesDir(), DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    ThumbnailPipeline(ContentResolver resolver, File directory) {
+        mResolver = resolver;
+        mDirectory = directory;
+    }
+
+    /**
+     * Makes the thumbnails of the picture in the background, unless they are being made already.
+     * Without a listener, a picture that couldn't be read before isn't tried again: the list binds its
+     * row on every scroll. Must be called from the main thread.
+     * @param listener notified on the main thread if the thumbnails were made, may be null.
+     */
+    public void generate(final Uri picture, final Listener listener) {
+        if (listener == null && (mFailed.contains(picture) || mPending.contains(picture))) {
+            return;
+        }
+        mPending.add(picture);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Uri[] thumbnails = makeThumbnails(picture);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.remove(picture);
+                        if (thumbnails == null) {
+                            mFailed.add(picture);
+                        } else {
+                            mFailed.remove(picture);
+                        }
+                        if (thumbnails != null && listener != null) {
+                            listener.onThumbnailsReady(picture, thumbnails[0], thumbnails[1]);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the thumbnail and the preview of the picture, if they don't exist yet, and records them
+     * in the products using the picture. Runs on the calling thread, one picture at a time.
+     * @return the thumbnail and preview URIs, or null if the picture can't be read.
+     */
+    public synchronized Uri[] makeThumbnails(Uri picture) {
+        String name = DiskCache.hash(picture.toString());
+        File thumbnailFile = new File(mDirectory, name + "-" + THUMBNAIL_SIZE + ".jpg");
+        File previewFile = new File(mDirectory, name + "-" + PREVIEW_SIZE + ".jpg");
+        if (!thumbnailFile.exists() || !previewFile.exists()) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.e(LOG_TAG, "Cannot create " + mDirectory);
+                return null;
+            }
+            try {
+                // Bounds first, then a single downsampled decode of the original.
+                Bitmap decoded = BitmapDecoder.decodeSampledBitmap(mResolver, picture, PREVIEW_SIZE, PREVIEW_SIZE, null);
+                if (decoded == null) {
+                    Log.e(LOG_TAG, "Cannot decode " + picture);
+                    return null;
+                }
+                Bitmap preview = BitmapDecoder.applyOrientation(BitmapDecoder.scaleToFit(decoded, PREVIEW_SIZE),
+                        BitmapDecoder.readOrientation(picture));
+                Bitmap thumbnail = BitmapDecoder.scaleToFit(preview, THUMBNAIL_SIZE);
+                write(preview, previewFile);
+                write(thumbnail, thumbnailFile);
+            } catch (IOException | SecurityException e) {
+                Log.e(LOG_TAG, "Cannot make the thumbnails of " + picture, e);
+                return null;
+            }
+        }
+
+        Uri thumbnail = Uri.fromFile(thumbnailFile);
+        Uri preview = Uri.fromFile(previewFile);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_THUMBNAIL, thumbnail.toString());
+        values.put(ProductEntry.COLUMN_PRODUCT_PREVIEW, preview.toString());
+        // The product may not be saved yet: the editor then saves the thumbnails with it. Products that have them
+        // already are left alone, since every update bumps the version and would make the editor's save stale.
+        // picture=? AND (thumbnail IS NOT ? OR preview IS NOT ?)
+        mResolver.update(ProductEntry.CONTENT_URI, values,
+                ProductEntry.COLUMN_PRODUCT_PICTURE + "=? AND (" + ProductEntry.COLUMN_PRODUCT_THUMBNAIL + " IS NOT ? OR "
+                        + ProductEntry.COLUMN_PRODUCT_PREVIEW + " IS NOT ?)",
+                new String[]{picture.toString(), thumbnail.toString(), preview.toString()});
+        return new Uri[]{thumbnail, preview};
+    }
+
+    /**
+     * Writes the bitmap to a temporary file renamed into place, so readers never see a partial image.
+     */
+    private static void write(Bitmap bitmap, File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(temporary);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+}